@@ -0,0 +1,153 @@
+/*
+Copyright (c) 2010 Eric Glass
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+
+package org.exjello.mail;
+
+import java.io.InputStream;
+
+import java.util.List;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+
+import javax.mail.internet.MimeMessage;
+
+/**
+ * Runs the operations of a blocking connection on the executor shared by
+ * the connections to its server, which has one thread per pooled HTTP
+ * connection.  Each operation still occupies a pool thread while it waits
+ * on the server, but callers wait on futures instead, and the threads
+ * doing the waiting are bounded by the pool rather than by the number of
+ * mailboxes.  Once the executor has been shut down, operations fail at
+ * once with an <code>IllegalStateException</code>.
+ */
+final class AsyncConnectionAdapter implements AsyncExchangeConnection {
+
+    private final ExchangeConnection connection;
+
+    private final ExecutorService executor;
+
+    public AsyncConnectionAdapter(ExchangeConnection connection,
+            ExecutorService executor) {
+        this.connection = connection;
+        this.executor = executor;
+    }
+
+    public Future<List<String>> getMessages(final String folder,
+            ExchangeCallback<List<String>> callback) {
+        return submit(new Callable<List<String>>() {
+            public List<String> call() throws Exception {
+                return connection.getMessages(folder);
+            }
+        }, callback);
+    }
+
+    public Future<Integer> getMessageCount(final String folder,
+            ExchangeCallback<Integer> callback) {
+        return submit(new Callable<Integer>() {
+            public Integer call() throws Exception {
+                return connection.getMessageCount(folder);
+            }
+        }, callback);
+    }
+
+    public Future<InputStream> getInputStream(final ExchangeMessage message,
+            ExchangeCallback<InputStream> callback) {
+        return submit(new Callable<InputStream>() {
+            public InputStream call() throws Exception {
+                return connection.getInputStream(message);
+            }
+        }, callback);
+    }
+
+    public Future<Void> send(final MimeMessage message,
+            ExchangeCallback<Void> callback) {
+        return submit(new Callable<Void>() {
+            public Void call() throws Exception {
+                connection.send(message);
+                return null;
+            }
+        }, callback);
+    }
+
+    public Future<Void> delete(final List<ExchangeMessage> messages,
+            ExchangeCallback<Void> callback) {
+        return submit(new Callable<Void>() {
+            public Void call() throws Exception {
+                connection.delete(messages);
+                return null;
+            }
+        }, callback);
+    }
+
+    private <T> Future<T> submit(Callable<T> operation,
+            ExchangeCallback<T> callback) {
+        Task<T> task = new Task<T>(operation, callback);
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException ex) {
+            task.reject(new IllegalStateException("Not connected.", ex));
+        }
+        return task;
+    }
+
+    /**
+     * An operation that reports to its callback when it completes, fails
+     * or is refused by an executor that has been shut down.
+     */
+    private static final class Task<T> extends FutureTask<T> {
+
+        private final ExchangeCallback<T> callback;
+
+        public Task(Callable<T> operation, ExchangeCallback<T> callback) {
+            super(operation);
+            this.callback = callback;
+        }
+
+        public void reject(Exception ex) {
+            setException(ex);
+        }
+
+        protected void done() {
+            if (callback == null || isCancelled()) return;
+            T result;
+            try {
+                result = get();
+            } catch (ExecutionException ex) {
+                Throwable cause = ex.getCause();
+                callback.failed((cause instanceof Exception) ?
+                        (Exception) cause : ex);
+                return;
+            } catch (InterruptedException ex) {
+                callback.failed(ex);
+                return;
+            }
+            callback.completed(result);
+        }
+
+    }
+
+}
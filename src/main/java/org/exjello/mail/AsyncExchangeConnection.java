@@ -0,0 +1,65 @@
+/*
+Copyright (c) 2010 Eric Glass
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+
+package org.exjello.mail;
+
+import java.io.InputStream;
+
+import java.util.List;
+
+import java.util.concurrent.Future;
+
+import javax.mail.internet.MimeMessage;
+
+/**
+ * Asynchronous access to the mailbox of a connected store, obtained from
+ * {@link ExchangeStore#getAsyncConnection()}.  Each operation returns at
+ * once with a {@link Future} for its result, and reports to the given
+ * callback, if any, when it completes or fails.  The operation itself
+ * blocks a thread of the store's pool until the server responds.
+ * Folders are named as in {@link ExchangeStore#getFolder(String)}.
+ */
+public interface AsyncExchangeConnection {
+
+    /**
+     * Lists the URLs of the messages in the folder.
+     */
+    public Future<List<String>> getMessages(String folder,
+            ExchangeCallback<List<String>> callback);
+
+    /**
+     * Counts the messages the folder's listing would contain, or -1 if
+     * that can only be found by listing it.
+     */
+    public Future<Integer> getMessageCount(String folder,
+            ExchangeCallback<Integer> callback);
+
+    public Future<InputStream> getInputStream(ExchangeMessage message,
+            ExchangeCallback<InputStream> callback);
+
+    public Future<Void> send(MimeMessage message,
+            ExchangeCallback<Void> callback);
+
+    public Future<Void> delete(List<ExchangeMessage> messages,
+            ExchangeCallback<Void> callback);
+
+}
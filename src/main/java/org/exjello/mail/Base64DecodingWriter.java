@@ -0,0 +1,115 @@
+/*
+Copyright (c) 2010 Eric Glass
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+
+package org.exjello.mail;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+
+/**
+ * Decodes base64 text incrementally as it is written, passing the decoded
+ * bytes to an underlying stream.  This allows a large base64 element to be
+ * decoded straight from a SAX <code>characters</code> callback, without
+ * ever holding the encoded text.  Whitespace and other characters outside
+ * the base64 alphabet are ignored; decoding stops at the first pad
+ * character.
+ */
+class Base64DecodingWriter extends Writer {
+
+    private static final byte[] DECODE = new byte[128];
+
+    static {
+        for (int i = 0; i < DECODE.length; i++) DECODE[i] = -1;
+        String alphabet =
+                "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+        for (int i = 0; i < alphabet.length(); i++) {
+            DECODE[alphabet.charAt(i)] = (byte) i;
+        }
+    }
+
+    private final OutputStream output;
+
+    private final byte[] buffer = new byte[8192];
+
+    private int position = 0;
+
+    private int quantum = 0;
+
+    private int bits = 0;
+
+    private boolean padded = false;
+
+    private long count = 0;
+
+    public Base64DecodingWriter(OutputStream output) {
+        this.output = output;
+    }
+
+    public void write(char[] chars, int offset, int length) throws IOException {
+        for (int i = offset, end = offset + length; i < end && !padded; i++) {
+            char c = chars[i];
+            if (c == '=') {
+                padded = true;
+                break;
+            }
+            int value = (c < DECODE.length) ? DECODE[c] : -1;
+            if (value == -1) continue;
+            quantum = (quantum << 6) | value;
+            bits += 6;
+            if (bits >= 8) {
+                bits -= 8;
+                if (position == buffer.length) drain();
+                buffer[position++] = (byte) (quantum >> bits);
+                quantum &= (1 << bits) - 1;
+            }
+        }
+    }
+
+    /**
+     * Returns the number of bytes decoded so far.
+     */
+    public long getCount() {
+        return count + position;
+    }
+
+    public void flush() throws IOException {
+        drain();
+        output.flush();
+    }
+
+    public void close() throws IOException {
+        try {
+            drain();
+        } finally {
+            output.close();
+        }
+    }
+
+    private void drain() throws IOException {
+        if (position == 0) return;
+        output.write(buffer, 0, position);
+        count += position;
+        position = 0;
+    }
+
+}
@@ -29,31 +29,49 @@ import javax.mail.MessagingException;
 
 import javax.mail.util.SharedFileInputStream;
 
+/**
+ * A spooled message.  The stream holds a reference to its spool file,
+ * released when the stream is closed.
+ */
 class CachedMessageStream extends SharedFileInputStream {
 
+    private final SpoolManager spool;
+
+    private final ExchangeFolder folder;
+
     private File tempFile;
 
-    public CachedMessageStream(File tempFile, ExchangeFolder folder)
-            throws IOException {
+    public CachedMessageStream(File tempFile, SpoolManager spool,
+            ExchangeFolder folder) throws IOException {
         super(tempFile);
+        spool.retain(tempFile);
         this.tempFile = tempFile;
+        this.spool = spool;
+        this.folder = folder;
         if (folder != null) {
+            // a stream refused by a closed folder gives up its spool file
             try {
                 folder.register(this);
             } catch (MessagingException ex) {
+                close();
                 throw new IOException(ex.getMessage());
+            } catch (RuntimeException ex) {
+                close();
+                throw ex;
             }
         }
     }
 
     public void close() throws IOException {
-        super.close();
-        try {
-            tempFile.delete();
-        } catch (Exception ignore) {
-        } finally {
+        File file;
+        synchronized (this) {
+            file = tempFile;
             tempFile = null;
         }
+        super.close();
+        if (file == null) return;
+        spool.release(file);
+        if (folder != null) folder.unregister(this);
     }
 
 }
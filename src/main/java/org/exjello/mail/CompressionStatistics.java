@@ -0,0 +1,92 @@
+/*
+Copyright (c) 2010 Eric Glass
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+
+package org.exjello.mail;
+
+/**
+ * Running totals of the compressed responses received by a connection.
+ * The ratio compares the bytes read off the wire with the bytes they
+ * decoded to; responses sent without a content coding are only counted.
+ */
+public final class CompressionStatistics {
+
+    private long responses;
+
+    private long compressedResponses;
+
+    private long compressedBytes;
+
+    private long decodedBytes;
+
+    CompressionStatistics() { }
+
+    /**
+     * Number of response bodies read, compressed or not.
+     */
+    public synchronized long getResponses() {
+        return responses;
+    }
+
+    public synchronized long getCompressedResponses() {
+        return compressedResponses;
+    }
+
+    /**
+     * Bytes of compressed response bodies read off the wire.
+     */
+    public synchronized long getCompressedBytes() {
+        return compressedBytes;
+    }
+
+    /**
+     * Bytes the compressed response bodies decoded to.
+     */
+    public synchronized long getDecodedBytes() {
+        return decodedBytes;
+    }
+
+    /**
+     * Decoded bytes per compressed byte, or 1 if nothing was compressed.
+     */
+    public synchronized double getRatio() {
+        return (compressedBytes > 0) ?
+                (double) decodedBytes / compressedBytes : 1.0;
+    }
+
+    synchronized void responseRead() {
+        responses++;
+    }
+
+    synchronized void compressedResponseRead(long compressed, long decoded) {
+        responses++;
+        compressedResponses++;
+        compressedBytes += compressed;
+        decodedBytes += decoded;
+    }
+
+    public synchronized String toString() {
+        return "responses=" + responses + ", compressed=" +
+                compressedResponses + " (" + compressedBytes + " -> " +
+                        decodedBytes + " bytes, ratio " + getRatio() + ")";
+    }
+
+}
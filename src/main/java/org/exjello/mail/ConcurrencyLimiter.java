@@ -0,0 +1,376 @@
+/*
+Copyright (c) 2010 Eric Glass
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+
+package org.exjello.mail;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import java.util.concurrent.TimeUnit;
+
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Adaptive limit on the number of concurrent requests made to a server or
+ * on behalf of a mailbox.  The limit starts at its maximum, is halved when
+ * the server reports that it is busy or a request times out, and grows
+ * back by one for each window of successful requests, so that clients
+ * sharing a server settle near the highest concurrency it will sustain.
+ * Rising response times lower the limit too, before the server starts
+ * refusing requests: when the recent average is well above the long-term
+ * average the server is queueing work, and the limit is cut by a tenth.
+ * A back-off period requested by the server holds all new requests until
+ * it has passed.
+ * <p>
+ * Limiters are shared by every connection in the JVM and may be inspected
+ * through {@link #getLimiters()}.
+ */
+public final class ConcurrencyLimiter {
+
+    private static final Map<String, ConcurrencyLimiter> LIMITERS =
+            new HashMap<String, ConcurrencyLimiter>();
+
+    /**
+     * Minimum time between two decreases, so that a burst of busy responses
+     * to requests already in flight halves the limit only once.
+     */
+    private static final long DECREASE_INTERVAL = 1000;
+
+    /* weights of a new response time in the recent and long-term averages */
+    private static final double SHORT_WEIGHT = 0.2;
+
+    private static final double LONG_WEIGHT = 0.02;
+
+    /* how far the recent average may rise above the long-term average */
+    private static final double LATENCY_TOLERANCE = 2.0;
+
+    /* response times needed before the averages are trusted */
+    private static final int MIN_LATENCIES = 20;
+
+    private final String name;
+
+    private final Lock lock = new ReentrantLock();
+
+    private final Condition available = lock.newCondition();
+
+    private int maximumLimit;
+
+    private double limit;
+
+    private int inFlight;
+
+    private long requests;
+
+    private long busyResponses;
+
+    private int queued;
+
+    private long queueTime;
+
+    private long latencies;
+
+    private double shortLatency;
+
+    private double longLatency;
+
+    private long backOffUntil;
+
+    private long lastDecrease;
+
+    private ConcurrencyLimiter(String name, int maximumLimit) {
+        this.name = name;
+        this.maximumLimit = maximumLimit;
+        this.limit = maximumLimit;
+    }
+
+    static ConcurrencyLimiter getInstance(String name, int maximumLimit) {
+        if (maximumLimit < 1) maximumLimit = 1;
+        synchronized (LIMITERS) {
+            ConcurrencyLimiter limiter = LIMITERS.get(name);
+            if (limiter == null) {
+                limiter = new ConcurrencyLimiter(name, maximumLimit);
+                LIMITERS.put(name, limiter);
+            } else {
+                limiter.setMaximumLimit(maximumLimit);
+            }
+            return limiter;
+        }
+    }
+
+    /**
+     * Returns a snapshot of all limiters, keyed by name.  Server limiters
+     * are named by the server URL, mailbox limiters by the server URL
+     * followed by a space and the mailbox.
+     */
+    public static Map<String, ConcurrencyLimiter> getLimiters() {
+        synchronized (LIMITERS) {
+            return new TreeMap<String, ConcurrencyLimiter>(LIMITERS);
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * The number of requests currently allowed in flight.
+     */
+    public int getLimit() {
+        lock.lock();
+        try {
+            return (int) limit;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getMaximumLimit() {
+        lock.lock();
+        try {
+            return maximumLimit;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getInFlight() {
+        lock.lock();
+        try {
+            return inFlight;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getRequests() {
+        lock.lock();
+        try {
+            return requests;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getBusyResponses() {
+        lock.lock();
+        try {
+            return busyResponses;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * The number of requests currently waiting to be admitted.
+     */
+    public int getQueued() {
+        lock.lock();
+        try {
+            return queued;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * The total milliseconds requests have spent waiting to be admitted.
+     */
+    public long getQueueTime() {
+        lock.lock();
+        try {
+            return queueTime;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * The average milliseconds a request has waited to be admitted.
+     */
+    public long getAverageQueueTime() {
+        lock.lock();
+        try {
+            return (requests > 0) ? queueTime / requests : 0l;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * The recent average response time in milliseconds, weighted towards
+     * the latest requests.
+     */
+    public long getLatency() {
+        lock.lock();
+        try {
+            return (long) shortLatency;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Milliseconds remaining in the current back-off period, or 0.
+     */
+    public long getBackOffRemaining() {
+        lock.lock();
+        try {
+            return Math.max(0l, backOffUntil - System.currentTimeMillis());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public String toString() {
+        lock.lock();
+        try {
+            return name + ": " + inFlight + " in flight, " + queued +
+                    " queued, limit " + (int) limit + " of " + maximumLimit +
+                            ", " + busyResponses + " busy of " + requests +
+                                    " requests, " + getAverageQueueTime() +
+                                            " ms queued, " + (long) shortLatency +
+                                                    " ms latency" +
+                    ((backOffUntil > System.currentTimeMillis()) ?
+                            ", backing off" : "");
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Blocks until a request may be made, then counts it as in flight.
+     */
+    void acquire() throws InterruptedException {
+        lock.lock();
+        try {
+            long start = System.currentTimeMillis();
+            queued++;
+            try {
+                while (true) {
+                    long delay = backOffUntil - System.currentTimeMillis();
+                    if (delay > 0) {
+                        available.await(delay, TimeUnit.MILLISECONDS);
+                    } else if (inFlight >= (int) limit) {
+                        available.await();
+                    } else {
+                        break;
+                    }
+                }
+            } finally {
+                queued--;
+                queueTime += System.currentTimeMillis() - start;
+            }
+            inFlight++;
+            requests++;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Counts a request as in flight if one may be made now, without
+     * waiting, and returns whether it was.
+     */
+    boolean tryAcquire() {
+        lock.lock();
+        try {
+            if (backOffUntil > System.currentTimeMillis() ||
+                    inFlight >= (int) limit) {
+                return false;
+            }
+            inFlight++;
+            requests++;
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Records the outcome of a request acquired earlier.  If the server was
+     * busy, the limit is decreased and new requests are held for the given
+     * back-off period.
+     */
+    void release(boolean busy, long backOff) {
+        release(busy, backOff, -1);
+    }
+
+    /**
+     * Records the outcome of a request acquired earlier, along with the
+     * milliseconds the server took to respond, or -1 if it did not.
+     */
+    void release(boolean busy, long backOff, long latency) {
+        lock.lock();
+        try {
+            inFlight--;
+            long now = System.currentTimeMillis();
+            boolean slow = false;
+            if (latency >= 0 && !busy) {
+                if (latencies++ == 0) {
+                    shortLatency = latency;
+                    longLatency = latency;
+                } else {
+                    shortLatency += (latency - shortLatency) * SHORT_WEIGHT;
+                    longLatency += (latency - longLatency) * LONG_WEIGHT;
+                }
+                slow = latencies >= MIN_LATENCIES &&
+                        shortLatency > longLatency * LATENCY_TOLERANCE;
+            }
+            if (busy) {
+                busyResponses++;
+                if (now - lastDecrease >= DECREASE_INTERVAL) {
+                    limit = Math.max(1.0, Math.floor(limit / 2));
+                    lastDecrease = now;
+                }
+                if (backOff > 0) {
+                    backOffUntil = Math.max(backOffUntil, now + backOff);
+                }
+            } else if (slow) {
+                if (now - lastDecrease >= DECREASE_INTERVAL) {
+                    limit = Math.max(1.0, Math.floor(limit * 0.9));
+                    lastDecrease = now;
+                }
+            } else if (limit < maximumLimit) {
+                limit = Math.min(maximumLimit, limit + 1.0 / (int) limit);
+            }
+            available.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void setMaximumLimit(int maximumLimit) {
+        lock.lock();
+        try {
+            if (this.maximumLimit == maximumLimit) return;
+            this.maximumLimit = maximumLimit;
+            if (limit > maximumLimit) limit = maximumLimit;
+            available.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+}
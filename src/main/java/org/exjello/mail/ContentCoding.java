@@ -0,0 +1,208 @@
+/*
+Copyright (c) 2010 Eric Glass
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+
+package org.exjello.mail;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Decodes response bodies sent with a <code>gzip</code> or
+ * <code>deflate</code> content coding as they are read, so that listings
+ * go straight from the inflater into the parser and message bodies into
+ * the spool.
+ */
+final class ContentCoding {
+
+    public static final String ACCEPT_ENCODING = "gzip, deflate";
+
+    private ContentCoding() { }
+
+    /**
+     * Returns whether the response body is sent in a content coding, in
+     * which case its <code>Content-Length</code> counts the coded bytes.
+     */
+    public static boolean isEncoded(HttpResponse response) {
+        String header = response.getHeader("Content-Encoding");
+        if (header == null) return false;
+        String coding = header.trim();
+        return !"".equals(coding) && !"identity".equalsIgnoreCase(coding);
+    }
+
+    /**
+     * Returns the decoded response body, or <code>null</code> if there is
+     * none.  Counts are added to the given statistics once the body has
+     * been read or closed.
+     */
+    public static InputStream getResponseBody(HttpResponse response,
+            CompressionStatistics statistics) throws IOException {
+        InputStream stream = response.getBody();
+        if (stream == null) return null;
+        if (!isEncoded(response)) {
+            statistics.responseRead();
+            return stream;
+        }
+        String coding = response.getHeader(
+                "Content-Encoding").trim().toLowerCase();
+        if (!"gzip".equals(coding) && !"x-gzip".equals(coding) &&
+                !"deflate".equals(coding)) {
+            throw new IOException("Unsupported content coding: " + coding);
+        }
+        return new DecodingStream(stream, coding, statistics);
+    }
+
+    /**
+     * Inflates the body on first read, as an empty body sent with a coding
+     * has no header to read.
+     */
+    private static final class DecodingStream extends FilterInputStream {
+
+        private final CountingStream raw;
+
+        private final String coding;
+
+        private final CompressionStatistics statistics;
+
+        private Inflater inflater;
+
+        private long decoded;
+
+        private boolean recorded;
+
+        public DecodingStream(InputStream stream, String coding,
+                CompressionStatistics statistics) {
+            super(null);
+            this.raw = new CountingStream(stream);
+            this.coding = coding;
+            this.statistics = statistics;
+        }
+
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return (read(b, 0, 1) == -1) ? -1 : (b[0] & 0xff);
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (in == null) in = open();
+            int count = in.read(b, off, len);
+            if (count == -1) {
+                record();
+            } else {
+                decoded += count;
+            }
+            return count;
+        }
+
+        public long skip(long n) throws IOException {
+            byte[] buf = new byte[(int) Math.min(n, 8192)];
+            long skipped = 0;
+            int count;
+            while (skipped < n && (count = read(buf, 0,
+                    (int) Math.min(buf.length, n - skipped))) != -1) {
+                skipped += count;
+            }
+            return skipped;
+        }
+
+        public int available() throws IOException {
+            return (in != null) ? in.available() : 0;
+        }
+
+        public boolean markSupported() {
+            return false;
+        }
+
+        public void close() throws IOException {
+            record();
+            if (in != null) {
+                in.close();
+                if (inflater != null) inflater.end();
+            } else {
+                raw.close();
+            }
+        }
+
+        /**
+         * Some servers send "deflate" as a raw deflate stream rather than
+         * the zlib stream the specification calls for, so the first bytes
+         * are checked for a zlib header.
+         */
+        private InputStream open() throws IOException {
+            if (!"deflate".equals(coding)) return new GZIPInputStream(raw);
+            PushbackInputStream stream = new PushbackInputStream(raw, 2);
+            int first = stream.read();
+            int second = (first != -1) ? stream.read() : -1;
+            if (second != -1) stream.unread(second);
+            if (first != -1) stream.unread(first);
+            boolean zlib = (first & 0x0f) == 8 && second != -1 &&
+                    ((first << 8) | second) % 31 == 0;
+            inflater = new Inflater(!zlib);
+            return new InflaterInputStream(stream, inflater);
+        }
+
+        private void record() {
+            if (recorded) return;
+            recorded = true;
+            statistics.compressedResponseRead(raw.count, decoded);
+        }
+
+    }
+
+    private static final class CountingStream extends FilterInputStream {
+
+        long count;
+
+        public CountingStream(InputStream stream) {
+            super(stream);
+        }
+
+        public int read() throws IOException {
+            int b = in.read();
+            if (b != -1) count++;
+            return b;
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = in.read(b, off, len);
+            if (read > 0) count += read;
+            return read;
+        }
+
+        public long skip(long n) throws IOException {
+            long skipped = in.skip(n);
+            count += skipped;
+            return skipped;
+        }
+
+        public boolean markSupported() {
+            return false;
+        }
+
+    }
+
+}
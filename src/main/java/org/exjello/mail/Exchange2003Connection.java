@@ -22,22 +22,36 @@ THE SOFTWARE.
 
 package org.exjello.mail;
 
+import static org.exjello.mail.ExchangeConstants.COMPRESSION_PROPERTY;
 import static org.exjello.mail.ExchangeConstants.CONNECTION_TIMEOUT_PROPERTY;
 import static org.exjello.mail.ExchangeConstants.DELETE_PROPERTY;
+import static org.exjello.mail.ExchangeConstants.DOWNLOAD_PARALLEL_PROPERTY;
+import static org.exjello.mail.ExchangeConstants.DOWNLOAD_PARALLEL_THRESHOLD_PROPERTY;
+import static org.exjello.mail.ExchangeConstants.DOWNLOAD_RETRIES_PROPERTY;
 import static org.exjello.mail.ExchangeConstants.FROM_PROPERTY;
+import static org.exjello.mail.ExchangeConstants.HTTP_TRANSPORT_PROPERTY;
+import static org.exjello.mail.ExchangeConstants.HEDGE_PROPERTY;
+import static org.exjello.mail.ExchangeConstants.HEDGE_PERCENTILE_PROPERTY;
+import static org.exjello.mail.ExchangeConstants.HEDGE_BUDGET_PROPERTY;
 import static org.exjello.mail.ExchangeConstants.LIMIT_PROPERTY;
 import static org.exjello.mail.ExchangeConstants.LOCAL_ADDRESS_PROPERTY;
 import static org.exjello.mail.ExchangeConstants.MAILBOX_PROPERTY;
+import static org.exjello.mail.ExchangeConstants.OFFSET_PROPERTY;
+import static org.exjello.mail.ExchangeConstants.ORDER_BY_PROPERTY;
+import static org.exjello.mail.ExchangeConstants.ORDER_PROPERTY;
+import static org.exjello.mail.ExchangeConstants.POOL_MAX_CONNECTIONS_PROPERTY;
+import static org.exjello.mail.ExchangeConstants.POOL_MAX_PER_MAILBOX_PROPERTY;
 import static org.exjello.mail.ExchangeConstants.PORT_PROPERTY;
 import static org.exjello.mail.ExchangeConstants.SSL_PROPERTY;
+import static org.exjello.mail.ExchangeConstants.STREAM_PROPERTY;
+import static org.exjello.mail.ExchangeConstants.THROTTLE_RETRIES_PROPERTY;
+import static org.exjello.mail.ExchangeConstants.THROTTLE_SERVER_PROPERTY;
 import static org.exjello.mail.ExchangeConstants.TIMEOUT_PROPERTY;
 import static org.exjello.mail.ExchangeConstants.UNFILTERED_PROPERTY;
 
 import java.io.BufferedOutputStream;
-import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
@@ -46,15 +60,19 @@ import java.io.PrintStream;
 import java.math.BigInteger;
 import java.net.InetAddress;
 import java.net.MalformedURLException;
+import java.net.SocketTimeoutException;
 import java.net.URL;
+import java.net.URLEncoder;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
-import java.util.Properties;
 import java.util.Random;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 import javax.mail.Address;
 import javax.mail.Message;
@@ -70,17 +88,6 @@ import javax.xml.transform.TransformerFactory;
 import javax.xml.transform.dom.DOMSource;
 import javax.xml.transform.stream.StreamResult;
 
-import org.apache.commons.httpclient.HttpClient;
-import org.apache.commons.httpclient.NTCredentials;
-import org.apache.commons.httpclient.UsernamePasswordCredentials;
-import org.apache.commons.httpclient.auth.AuthScope;
-import org.apache.commons.httpclient.methods.ByteArrayRequestEntity;
-import org.apache.commons.httpclient.methods.GetMethod;
-import org.apache.commons.httpclient.methods.InputStreamRequestEntity;
-import org.apache.commons.httpclient.methods.OptionsMethod;
-import org.apache.commons.httpclient.methods.PostMethod;
-import org.apache.commons.httpclient.methods.PutMethod;
-import org.apache.commons.httpclient.methods.RequestEntity;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 import org.xml.sax.Attributes;
@@ -89,26 +96,8 @@ import org.xml.sax.helpers.DefaultHandler;
 
 class Exchange2003Connection implements ExchangeConnection {
 
-	private static final Map<String, byte[]> RESOURCES = new HashMap<String, byte[]>();
-
 	private static final Random RANDOM = new Random();
 
-	private static final String GET_UNREAD_MESSAGES_SQL_RESOURCE = "get-unread-messages.sql";
-
-	private static final String GET_ALL_MESSAGES_SQL_RESOURCE = "get-all-messages.sql";
-
-	private static final String GET_FILTERED_MESSAGES_SQL_RESOURCE = "get-filtered-messages.sql";
-
-	private static final String BOOKMARK_FILTER_UNREADED = "{BOOKMARK_FILTER_UNREADED}";
-
-	private static final String BOOKMARK_FILTER_TO = "{BOOKMARK_FILTER_TO}";
-
-	private static final String BOOKMARK_FILTER_FROM = "{BOOKMARK_FILTER_FROM}";
-
-	private static final String BOOKMARK_FILTER_NOT_FROM = "{BOOKMARK_FILTER_NOT_FROM}";
-
-	private static final String BOOKMARK_FILTER_LAST_CHECK = "{BOOKMARK_FILTER_LAST_CHECK}";
-
 	private static final String SIGN_ON_URI = "/exchweb/bin/auth/owaauth.dll";
 
 	private static final String DEBUG_PASSWORD_PROPERTY = "org.exjello.mail.debug.password";
@@ -119,6 +108,15 @@ class Exchange2003Connection implements ExchangeConnection {
 
 	private static final String DAV_NAMESPACE = "DAV:";
 
+	private static final String PROPTAG_NAMESPACE = "http://schemas.microsoft.com/mapi/proptag/";
+
+	/* PR_ATTACH_SIZE, PR_ATTACH_MIME_TAG and PR_ATTACH_LONG_FILENAME */
+	private static final String ATTACH_SIZE = "x0e200003";
+
+	private static final String ATTACH_MIME_TAG = "x370e001f";
+
+	private static final String ATTACH_LONG_FILENAME = "x3707001f";
+
 	private static final String PROPFIND_METHOD = "PROPFIND";
 
 	private static final String SEARCH_METHOD = "SEARCH";
@@ -131,6 +129,8 @@ class Exchange2003Connection implements ExchangeConnection {
 
 	private static final String MOVE_METHOD = "MOVE";
 
+	private static final String ENUMATTS_METHOD = "X-MS-ENUMATTS";
+
 	private static final String MESSAGE_CONTENT_TYPE = "message/rfc822";
 
 	private static final String XML_CONTENT_TYPE = "text/xml; charset=\"UTF-8\"";
@@ -142,17 +142,31 @@ class Exchange2003Connection implements ExchangeConnection {
 
 	private static final int HTTPS_PORT = 443;
 
+	private static final int DEFAULT_MAX_CONNECTIONS = 20;
+
+	private static final int DEFAULT_DOWNLOAD_RETRIES = 3;
+
+	private static final long DEFAULT_PARALLEL_THRESHOLD = 8 * 1024 * 1024;
+
+	private static final int DEFAULT_HEDGE_PERCENTILE = 95;
+
+	private static final int DEFAULT_HEDGE_BUDGET = 5;
+
+	private static final int DEFAULT_SERVER_CONCURRENCY = 20;
+
+	private static final int DEFAULT_RETRIES = 3;
+
+	private static final long DEFAULT_BACK_OFF = 1000;
+
+	private static final int HTTP_SERVICE_UNAVAILABLE = 503;
+
 	private static final boolean[] ALLOWED_CHARS = new boolean[128];
 
 	private static final char[] HEXABET = new char[] { '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'A', 'B', 'C', 'D', 'E', 'F' };
 
 	private static byte[] findInboxEntity;
 
-	private static byte[] unreadInboxEntity;
-
-	private static byte[] allInboxEntity;
-
-	private static byte[] customInboxEntity;
+	private static byte[] folderCountsEntity;
 
 	private final Session session;
 
@@ -182,7 +196,48 @@ class Exchange2003Connection implements ExchangeConnection {
 
 	private final int limit;
 
-	private HttpClient client;
+	private final int offset;
+
+	private final int maxConnections;
+
+	private final int maxPerMailbox;
+
+	private final boolean streamContent;
+
+	private final boolean compression;
+
+	private final String httpTransport;
+
+	private final int hedgePercentile;
+
+	private final int hedgeBudget;
+
+	private final SpoolManager spool;
+
+	private final ConcurrencyLimiter serverLimiter;
+
+	private final int throttleRetries;
+
+	private final int downloadRetries;
+
+	private final int downloadParallel;
+
+	private final long parallelThreshold;
+
+	private final ListingQuery listingQuery;
+
+	private final CompressionStatistics compressionStatistics = new CompressionStatistics();
+
+	private final Map<HttpResponse, HttpResourceRegistry.Resources> leases = new HashMap<HttpResponse, HttpResourceRegistry.Resources>();
+
+	/*
+	 * serializes requests on the connection state; a lock rather than a
+	 * monitor, so that a virtual thread waiting on the server while
+	 * holding it does not pin its carrier thread
+	 */
+	private final Lock lock = new ReentrantLock();
+
+	private HttpResourceRegistry.Resources resources;
 
 	private String inbox;
 
@@ -252,6 +307,17 @@ class Exchange2003Connection implements ExchangeConnection {
 				throw new NumberFormatException("Invalid limit specified: " + limitString);
 			}
 		}
+		int offset = 0;
+		String offsetString = session.getProperty(OFFSET_PROPERTY);
+		if (offsetString != null) {
+			try {
+				offset = Integer.parseInt(offsetString);
+			} catch (NumberFormatException ex) {
+				throw new NumberFormatException("Invalid offset specified: " + offsetString);
+			}
+		}
+		String orderBy = session.getProperty(ORDER_BY_PROPERTY);
+		String order = session.getProperty(ORDER_PROPERTY);
 		try {
 			URL url = new URL(host);
 			// if parsing succeeded, then strip out the components and use
@@ -285,46 +351,33 @@ class Exchange2003Connection implements ExchangeConnection {
 			}
 		}
 
-		int index = username.indexOf(':');
-		if (index != -1) {
-			mailbox = username.substring(index + 1);
-			username = username.substring(0, index);
-			String mailboxOptions = null;
-			index = mailbox.indexOf('[');
-			if (index != -1) {
-				mailboxOptions = mailbox.substring(index + 1);
-				mailboxOptions = mailboxOptions.substring(0, mailboxOptions.indexOf(']'));
-				mailbox = mailbox.substring(0, index);
-			}
-			if (mailboxOptions != null) {
-				Properties props = null;
-				try {
-					props = parseOptions(mailboxOptions);
-				} catch (Exception ex) {
-					throw new IllegalArgumentException("Unable to parse mailbox options: " + ex.getMessage(), ex);
-				}
-				String value = props.getProperty("unfiltered");
+		MailboxSpec spec = MailboxSpec.parse(username);
+		if (spec.getMailbox() != null) {
+			mailbox = spec.getMailbox();
+			username = spec.getUsername();
+			if (spec.hasOptions()) {
+				String value = spec.getOption("unfiltered");
 				if (value != null)
 					unfiltered = Boolean.parseBoolean(value);
 
 				/* Mirco */
-				value = props.getProperty("filterLastCheck");
+				value = spec.getOption("filterLastCheck");
 				if (value != null)
 					filterLastCheck = value;
-				value = props.getProperty("filterTo");
+				value = spec.getOption("filterTo");
 				if (value != null)
 					filterTo = value;
-				value = props.getProperty("filterFrom");
+				value = spec.getOption("filterFrom");
 				if (value != null)
 					filterFrom = value;
-				value = props.getProperty("filterNotFrom");
+				value = spec.getOption("filterNotFrom");
 				if (value != null)
 					filterNotFrom = value;
 
-				value = props.getProperty("delete");
+				value = spec.getOption("delete");
 				if (value != null)
 					delete = Boolean.parseBoolean(value);
-				value = props.getProperty("limit");
+				value = spec.getOption("limit");
 				if (value != null) {
 					try {
 						limit = Integer.parseInt(value);
@@ -332,6 +385,20 @@ class Exchange2003Connection implements ExchangeConnection {
 						throw new NumberFormatException("Invalid limit specified: " + value);
 					}
 				}
+				value = spec.getOption("offset");
+				if (value != null) {
+					try {
+						offset = Integer.parseInt(value);
+					} catch (NumberFormatException ex) {
+						throw new NumberFormatException("Invalid offset specified: " + value);
+					}
+				}
+				value = spec.getOption("orderBy");
+				if (value != null)
+					orderBy = value;
+				value = spec.getOption("order");
+				if (value != null)
+					order = value;
 			} else if (session.getDebug()) {
 				session.getDebugOut().println("No mailbox options specified; " + "using explicit limit, unfiltered, and delete.");
 			}
@@ -356,6 +423,103 @@ class Exchange2003Connection implements ExchangeConnection {
 				throw new NumberFormatException("Invalid connection timeout value: " + timeoutString);
 			}
 		}
+		int maxConnections = DEFAULT_MAX_CONNECTIONS;
+		String poolString = session.getProperty(POOL_MAX_CONNECTIONS_PROPERTY);
+		if (poolString != null) {
+			try {
+				maxConnections = Integer.parseInt(poolString);
+			} catch (NumberFormatException ex) {
+				throw new NumberFormatException("Invalid maximum connections value: " + poolString);
+			}
+		}
+		int maxPerMailbox = -1;
+		poolString = session.getProperty(POOL_MAX_PER_MAILBOX_PROPERTY);
+		if (poolString != null) {
+			try {
+				maxPerMailbox = Integer.parseInt(poolString);
+			} catch (NumberFormatException ex) {
+				throw new NumberFormatException("Invalid maximum connections per mailbox value: " + poolString);
+			}
+		}
+		boolean streamContent = Boolean.parseBoolean(session.getProperty(STREAM_PROPERTY));
+		String compressionString = session.getProperty(COMPRESSION_PROPERTY);
+		boolean compression = (compressionString == null) || Boolean.parseBoolean(compressionString);
+		int downloadRetries = DEFAULT_DOWNLOAD_RETRIES;
+		String downloadString = session.getProperty(DOWNLOAD_RETRIES_PROPERTY);
+		if (downloadString != null) {
+			try {
+				downloadRetries = Integer.parseInt(downloadString);
+			} catch (NumberFormatException ex) {
+				throw new NumberFormatException("Invalid download retries value: " + downloadString);
+			}
+		}
+		int downloadParallel = 1;
+		downloadString = session.getProperty(DOWNLOAD_PARALLEL_PROPERTY);
+		if (downloadString != null) {
+			try {
+				downloadParallel = Integer.parseInt(downloadString);
+			} catch (NumberFormatException ex) {
+				throw new NumberFormatException("Invalid parallel downloads value: " + downloadString);
+			}
+		}
+		long parallelThreshold = DEFAULT_PARALLEL_THRESHOLD;
+		downloadString = session.getProperty(DOWNLOAD_PARALLEL_THRESHOLD_PROPERTY);
+		if (downloadString != null) {
+			try {
+				parallelThreshold = Long.parseLong(downloadString);
+			} catch (NumberFormatException ex) {
+				throw new NumberFormatException("Invalid parallel download threshold: " + downloadString);
+			}
+		}
+		String httpTransport = session.getProperty(HTTP_TRANSPORT_PROPERTY);
+		if (httpTransport == null)
+			httpTransport = HttpClientTransport.NAME;
+		if (!HttpClientTransport.NAME.equals(httpTransport) && !SocketTransport.NAME.equals(httpTransport))
+			throw new IllegalArgumentException("Invalid HTTP transport specified: " + httpTransport);
+		int hedgePercentile = -1;
+		int hedgeBudget = DEFAULT_HEDGE_BUDGET;
+		if (Boolean.parseBoolean(session.getProperty(HEDGE_PROPERTY))) {
+			hedgePercentile = DEFAULT_HEDGE_PERCENTILE;
+			String hedgeString = session.getProperty(HEDGE_PERCENTILE_PROPERTY);
+			if (hedgeString != null) {
+				try {
+					hedgePercentile = Integer.parseInt(hedgeString);
+				} catch (NumberFormatException ex) {
+					throw new NumberFormatException("Invalid hedge percentile: " + hedgeString);
+				}
+				if (hedgePercentile < 1 || hedgePercentile > 99)
+					throw new IllegalArgumentException("Invalid hedge percentile: " + hedgeString);
+			}
+			hedgeString = session.getProperty(HEDGE_BUDGET_PROPERTY);
+			if (hedgeString != null) {
+				try {
+					hedgeBudget = Integer.parseInt(hedgeString);
+				} catch (NumberFormatException ex) {
+					throw new NumberFormatException("Invalid hedge budget: " + hedgeString);
+				}
+				if (hedgeBudget < 0 || hedgeBudget > 100)
+					throw new IllegalArgumentException("Invalid hedge budget: " + hedgeString);
+			}
+		}
+		int serverConcurrency = DEFAULT_SERVER_CONCURRENCY;
+		String throttleString = session.getProperty(THROTTLE_SERVER_PROPERTY);
+		if (throttleString != null) {
+			try {
+				serverConcurrency = Integer.parseInt(throttleString);
+			} catch (NumberFormatException ex) {
+				throw new NumberFormatException("Invalid server concurrency: " + throttleString);
+			}
+		}
+		int throttleRetries = DEFAULT_RETRIES;
+		throttleString = session.getProperty(THROTTLE_RETRIES_PROPERTY);
+		if (throttleString != null) {
+			try {
+				throttleRetries = Integer.parseInt(throttleString);
+			} catch (NumberFormatException ex) {
+				throw new NumberFormatException("Invalid retry count: " + throttleString);
+			}
+		}
+		SpoolManager spool = SpoolManager.getInstance(session);
 		InetAddress localAddress = null;
 		String localAddressString = session.getProperty(prefix + LOCAL_ADDRESS_PROPERTY);
 		if (localAddressString != null) {
@@ -368,6 +532,10 @@ class Exchange2003Connection implements ExchangeConnection {
 		if (mailbox == null) {
 			throw new IllegalStateException("No mailbox specified.");
 		}
+		if (offset < 0) {
+			throw new IllegalArgumentException("Invalid offset specified: " + offset);
+		}
+		boolean descending = isDescending(order);
 		if (session.getDebug()) {
 			PrintStream debugStream = session.getDebugOut();
 			debugStream.println("Server:\t" + server);
@@ -376,6 +544,9 @@ class Exchange2003Connection implements ExchangeConnection {
 			debugStream.println("Mailbox:\t" + mailbox);
 			debugStream.print("Options:\t");
 			debugStream.print((limit > 0) ? "Message Limit = " + limit : "Unlimited Messages");
+			if (offset > 0)
+				debugStream.print("; Offset = " + offset);
+			debugStream.print("; Ordered by " + ListingQuery.getSortProperty(orderBy) + (descending ? " descending" : " ascending"));
 			debugStream.print(unfiltered ? "; Unfiltered" : "; Filtered to Unread");
 			debugStream.print(filterLastCheck == null || "".equals(filterLastCheck) ? "; NO filterLastCheck" : "; Filtered after " + filterLastCheck);
 			debugStream.print(filterFrom == null || "".equals(filterFrom) ? "; NO filterFromDomain" : "; Filtered from " + filterFrom);
@@ -388,11 +559,25 @@ class Exchange2003Connection implements ExchangeConnection {
 			if (connectionTimeout > 0) {
 				debugStream.println("Connection timeout:\t" + connectionTimeout + " ms");
 			}
+			debugStream.println("HTTP transport:\t" + httpTransport + ((hedgePercentile > 0) ? ", hedged after p" + hedgePercentile + " up to " + hedgeBudget + "%" : ""));
+			debugStream.println("Connection pool:\t" + maxConnections + " connections" + ((maxPerMailbox > 0) ? ", " + maxPerMailbox + " per mailbox" : ""));
+			debugStream.println("Server concurrency:\t" + serverConcurrency + ", " + throttleRetries + " retries when busy");
+			debugStream.println("Downloads:\t" + (streamContent ? "streamed, " : "") + downloadRetries + " resumes" + ((downloadParallel > 1) ? ", " + downloadParallel + " ranges from " + parallelThreshold + " bytes" : ""));
+			debugStream.println("Spool:\t" + spool.getDirectory() + ((spool.getQuota() >= 0) ? ", " + spool.getQuota() + " bytes" : ""));
+			debugStream.println("Compression:\t" + (compression ? ContentCoding.ACCEPT_ENCODING : "disabled"));
 		}
-		return new Exchange2003Connection(session, server, mailbox, username, password, timeout, connectionTimeout, localAddress, unfiltered, delete, limit, filterLastCheck, filterFrom, filterNotFrom, filterTo);
+		return new Exchange2003Connection(session, server, mailbox, username, password, timeout, connectionTimeout, localAddress, maxConnections, maxPerMailbox, streamContent, compression, httpTransport, hedgePercentile, hedgeBudget, serverConcurrency, throttleRetries, spool, downloadRetries, downloadParallel, parallelThreshold, unfiltered, delete, limit, offset, orderBy, descending, filterLastCheck, filterFrom, filterNotFrom, filterTo);
+	}
+
+	private static boolean isDescending(String order) {
+		if (order == null || "".equals(order) || "ascending".equalsIgnoreCase(order) || "asc".equalsIgnoreCase(order))
+			return false;
+		if ("descending".equalsIgnoreCase(order) || "desc".equalsIgnoreCase(order))
+			return true;
+		throw new IllegalArgumentException("Invalid order specified: " + order);
 	}
 
-	private Exchange2003Connection(Session session, String server, String mailbox, String username, String password, int timeout, int connectionTimeout, InetAddress localAddress, boolean unfiltered, boolean delete, int limit, String filterLastCheck, String filterFrom, String filterNotFrom, String filterTo) {
+	private Exchange2003Connection(Session session, String server, String mailbox, String username, String password, int timeout, int connectionTimeout, InetAddress localAddress, int maxConnections, int maxPerMailbox, boolean streamContent, boolean compression, String httpTransport, int hedgePercentile, int hedgeBudget, int serverConcurrency, int throttleRetries, SpoolManager spool, int downloadRetries, int downloadParallel, long parallelThreshold, boolean unfiltered, boolean delete, int limit, int offset, String orderBy, boolean descending, String filterLastCheck, String filterFrom, String filterNotFrom, String filterTo) {
 		this.session = session;
 		this.server = server;
 		this.mailbox = mailbox;
@@ -401,18 +586,34 @@ class Exchange2003Connection implements ExchangeConnection {
 		this.timeout = timeout;
 		this.connectionTimeout = connectionTimeout;
 		this.localAddress = localAddress;
+		this.maxConnections = maxConnections;
+		this.maxPerMailbox = maxPerMailbox;
+		this.streamContent = streamContent;
+		this.compression = compression;
+		this.httpTransport = httpTransport;
+		this.hedgePercentile = hedgePercentile;
+		this.hedgeBudget = hedgeBudget;
+		this.spool = spool;
+		this.serverLimiter = ConcurrencyLimiter.getInstance(server, serverConcurrency);
+		this.throttleRetries = throttleRetries;
+		this.downloadRetries = downloadRetries;
+		this.downloadParallel = downloadParallel;
+		this.parallelThreshold = parallelThreshold;
 		this.unfiltered = unfiltered;
 		this.delete = delete;
 		this.limit = limit;
+		this.offset = offset;
 		/* Mirco */
 		this.filterLastCheck = filterLastCheck;
 		this.filterFrom = filterFrom;
 		this.filterNotFrom = filterNotFrom;
 		this.filterTo = filterTo;
+		this.listingQuery = new ListingQuery(unfiltered, filterLastCheck, filterFrom, filterNotFrom, filterTo, orderBy, descending);
 	}
 
 	public void connect() throws Exception {
-		synchronized (this) {
+		lock.lock();
+		try {
 			inbox = null;
 			drafts = null;
 			submissionUri = null;
@@ -421,31 +622,134 @@ class Exchange2003Connection implements ExchangeConnection {
 			try {
 				signOn();
 			} catch (Exception ex) {
-				inbox = null;
-				drafts = null;
-				submissionUri = null;
-				sentitems = null;
-				outbox = null;
+				// Give back the pool leased for the sign-on.
+				close();
 				throw ex;
 			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public void close() throws Exception {
+		lock.lock();
+		try {
+			inbox = null;
+			drafts = null;
+			submissionUri = null;
+			sentitems = null;
+			outbox = null;
+			if (resources != null) {
+				HttpResourceRegistry.release(resources, mailbox);
+				resources = null;
+			}
+		} finally {
+			lock.unlock();
 		}
 	}
 
 	public List<String> getMessages(String name) throws Exception {
-		final List<String> messages = new ArrayList<String>();
+		return listMessages(name, null, 0, limit);
+	}
 
-		/* by default we list inbox */
-		String currentFolder = inbox;
-		if (name.equalsIgnoreCase(ExchangeFolder.INBOX)) {
-			currentFolder = inbox;
-		} else if (name.equalsIgnoreCase(ExchangeFolder.SENTITEMS)) {
-			currentFolder = sentitems;
-		} else if (name.equalsIgnoreCase(ExchangeFolder.OUTBOX)) {
-			currentFolder = outbox;
-		} else if (name.equalsIgnoreCase(ExchangeFolder.DRAFT)) {
-			currentFolder = drafts;
+	public List<String> getMessages(String name, int start, int count) throws Exception {
+		if (limit > 0)
+			count = Math.min(count, limit - start);
+		if (start < 0 || count <= 0)
+			return Collections.emptyList();
+		return listMessages(name, null, start, count);
+	}
+
+	/**
+	 * Counts the listing from the folder's <code>DAV:visiblecount</code> or,
+	 * when filtered to unread messages, <code>httpmail:unreadcount</code>.
+	 * Any other filter can only be evaluated by listing the folder.
+	 */
+	public int getMessageCount(String name) throws Exception {
+		if (!isEmpty(filterLastCheck) || !isEmpty(filterFrom) || !isEmpty(filterNotFrom) || !isEmpty(filterTo))
+			return -1;
+		FolderStatistics statistics = getStatistics(name);
+		long count = Math.max(0, (unfiltered ? statistics.getMessageCount() : statistics.getUnreadCount()) - offset);
+		if (limit > 0)
+			count = Math.min(count, limit);
+		return (int) count;
+	}
+
+	/**
+	 * Reads the folder's <code>DAV:visiblecount</code> and
+	 * <code>httpmail:unreadcount</code> in a single PROPFIND.
+	 */
+	public FolderStatistics getStatistics(String name) throws Exception {
+		lock.lock();
+		try {
+			if (!isConnected()) {
+				throw new IllegalStateException("Not connected.");
+			}
+			String folder = getFolderUrl(name);
+			final int[] counts = new int[] { -1, -1 };
+			HttpRequest op = new HttpRequest(PROPFIND_METHOD, folder);
+			op.setHeader("Content-Type", XML_CONTENT_TYPE);
+			op.setHeader("Depth", "0");
+			op.setHeader("Brief", "t");
+			op.setEntity(createFolderCountsEntity(), XML_CONTENT_TYPE);
+			HttpResponse response = execute(op);
+			InputStream stream = null;
+			try {
+				int status = response.getStatus();
+				stream = getResponseBody(response);
+				if (status >= 300) {
+					throw new IllegalStateException("Unable to obtain " + folder + ".");
+				}
+				SAXParserFactory spf = SAXParserFactory.newInstance();
+				spf.setNamespaceAware(true);
+				SAXParser parser = spf.newSAXParser();
+				parser.parse(stream, new DefaultHandler() {
+					private final StringBuilder content = new StringBuilder();
+
+					public void startElement(String uri, String localName, String qName, Attributes attributes) throws SAXException {
+						content.setLength(0);
+					}
+
+					public void characters(char[] ch, int start, int length) throws SAXException {
+						content.append(ch, start, length);
+					}
+
+					public void endElement(String uri, String localName, String qName) throws SAXException {
+						if (DAV_NAMESPACE.equals(uri) && "visiblecount".equals(localName)) {
+							counts[0] = Integer.parseInt(content.toString().trim());
+						} else if (HTTPMAIL_NAMESPACE.equals(uri) && "unreadcount".equals(localName)) {
+							counts[1] = Integer.parseInt(content.toString().trim());
+						}
+					}
+				});
+				stream.close();
+				stream = null;
+			} finally {
+				release(response, stream);
+			}
+			if (counts[0] < 0 || counts[1] < 0) {
+				throw new IllegalStateException("Unable to count " + folder + ".");
+			}
+			return new FolderStatistics(counts[0], counts[1]);
+		} finally {
+			lock.unlock();
 		}
+	}
+
+	public CompressionStatistics getCompressionStatistics() {
+		return compressionStatistics;
+	}
 
+	public List<String> search(String name, String condition) throws Exception {
+		return listMessages(name, condition, 0, -1);
+	}
+
+	/**
+	 * Lists the given window of the folder, <code>start</code> being relative
+	 * to the configured offset; a negative count lists to the end.
+	 */
+	private List<String> listMessages(String name, String condition, int start, int count) throws Exception {
+		final List<String> messages = new ArrayList<String>();
 		listFolder(new DefaultHandler() {
 			private final StringBuilder content = new StringBuilder();
 
@@ -464,7 +768,7 @@ class Exchange2003Connection implements ExchangeConnection {
 					return;
 				messages.add(content.toString());
 			}
-		}, currentFolder);
+		}, getFolderUrl(name), condition, start, count);
 		return Collections.unmodifiableList(messages);
 	}
 
@@ -474,149 +778,81 @@ class Exchange2003Connection implements ExchangeConnection {
 			bccRecipients = null;
 		}
 		message.setRecipients(Message.RecipientType.BCC, (Address[]) null);
-		synchronized (this) {
+		lock.lock();
+		try {
 			if (!isConnected()) {
 				throw new IllegalStateException("Not connected.");
 			}
 			if (!canSend()) {
 				throw new IllegalStateException("Unable to access outbox.");
 			}
-			HttpClient client = getClient();
 			String path = drafts;
 			if (!path.endsWith("/"))
 				path += "/";
 			String messageName = generateMessageName();
 			path += escape(messageName + ".eml");
-			PutMethod op = new PutMethod(path);
-			op.setRequestHeader("Content-Type", MESSAGE_CONTENT_TYPE);
-			op.setRequestEntity(createMessageEntity(message));
+			HttpRequest op = new HttpRequest("PUT", path);
+			op.setHeader("Content-Type", MESSAGE_CONTENT_TYPE);
+			File content = spoolMessage(message);
+			op.setEntity(content, MESSAGE_CONTENT_TYPE);
+			HttpResponse response;
+			try {
+				response = execute(op);
+			} catch (Exception ex) {
+				spool.release(content);
+				throw ex;
+			}
 			InputStream stream = null;
 			try {
-				int status = client.executeMethod(op);
-				stream = op.getResponseBodyAsStream();
+				int status = response.getStatus();
+				stream = getResponseBody(response);
 				if (status >= 300) {
 					throw new IllegalStateException("Unable to post message to draft folder.");
 				}
 			} finally {
-				try {
-					if (stream != null) {
-						byte[] buf = new byte[65536];
-						try {
-							if (session.getDebug()) {
-								PrintStream log = session.getDebugOut();
-								log.println("Response Body:");
-								int count;
-								while ((count = stream.read(buf, 0, 65536)) != -1) {
-									log.write(buf, 0, count);
-								}
-								log.flush();
-								log.println();
-							} else {
-								while (stream.read(buf, 0, 65536) != -1)
-									;
-							}
-						} catch (Exception ignore) {
-						} finally {
-							try {
-								stream.close();
-							} catch (Exception ignore2) {
-							}
-						}
-					}
-				} finally {
-					op.releaseConnection();
-				}
+				release(response, stream);
+				spool.release(content);
 			}
 			if (bccRecipients != null) {
-				ExchangeMethod patch = new ExchangeMethod(PROPPATCH_METHOD, path);
+				HttpRequest patch = new HttpRequest(PROPPATCH_METHOD, path);
 				patch.setHeader("Content-Type", XML_CONTENT_TYPE);
 				patch.addHeader("Depth", "0");
 				patch.addHeader("Translate", "f");
 				patch.addHeader("Brief", "t");
-				patch.setRequestEntity(createAddBccEntity(bccRecipients));
+				patch.setEntity(createAddBccEntity(bccRecipients), XML_CONTENT_TYPE);
+				response = execute(patch);
 				stream = null;
 				try {
-					int status = client.executeMethod(patch);
-					stream = patch.getResponseBodyAsStream();
+					int status = response.getStatus();
+					stream = getResponseBody(response);
 					if (status >= 300) {
 						throw new IllegalStateException("Unable to add BCC recipients. Status: " + status);
 					}
 				} finally {
-					try {
-						if (stream != null) {
-							byte[] buf = new byte[65536];
-							try {
-								if (session.getDebug()) {
-									PrintStream log = session.getDebugOut();
-									log.println("Response Body:");
-									int count;
-									while ((count = stream.read(buf, 0, 65536)) != -1) {
-										log.write(buf, 0, count);
-									}
-									log.flush();
-									log.println();
-								} else {
-									while (stream.read(buf, 0, 65536) != -1)
-										;
-								}
-							} catch (Exception ignore) {
-							} finally {
-								try {
-									stream.close();
-								} catch (Exception ignore2) {
-								}
-							}
-						}
-					} finally {
-						patch.releaseConnection();
-					}
+					release(response, stream);
 				}
 			}
-			ExchangeMethod move = new ExchangeMethod(MOVE_METHOD, path);
+			HttpRequest move = new HttpRequest(MOVE_METHOD, path);
 			String destination = submissionUri;
 			if (!destination.endsWith("/"))
 				destination += "/";
 			move.setHeader("Destination", destination);
+			response = execute(move);
 			stream = null;
 			try {
-				int status = client.executeMethod(move);
-				stream = move.getResponseBodyAsStream();
+				int status = response.getStatus();
+				stream = getResponseBody(response);
 				if (status >= 300) {
 					throw new IllegalStateException("Unable to move message to outbox: Status " + status);
 				}
 			} finally {
-				try {
-					if (stream != null) {
-						byte[] buf = new byte[65536];
-						try {
-							if (session.getDebug()) {
-								PrintStream log = session.getDebugOut();
-								log.println("Response Body:");
-								int count;
-								while ((count = stream.read(buf, 0, 65536)) != -1) {
-									log.write(buf, 0, count);
-								}
-								log.flush();
-								log.println();
-							} else {
-								while (stream.read(buf, 0, 65536) != -1)
-									;
-							}
-						} catch (Exception ignore) {
-						} finally {
-							try {
-								stream.close();
-							} catch (Exception ignore2) {
-							}
-						}
-					}
-				} finally {
-					move.releaseConnection();
-				}
+				release(response, stream);
 			}
 			if (session.getDebug()) {
 				session.getDebugOut().println("Sent successfully.");
 			}
+		} finally {
+			lock.unlock();
 		}
 	}
 
@@ -628,175 +864,289 @@ class Exchange2003Connection implements ExchangeConnection {
 		}
 	}
 
+	/**
+	 * Downloads the message outside the connection lock, so that messages
+	 * read ahead of the caller download concurrently.
+	 */
 	public InputStream getInputStream(ExchangeMessage message) throws Exception {
-		synchronized (this) {
+		final HttpResourceRegistry.Resources resources;
+		final HttpTransport transport;
+		lock.lock();
+		try {
+			if (!isConnected()) {
+				throw new IllegalStateException("Not connected.");
+			}
+			resources = getResources();
+			transport = getTransport(resources);
+		} finally {
+			lock.unlock();
+		}
+		if (streamContent)
+			return openStream(message);
+		final String url = escape(message.getUrl());
+		final File tempFile = spool.create();
+		try {
+			new ResumableDownload(tempFile, downloadRetries, downloadParallel, parallelThreshold) {
+				protected HttpRequest createRequest() {
+					HttpRequest op = new HttpRequest("GET", url);
+					op.setHeader("Translate", "F");
+					return op;
+				}
+
+				protected HttpResponse execute(HttpRequest op) throws Exception {
+					return Exchange2003Connection.this.execute(resources, transport, op);
+				}
+
+				protected InputStream getResponseBody(HttpResponse response) throws IOException {
+					return Exchange2003Connection.this.getResponseBody(response);
+				}
+
+				protected void release(HttpResponse response, InputStream stream) {
+					Exchange2003Connection.this.release(response, stream);
+				}
+			}.run();
+			return new CachedMessageStream(tempFile, spool, (ExchangeFolder) message.getFolder());
+		} finally {
+			spool.release(tempFile);
+		}
+	}
+
+	/**
+	 * Returns the message as it arrives from the server, without spooling
+	 * it; the connection is held until the stream is closed.
+	 */
+	private InputStream openStream(ExchangeMessage message) throws Exception {
+		HttpRequest op = new HttpRequest("GET", escape(message.getUrl()));
+		op.setHeader("Translate", "F");
+		HttpResponse response = execute(op);
+		InputStream stream = null;
+		InputStream result = null;
+		try {
+			int status = response.getStatus();
+			stream = getResponseBody(response);
+			if (status >= 300) {
+				throw new IllegalStateException("Unable to obtain message: " + status);
+			}
+			result = new ResponseStream(response, stream, (ExchangeFolder) message.getFolder()) {
+				protected void release(HttpResponse response) {
+					Exchange2003Connection.this.release(response, null);
+				}
+			};
+			unlease(response);
+			return result;
+		} finally {
+			if (result == null)
+				release(response, stream);
+		}
+	}
+
+	/**
+	 * Lists the attachments of the message with <code>X-MS-ENUMATTS</code>,
+	 * which reports the URL, name, size and type of each without
+	 * transferring any content.
+	 */
+	public List<ExchangeAttachment> getAttachments(final ExchangeMessage message) throws Exception {
+		lock.lock();
+		try {
 			if (!isConnected()) {
 				throw new IllegalStateException("Not connected.");
 			}
-			HttpClient client = getClient();
-			GetMethod op = new GetMethod(escape(message.getUrl()));
-			op.setRequestHeader("Translate", "F");
+			final List<ExchangeAttachment> attachments = new ArrayList<ExchangeAttachment>();
+			HttpRequest op = new HttpRequest(ENUMATTS_METHOD, escape(message.getUrl()));
+			op.setHeader("Depth", "1");
+			op.setHeader("Brief", "t");
+			HttpResponse response = execute(op);
 			InputStream stream = null;
 			try {
-				int status = client.executeMethod(op);
-				stream = op.getResponseBodyAsStream();
+				int status = response.getStatus();
+				stream = getResponseBody(response);
 				if (status >= 300) {
-					throw new IllegalStateException("Unable to obtain inbox: " + status);
-				}
-				final File tempFile = File.createTempFile("exmail", null, null);
-				tempFile.deleteOnExit();
-				OutputStream output = new FileOutputStream(tempFile);
-				byte[] buf = new byte[65536];
-				int count;
-				while ((count = stream.read(buf, 0, 65536)) != -1) {
-					output.write(buf, 0, count);
+					throw new IllegalStateException("Unable to list attachments: " + status);
 				}
-				output.flush();
-				output.close();
-				stream.close();
-				stream = null;
-				return new CachedMessageStream(tempFile, (ExchangeFolder) message.getFolder());
-			} finally {
-				try {
-					if (stream != null) {
-						byte[] buf = new byte[65536];
-						try {
-							if (session.getDebug()) {
-								PrintStream log = session.getDebugOut();
-								log.println("Response Body:");
-								int count;
-								while ((count = stream.read(buf, 0, 65536)) != -1) {
-									log.write(buf, 0, count);
-								}
-								log.flush();
-								log.println();
-							} else {
-								while (stream.read(buf, 0, 65536) != -1)
-									;
+				SAXParserFactory spf = SAXParserFactory.newInstance();
+				spf.setNamespaceAware(true);
+				SAXParser parser = spf.newSAXParser();
+				parser.parse(stream, new DefaultHandler() {
+					private final StringBuilder content = new StringBuilder();
+
+					private String href;
+
+					private String fileName;
+
+					private String longFileName;
+
+					private String contentType;
+
+					private long size;
+
+					public void startElement(String uri, String localName, String qName, Attributes attributes) throws SAXException {
+						content.setLength(0);
+						if (DAV_NAMESPACE.equals(uri) && "response".equals(localName)) {
+							href = null;
+							fileName = null;
+							longFileName = null;
+							contentType = null;
+							size = -1;
+						}
+					}
+
+					public void characters(char[] ch, int start, int length) throws SAXException {
+						content.append(ch, start, length);
+					}
+
+					public void endElement(String uri, String localName, String qName) throws SAXException {
+						String value = content.toString().trim();
+						if (DAV_NAMESPACE.equals(uri)) {
+							if ("href".equals(localName)) {
+								href = value;
+							} else if ("response".equals(localName) && href != null) {
+								String name = (longFileName != null) ? longFileName : fileName;
+								if (name == null)
+									name = href.substring(href.lastIndexOf('/') + 1);
+								attachments.add(new ExchangeAttachment(message, href, name, contentType, size));
 							}
-						} catch (Exception ignore) {
-						} finally {
-							try {
-								stream.close();
-							} catch (Exception ignore2) {
+						} else if (HTTPMAIL_NAMESPACE.equals(uri) && "attachmentfilename".equals(localName)) {
+							fileName = value;
+						} else if (PROPTAG_NAMESPACE.equals(uri)) {
+							if (ATTACH_LONG_FILENAME.equals(localName)) {
+								longFileName = value;
+							} else if (ATTACH_MIME_TAG.equals(localName)) {
+								contentType = value;
+							} else if (ATTACH_SIZE.equals(localName)) {
+								try {
+									size = Long.parseLong(value);
+								} catch (NumberFormatException ignore) {
+								}
 							}
 						}
 					}
-				} finally {
-					op.releaseConnection();
+				});
+				stream.close();
+				stream = null;
+			} finally {
+				release(response, stream);
+			}
+			return attachments;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the content of the attachment as it arrives from the server;
+	 * the connection is held until the stream is closed.
+	 */
+	public InputStream getAttachmentStream(ExchangeAttachment attachment) throws Exception {
+		lock.lock();
+		try {
+			if (!isConnected()) {
+				throw new IllegalStateException("Not connected.");
+			}
+			HttpRequest op = new HttpRequest("GET", escape(attachment.getUrl()));
+			HttpResponse response = execute(op);
+			InputStream stream = null;
+			InputStream result = null;
+			try {
+				int status = response.getStatus();
+				stream = getResponseBody(response);
+				if (status >= 300) {
+					throw new IllegalStateException("Unable to obtain attachment: " + status);
 				}
+				result = new ResponseStream(response, stream, (ExchangeFolder) attachment.getMessage().getFolder()) {
+					protected void release(HttpResponse response) {
+						Exchange2003Connection.this.release(response, null);
+					}
+				};
+				unlease(response);
+				return result;
+			} finally {
+				if (result == null)
+					release(response, stream);
 			}
+		} finally {
+			lock.unlock();
 		}
 	}
 
 	private void doDelete(List<ExchangeMessage> messages) throws Exception {
-		synchronized (this) {
+		lock.lock();
+		try {
 			if (!isConnected()) {
 				throw new IllegalStateException("Not connected.");
 			}
-			HttpClient client = getClient();
 			String path = inbox;
 			if (!path.endsWith("/"))
 				path += "/";
-			ExchangeMethod op = new ExchangeMethod(BDELETE_METHOD, path);
+			HttpRequest op = new HttpRequest(BDELETE_METHOD, path);
 			op.setHeader("Content-Type", XML_CONTENT_TYPE);
 			op.addHeader("If-Match", "*");
 			op.addHeader("Brief", "t");
-			op.setRequestEntity(createDeleteEntity(messages));
+			op.setEntity(createDeleteEntity(messages), XML_CONTENT_TYPE);
+			HttpResponse response = execute(op);
 			InputStream stream = null;
 			try {
-				int status = client.executeMethod(op);
-				stream = op.getResponseBodyAsStream();
+				int status = response.getStatus();
+				stream = getResponseBody(response);
 				if (status >= 300) {
 					throw new IllegalStateException("Unable to delete messages.");
 				}
 			} finally {
-				try {
-					if (stream != null) {
-						byte[] buf = new byte[65536];
-						try {
-							if (session.getDebug()) {
-								PrintStream log = session.getDebugOut();
-								log.println("Response Body:");
-								int count;
-								while ((count = stream.read(buf, 0, 65536)) != -1) {
-									log.write(buf, 0, count);
-								}
-								log.flush();
-								log.println();
-							} else {
-								while (stream.read(buf, 0, 65536) != -1)
-									;
-							}
-						} catch (Exception ignore) {
-						} finally {
-							try {
-								stream.close();
-							} catch (Exception ignore2) {
-							}
-						}
-					}
-				} finally {
-					op.releaseConnection();
-				}
+				release(response, stream);
 			}
+		} finally {
+			lock.unlock();
 		}
 	}
 
 	private void doMarkRead(List<ExchangeMessage> messages) throws Exception {
-		synchronized (this) {
+		lock.lock();
+		try {
 			if (!isConnected()) {
 				throw new IllegalStateException("Not connected.");
 			}
-			HttpClient client = getClient();
 			String path = inbox;
 			if (!path.endsWith("/"))
 				path += "/";
-			ExchangeMethod op = new ExchangeMethod(BPROPPATCH_METHOD, path);
+			HttpRequest op = new HttpRequest(BPROPPATCH_METHOD, path);
 			op.setHeader("Content-Type", XML_CONTENT_TYPE);
 			op.addHeader("If-Match", "*");
 			op.addHeader("Brief", "t");
-			op.setRequestEntity(createMarkReadEntity(messages));
+			op.setEntity(createMarkReadEntity(messages), XML_CONTENT_TYPE);
+			HttpResponse response = execute(op);
 			InputStream stream = null;
 			try {
-				int status = client.executeMethod(op);
-				stream = op.getResponseBodyAsStream();
+				int status = response.getStatus();
+				stream = getResponseBody(response);
 				if (status >= 300) {
 					throw new IllegalStateException("Unable to mark messages read.");
 				}
 			} finally {
-				try {
-					if (stream != null) {
-						byte[] buf = new byte[65536];
-						try {
-							if (session.getDebug()) {
-								PrintStream log = session.getDebugOut();
-								log.println("Response Body:");
-								int count;
-								while ((count = stream.read(buf, 0, 65536)) != -1) {
-									log.write(buf, 0, count);
-								}
-								log.flush();
-								log.println();
-							} else {
-								while (stream.read(buf, 0, 65536) != -1)
-									;
-							}
-						} catch (Exception ignore) {
-						} finally {
-							try {
-								stream.close();
-							} catch (Exception ignore2) {
-							}
-						}
-					}
-				} finally {
-					op.releaseConnection();
-				}
+				release(response, stream);
 			}
+		} finally {
+			lock.unlock();
 		}
 	}
 
+	private String getFolderUrl(String name) {
+		/* by default we list inbox */
+		String currentFolder = inbox;
+		if (name.equalsIgnoreCase(ExchangeFolder.INBOX)) {
+			currentFolder = inbox;
+		} else if (name.equalsIgnoreCase(ExchangeFolder.SENTITEMS)) {
+			currentFolder = sentitems;
+		} else if (name.equalsIgnoreCase(ExchangeFolder.OUTBOX)) {
+			currentFolder = outbox;
+		} else if (name.equalsIgnoreCase(ExchangeFolder.DRAFT)) {
+			currentFolder = drafts;
+		}
+		return currentFolder;
+	}
+
+	private static boolean isEmpty(String value) {
+		return (value == null || "".equals(value));
+	}
+
 	private boolean isConnected() {
 		return (inbox != null);
 	}
@@ -805,28 +1155,31 @@ class Exchange2003Connection implements ExchangeConnection {
 		return (drafts != null && submissionUri != null);
 	}
 
-	private void listFolder(DefaultHandler handler, String folder) throws Exception {
-		synchronized (this) {
+	private void listFolder(DefaultHandler handler, String folder, String condition, int start, int count) throws Exception {
+		lock.lock();
+		try {
 			if (!isConnected()) {
 				throw new IllegalStateException("Not connected.");
 			}
-			HttpClient client = getClient();
-			ExchangeMethod op = new ExchangeMethod(SEARCH_METHOD, folder);
+			HttpRequest op = new HttpRequest(SEARCH_METHOD, folder);
 			op.setHeader("Content-Type", XML_CONTENT_TYPE);
-			if (limit > 0)
-				op.setHeader("Range", "rows=0-" + limit);
+			if (condition == null) {
+				// Range rows are zero-based and inclusive
+				int first = offset + start;
+				if (count > 0) {
+					op.setHeader("Range", "rows=" + first + "-" + (first + count - 1));
+				} else if (first > 0) {
+					op.setHeader("Range", "rows=" + first + "-");
+				}
+			}
 			op.setHeader("Brief", "t");
 
-			/* Mirco: Manage of custom query */
-			if ((filterLastCheck == null || "".equals(filterLastCheck)) && (filterFrom == null || "".equals(filterFrom)) && (filterNotFrom == null || "".equals(filterNotFrom)) && (filterTo == null || "".equals(filterTo))) {
-				op.setRequestEntity(unfiltered ? createAllInboxEntity() : createUnreadInboxEntity());
-			} else {
-				op.setRequestEntity(createCustomInboxEntity(unfiltered, filterLastCheck, filterFrom, filterNotFrom, filterTo));
-			}
+			op.setEntity((condition != null) ? listingQuery.getEntity(condition) : listingQuery.getEntity(), XML_CONTENT_TYPE);
+			HttpResponse response = execute(op);
 			InputStream stream = null;
 			try {
-				int status = client.executeMethod(op);
-				stream = op.getResponseBodyAsStream();
+				int status = response.getStatus();
+				stream = getResponseBody(response);
 				if (status >= 300) {
 					throw new IllegalStateException("Unable to obtain " + folder + ".");
 				}
@@ -837,35 +1190,10 @@ class Exchange2003Connection implements ExchangeConnection {
 				stream.close();
 				stream = null;
 			} finally {
-				try {
-					if (stream != null) {
-						byte[] buf = new byte[65536];
-						try {
-							if (session.getDebug()) {
-								PrintStream log = session.getDebugOut();
-								log.println("Response Body:");
-								int count;
-								while ((count = stream.read(buf, 0, 65536)) != -1) {
-									log.write(buf, 0, count);
-								}
-								log.flush();
-								log.println();
-							} else {
-								while (stream.read(buf, 0, 65536) != -1)
-									;
-							}
-						} catch (Exception ignore) {
-						} finally {
-							try {
-								stream.close();
-							} catch (Exception ignore2) {
-							}
-						}
-					}
-				} finally {
-					op.releaseConnection();
-				}
+				release(response, stream);
 			}
+		} finally {
+			lock.unlock();
 		}
 	}
 
@@ -875,16 +1203,16 @@ class Exchange2003Connection implements ExchangeConnection {
 		submissionUri = null;
 		sentitems = null;
 		outbox = null;
-		HttpClient client = getClient();
-		ExchangeMethod op = new ExchangeMethod(PROPFIND_METHOD, server + "/exchange/" + mailbox);
+		HttpRequest op = new HttpRequest(PROPFIND_METHOD, server + "/exchange/" + mailbox);
 		op.setHeader("Content-Type", XML_CONTENT_TYPE);
 		op.setHeader("Depth", "0");
 		op.setHeader("Brief", "t");
-		op.setRequestEntity(createFindInboxEntity());
+		op.setEntity(createFindInboxEntity(), XML_CONTENT_TYPE);
+		HttpResponse response = execute(op);
 		InputStream stream = null;
 		try {
-			int status = client.executeMethod(op);
-			stream = op.getResponseBodyAsStream();
+			int status = response.getStatus();
+			stream = getResponseBody(response);
 			if (status >= 300) {
 				throw new IllegalStateException("Unable to obtain inbox.");
 			}
@@ -921,79 +1249,150 @@ class Exchange2003Connection implements ExchangeConnection {
 			stream.close();
 			stream = null;
 		} finally {
+			release(response, stream);
+		}
+	}
+
+	public ExecutorService getExecutor() {
+		return getResources().getExecutor();
+	}
+
+	private HttpTransport getTransport(HttpResourceRegistry.Resources resources) throws IOException {
+		if (hedgePercentile > 0)
+			return resources.getHedgedTransport(httpTransport, hedgePercentile, hedgeBudget);
+		return resources.getTransport(httpTransport);
+	}
+
+	private HttpResourceRegistry.Resources getResources() {
+		lock.lock();
+		try {
+			if (resources == null) {
+				resources = HttpResourceRegistry.acquire(server, username, password, timeout, connectionTimeout, localAddress, maxConnections, maxPerMailbox, mailbox);
+			}
+			return resources;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private HttpResponse execute(HttpRequest op) throws Exception {
+		HttpResourceRegistry.Resources resources = getResources();
+		return execute(resources, getTransport(resources), op);
+	}
+
+	/**
+	 * Sends the request through the given transport without locking the
+	 * connection, as the download threads do.  Requests are admitted by
+	 * the limiter shared by every connection to the server, which counts
+	 * a request as in flight until its response headers arrive.  The lease
+	 * is returned to the resources it was taken from, which a download
+	 * still running when the connection closes keeps hold of.
+	 */
+	private HttpResponse execute(HttpResourceRegistry.Resources resources, HttpTransport transport, HttpRequest op) throws Exception {
+		// byte ranges are asked of the uncoded body, so that a resumed
+		// download lines up with the bytes already decoded
+		if (compression && op.getHeader("Accept-Encoding") == null && op.getHeader("Range") == null)
+			op.setHeader("Accept-Encoding", ContentCoding.ACCEPT_ENCODING);
+		for (int attempt = 0; ; attempt++) {
+			resources.lease(mailbox);
 			try {
-				if (stream != null) {
-					byte[] buf = new byte[65536];
-					try {
-						if (session.getDebug()) {
-							PrintStream log = session.getDebugOut();
-							log.println("Response Body:");
-							int count;
-							while ((count = stream.read(buf, 0, 65536)) != -1) {
-								log.write(buf, 0, count);
-							}
-							log.flush();
-							log.println();
-						} else {
-							while (stream.read(buf, 0, 65536) != -1)
-								;
-						}
-					} catch (Exception ignore) {
-					} finally {
-						try {
-							stream.close();
-						} catch (Exception ignore2) {
-						}
+				serverLimiter.acquire();
+			} catch (InterruptedException ex) {
+				resources.unlease(mailbox);
+				throw ex;
+			}
+			HttpResponse response = null;
+			boolean busy = false;
+			long backOff = 0;
+			long latency = -1;
+			long start = System.currentTimeMillis();
+			try {
+				if (transport instanceof HedgedTransport)
+					response = ((HedgedTransport) transport).execute(op, createAdmission(resources));
+				else
+					response = transport.execute(op);
+				latency = System.currentTimeMillis() - start;
+				int status = response.getStatus();
+				if (status >= 500) {
+					busy = true;
+					if (status == HTTP_SERVICE_UNAVAILABLE) {
+						backOff = getRetryAfter(response);
+						if (backOff < 0)
+							backOff = DEFAULT_BACK_OFF << attempt;
+					}
+					if (session.getDebug())
+						session.getDebugOut().println("Server responded " + status + "; backing off " + backOff + " ms (" + serverLimiter + ").");
+					if (status == HTTP_SERVICE_UNAVAILABLE && attempt < throttleRetries && op.isIdempotent()) {
+						// retried once the limiter has waited out the back-off;
+						// a request that changes something is left to the caller
+						response.abort();
+						response.release();
+						response = null;
+						continue;
 					}
 				}
+				synchronized (leases) {
+					leases.put(response, resources);
+				}
+				return response;
+			} catch (SocketTimeoutException ex) {
+				busy = true;
+				throw ex;
 			} finally {
-				op.releaseConnection();
+				serverLimiter.release(busy, backOff, latency);
+				if (response == null)
+					resources.unlease(mailbox);
 			}
 		}
 	}
 
-	private HttpClient getClient() {
-		synchronized (this) {
-			if (client == null) {
-				client = new HttpClient();
-				if (timeout > 0)
-					client.getParams().setSoTimeout(timeout);
-				if (connectionTimeout > 0) {
-					client.getHttpConnectionManager().getParams().setConnectionTimeout(connectionTimeout);
-				}
-				if (localAddress != null) {
-					client.getHostConfiguration().setLocalAddress(localAddress);
+	/**
+	 * Admits a hedged duplicate under the same mailbox share and server
+	 * limit as the request it duplicates, but only if it can be sent at
+	 * once; a duplicate that has to wait is of no use.
+	 */
+	private HedgedTransport.Admission createAdmission(final HttpResourceRegistry.Resources resources) {
+		return new HedgedTransport.Admission() {
+			public boolean tryAcquire() {
+				if (!resources.tryLease(mailbox))
+					return false;
+				if (!serverLimiter.tryAcquire()) {
+					resources.unlease(mailbox);
+					return false;
 				}
+				return true;
 			}
-			return client;
-		}
+
+			public void release(HttpResponse response, Throwable failure, long latency) {
+				boolean busy = (response != null) ? response.getStatus() >= 500 : failure instanceof SocketTimeoutException;
+				serverLimiter.release(busy, 0, latency);
+				resources.unlease(mailbox);
+			}
+		};
 	}
 
-	private void signOn() throws Exception {
-		HttpClient client = getClient();
-		URL serverUrl = new URL(server);
-		String host = serverUrl.getHost();
-		int port = serverUrl.getPort();
-		if (port == -1)
-			port = serverUrl.getDefaultPort();
-		AuthScope authScope = new AuthScope(host, port);
-
-		if (username.indexOf("\\") < 0) {
-			client.getState().setCredentials(authScope, new UsernamePasswordCredentials(username, password));
-		} else {
-			// Try to connect with NTLM authentication
-			String domainUser = username.substring(username.indexOf("\\") + 1, username.length());
-			String domain = username.substring(0, username.indexOf("\\"));
-			client.getState().setCredentials(authScope, new NTCredentials(domainUser, password, host, domain));
+	/**
+	 * Returns the back-off period in milliseconds a busy server asks for
+	 * in its Retry-After header, or -1 if it gives none in seconds.
+	 */
+	private static long getRetryAfter(HttpResponse response) {
+		String retryAfter = response.getHeader("Retry-After");
+		if (retryAfter == null)
+			return -1;
+		try {
+			return Math.max(0l, Long.parseLong(retryAfter.trim()) * 1000);
+		} catch (NumberFormatException ex) {
+			return -1;
 		}
+	}
+
+	private InputStream getResponseBody(HttpResponse response) throws IOException {
+		return ContentCoding.getResponseBody(response, compressionStatistics);
+	}
 
-		boolean authenticated = false;
-		OptionsMethod authTest = new OptionsMethod(server + "/exchange");
+	private void release(HttpResponse response, InputStream stream) {
 		try {
-			authenticated = (client.executeMethod(authTest) < 400);
-		} finally {
-			try {
-				InputStream stream = authTest.getResponseBodyAsStream();
+			if (stream != null) {
 				byte[] buf = new byte[65536];
 				try {
 					if (session.getDebug()) {
@@ -1016,60 +1415,75 @@ class Exchange2003Connection implements ExchangeConnection {
 					} catch (Exception ignore2) {
 					}
 				}
-			} finally {
-				authTest.releaseConnection();
 			}
+		} finally {
+			response.release();
+			unlease(response);
+		}
+	}
+
+	/**
+	 * Returns the lease held for the response, if it still holds one.  A
+	 * response handed to the caller as a stream gives up its lease then,
+	 * since the caller may keep it open while making other requests, which
+	 * would otherwise wait forever for the mailbox's share of the pool.
+	 */
+	private void unlease(HttpResponse response) {
+		HttpResourceRegistry.Resources leased;
+		synchronized (leases) {
+			leased = leases.remove(response);
+		}
+		if (leased != null)
+			leased.unlease(mailbox);
+	}
+
+	private void signOn() throws Exception {
+		HttpRequest authTest = new HttpRequest("OPTIONS", server + "/exchange");
+		HttpResponse response = execute(authTest);
+		boolean authenticated;
+		InputStream stream = null;
+		try {
+			authenticated = (response.getStatus() < 400);
+			stream = getResponseBody(response);
+		} finally {
+			release(response, stream);
 		}
 		if (!authenticated) {
-			PostMethod op = new PostMethod(server + SIGN_ON_URI);
-			op.setRequestHeader("Content-Type", FORM_URLENCODED_CONTENT_TYPE);
-			op.addParameter("destination", server + "/exchange");
-			op.addParameter("flags", "0");
-			op.addParameter("username", username);
-			op.addParameter("password", password);
+			HttpRequest op = new HttpRequest("POST", server + SIGN_ON_URI);
+			op.setEntity(createSignOnEntity(), FORM_URLENCODED_CONTENT_TYPE);
+			response = execute(op);
+			stream = null;
 			try {
-				int status = client.executeMethod(op);
+				int status = response.getStatus();
+				stream = getResponseBody(response);
 				if (status >= 400) {
 					throw new IllegalStateException("Sign-on failed: " + status);
 				}
 			} finally {
-				try {
-					InputStream stream = op.getResponseBodyAsStream();
-					byte[] buf = new byte[65536];
-					try {
-						if (session.getDebug()) {
-							PrintStream log = session.getDebugOut();
-							log.println("Response Body:");
-							int count;
-							while ((count = stream.read(buf, 0, 65536)) != -1) {
-								log.write(buf, 0, count);
-							}
-							log.flush();
-							log.println();
-						} else {
-							while (stream.read(buf, 0, 65536) != -1)
-								;
-						}
-					} catch (Exception ignore) {
-					} finally {
-						try {
-							stream.close();
-						} catch (Exception ignore2) {
-						}
-					}
-				} finally {
-					op.releaseConnection();
-				}
+				release(response, stream);
 			}
 		}
 		findInbox();
 	}
 
-	private RequestEntity createMessageEntity(MimeMessage message) throws Exception {
-		final File tempFile = File.createTempFile("exmail", null, null);
-		tempFile.deleteOnExit();
-		OutputStream output = new BufferedOutputStream(new FileOutputStream(tempFile));
-		message.writeTo(output);
+	/**
+	 * Writes the message to a spool file, which the caller releases once
+	 * the message has been sent.
+	 */
+	private File spoolMessage(MimeMessage message) throws Exception {
+		File file = spool.create();
+		try {
+			OutputStream output = new BufferedOutputStream(new FileOutputStream(file));
+			try {
+				message.writeTo(output);
+				output.flush();
+			} finally {
+				output.close();
+			}
+		} catch (Exception ex) {
+			spool.release(file);
+			throw ex;
+		}
 		if (session.getDebug()) {
 			PrintStream log = session.getDebugOut();
 			log.println("Message Content:");
@@ -1077,25 +1491,19 @@ class Exchange2003Connection implements ExchangeConnection {
 			log.println();
 			log.flush();
 		}
-		output.flush();
-		output.close();
-		InputStream stream = new FileInputStream(tempFile) {
-			public void close() throws IOException {
-				try {
-					super.close();
-				} finally {
-					try {
-						if (!tempFile.delete())
-							tempFile.deleteOnExit();
-					} catch (Exception ignore) {
-					}
-				}
-			}
-		};
-		return new InputStreamRequestEntity(stream, tempFile.length(), MESSAGE_CONTENT_TYPE);
+		return file;
 	}
 
-	private static RequestEntity createFindInboxEntity() throws Exception {
+	private byte[] createSignOnEntity() throws Exception {
+		StringBuilder form = new StringBuilder();
+		form.append("destination=").append(URLEncoder.encode(server + "/exchange", "UTF-8"));
+		form.append("&flags=0");
+		form.append("&username=").append(URLEncoder.encode(username, "UTF-8"));
+		form.append("&password=").append(URLEncoder.encode(password, "UTF-8"));
+		return form.toString().getBytes("US-ASCII");
+	}
+
+	private static byte[] createFindInboxEntity() throws Exception {
 		synchronized (Exchange2003Connection.class) {
 			if (findInboxEntity == null) {
 				DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
@@ -1124,105 +1532,35 @@ class Exchange2003Connection implements ExchangeConnection {
 				transformer.transform(new DOMSource(doc), new StreamResult(collector));
 				findInboxEntity = collector.toByteArray();
 			}
-			return new ByteArrayRequestEntity(findInboxEntity, XML_CONTENT_TYPE);
-		}
-	}
-
-	private static RequestEntity createUnreadInboxEntity() throws Exception {
-		synchronized (Exchange2003Connection.class) {
-			if (unreadInboxEntity == null) {
-				unreadInboxEntity = createSearchEntity(new String(getResource(GET_UNREAD_MESSAGES_SQL_RESOURCE), "UTF-8"));
-			}
-			return new ByteArrayRequestEntity(unreadInboxEntity, XML_CONTENT_TYPE);
-		}
-	}
-
-	private static RequestEntity createAllInboxEntity() throws Exception {
-		synchronized (Exchange2003Connection.class) {
-			if (allInboxEntity == null) {
-				allInboxEntity = createSearchEntity(new String(getResource(GET_ALL_MESSAGES_SQL_RESOURCE), "UTF-8"));
-			}
-			return new ByteArrayRequestEntity(allInboxEntity, XML_CONTENT_TYPE);
+			return findInboxEntity;
 		}
 	}
 
-	private static RequestEntity createCustomInboxEntity(boolean unfiltered, String filterLastCheck, String filterFrom, String filterNotFrom, String filterTo) throws Exception {
+	private static byte[] createFolderCountsEntity() throws Exception {
 		synchronized (Exchange2003Connection.class) {
-			/*
-			 * If user has to use filter base on a adte we have to build a new
-			 * filter
-			 */
-			// if (customInboxEntity == null) {
-			customInboxEntity = createSearchEntity(new String(getResource(GET_FILTERED_MESSAGES_SQL_RESOURCE), "UTF-8"));
-			// }
-
-			/* Mirco: Replace Filtes */
-			String filter = new String(customInboxEntity);
-			if (!unfiltered) {
-				filter = filter.replace(BOOKMARK_FILTER_UNREADED, "AND \"urn:schemas:httpmail:read\" = False");
-			} else {
-				filter = filter.replace(BOOKMARK_FILTER_UNREADED, "");
-			}
-			if (filterLastCheck != null && !"".equals(filterLastCheck)) {
-				// Es. AND "urn:schemas:httpmail:datereceived" >
-				// CAST("2010-08-04T00:00:00Z" as 'dateTime')
-				filter = filter.replace(BOOKMARK_FILTER_LAST_CHECK, "AND \"urn:schemas:httpmail:datereceived\" > CAST(\"" + filterLastCheck + "\" as 'dateTime')");
-			} else {
-				filter = filter.replace(BOOKMARK_FILTER_LAST_CHECK, "");
-			}
-			if (filterFrom != null && !"".equals(filterFrom)) {
-				// Es. AND "urn:schemas:httpmail:fromemail" LIKE '@domain.com%'
-				filter = filter.replace(BOOKMARK_FILTER_FROM, "AND \"urn:schemas:httpmail:fromemail\" LIKE '%" + filterFrom + "%'");
-			} else {
-				filter = filter.replace(BOOKMARK_FILTER_FROM, "");
-			}
-			if (filterNotFrom != null && !"".equals(filterNotFrom)) {
-				if (filterNotFrom.indexOf(";") > 0) {
-					StringBuilder sb = new StringBuilder();
-					// sb.append("AND (");
-					for (String aFilter : filterNotFrom.split(";")) {
-						sb.append("AND \"urn:schemas:httpmail:fromemail\" NOT LIKE '%" + aFilter + "%'");
-					}
-					// sb.append(")");
-
-					filter = filter.replace(BOOKMARK_FILTER_NOT_FROM, sb.toString());
-				} else {
-					// Es. AND "urn:schemas:httpmail:fromemail" LIKE
-					// '@domain.com%'
-					filter = filter.replace(BOOKMARK_FILTER_NOT_FROM, "AND \"urn:schemas:httpmail:fromemail\" NOT LIKE '%" + filterNotFrom + "%'");
-				}
-			} else {
-				filter = filter.replace(BOOKMARK_FILTER_NOT_FROM, "");
-			}
-			if (filterTo != null && !"".equals(filterTo)) {
-				// Es. AND "urn:schemas:httpmail:to" LIKE '%test@domain.com%'
-				filter = filter.replace(BOOKMARK_FILTER_TO, "AND \"urn:schemas:httpmail:to\" LIKE '%" + filterTo + "%'");
-			} else {
-				filter = filter.replace(BOOKMARK_FILTER_TO, "");
+			if (folderCountsEntity == null) {
+				DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
+				dbf.setNamespaceAware(true);
+				Document doc = dbf.newDocumentBuilder().newDocument();
+				Element propfind = doc.createElementNS(DAV_NAMESPACE, "propfind");
+				doc.appendChild(propfind);
+				Element prop = doc.createElementNS(DAV_NAMESPACE, "prop");
+				propfind.appendChild(prop);
+				Element visiblecount = doc.createElementNS(DAV_NAMESPACE, "visiblecount");
+				prop.appendChild(visiblecount);
+				Element unreadcount = doc.createElementNS(HTTPMAIL_NAMESPACE, "unreadcount");
+				prop.appendChild(unreadcount);
+				ByteArrayOutputStream collector = new ByteArrayOutputStream();
+				Transformer transformer = TransformerFactory.newInstance().newTransformer();
+				transformer.setOutputProperty(OutputKeys.ENCODING, "utf-8");
+				transformer.transform(new DOMSource(doc), new StreamResult(collector));
+				folderCountsEntity = collector.toByteArray();
 			}
-
-			customInboxEntity = filter.getBytes();
-			return new ByteArrayRequestEntity(customInboxEntity, XML_CONTENT_TYPE);
+			return folderCountsEntity;
 		}
 	}
 
-	private static byte[] createSearchEntity(String sqlString) throws Exception {
-		DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
-		dbf.setNamespaceAware(true);
-		Document doc = dbf.newDocumentBuilder().newDocument();
-		Element searchRequest = doc.createElementNS(DAV_NAMESPACE, "searchrequest");
-		doc.appendChild(searchRequest);
-		Element sql = doc.createElementNS(DAV_NAMESPACE, "sql");
-		searchRequest.appendChild(sql);
-		sql.appendChild(doc.createTextNode(sqlString));
-		ByteArrayOutputStream collector = new ByteArrayOutputStream();
-		Transformer transformer = TransformerFactory.newInstance().newTransformer();
-		transformer.setOutputProperty(OutputKeys.ENCODING, "utf-8");
-		transformer.transform(new DOMSource(doc), new StreamResult(collector));
-		return collector.toByteArray();
-	}
-
-	private static RequestEntity createDeleteEntity(List<ExchangeMessage> messages) throws Exception {
+	private static byte[] createDeleteEntity(List<ExchangeMessage> messages) throws Exception {
 		DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
 		dbf.setNamespaceAware(true);
 		Document doc = dbf.newDocumentBuilder().newDocument();
@@ -1241,10 +1579,10 @@ class Exchange2003Connection implements ExchangeConnection {
 		Transformer transformer = TransformerFactory.newInstance().newTransformer();
 		transformer.setOutputProperty(OutputKeys.ENCODING, "utf-8");
 		transformer.transform(new DOMSource(doc), new StreamResult(collector));
-		return new ByteArrayRequestEntity(collector.toByteArray(), XML_CONTENT_TYPE);
+		return collector.toByteArray();
 	}
 
-	private RequestEntity createAddBccEntity(Address[] addresses) throws Exception {
+	private byte[] createAddBccEntity(Address[] addresses) throws Exception {
 		StringBuilder recipientList = new StringBuilder();
 		for (Address address : addresses) {
 			if (recipientList.length() != 0)
@@ -1271,10 +1609,10 @@ class Exchange2003Connection implements ExchangeConnection {
 			session.getDebugOut().println();
 		}
 		transformer.transform(new DOMSource(doc), new StreamResult(collector));
-		return new ByteArrayRequestEntity(collector.toByteArray(), XML_CONTENT_TYPE);
+		return collector.toByteArray();
 	}
 
-	private static RequestEntity createMarkReadEntity(List<ExchangeMessage> messages) throws Exception {
+	private static byte[] createMarkReadEntity(List<ExchangeMessage> messages) throws Exception {
 		DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
 		dbf.setNamespaceAware(true);
 		Document doc = dbf.newDocumentBuilder().newDocument();
@@ -1300,33 +1638,7 @@ class Exchange2003Connection implements ExchangeConnection {
 		Transformer transformer = TransformerFactory.newInstance().newTransformer();
 		transformer.setOutputProperty(OutputKeys.ENCODING, "utf-8");
 		transformer.transform(new DOMSource(doc), new StreamResult(collector));
-		return new ByteArrayRequestEntity(collector.toByteArray(), XML_CONTENT_TYPE);
-	}
-
-	private static byte[] getResource(String resource) {
-		if (resource == null)
-			return null;
-		synchronized (RESOURCES) {
-			byte[] content = RESOURCES.get(resource);
-			if (content != null)
-				return content;
-			try {
-				InputStream input = Exchange2003Connection.class.getResourceAsStream(resource);
-				ByteArrayOutputStream collector = new ByteArrayOutputStream();
-				byte[] buf = new byte[65536];
-				int count;
-				while ((count = input.read(buf, 0, 65536)) != -1) {
-					collector.write(buf, 0, count);
-				}
-				input.close();
-				collector.flush();
-				content = collector.toByteArray();
-				RESOURCES.put(resource, content);
-				return content;
-			} catch (Exception ex) {
-				throw new IllegalStateException(ex.getMessage(), ex);
-			}
-		}
+		return collector.toByteArray();
 	}
 
 	private static String escape(String url) {
@@ -1357,14 +1669,4 @@ class Exchange2003Connection implements ExchangeConnection {
 		}
 	}
 
-	private static Properties parseOptions(String options) throws Exception {
-		StringBuilder collector = new StringBuilder();
-		String[] nvPairs = options.split("[,;]");
-		for (String nvPair : nvPairs)
-			collector.append(nvPair).append('\n');
-		Properties properties = new Properties();
-		properties.load(new ByteArrayInputStream(collector.toString().getBytes("ISO-8859-1")));
-		return properties;
-	}
-
 }
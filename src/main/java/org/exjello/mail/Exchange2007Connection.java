@@ -22,31 +22,95 @@ THE SOFTWARE.
 
 package org.exjello.mail;
 
-import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.InputStream;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.io.PrintStream;
 
 import java.net.InetAddress;
 import java.net.MalformedURLException;
+import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
 import java.net.URL;
+import java.net.URLEncoder;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
 
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.mail.MessagingException;
 import javax.mail.Session;
 
 import javax.mail.internet.InternetAddress;
 import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimeUtility;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
+
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerFactory;
+
+import javax.xml.transform.dom.DOMSource;
+
+import javax.xml.transform.stream.StreamResult;
+
+import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.HttpMethod;
+import org.apache.commons.httpclient.NTCredentials;
+import org.apache.commons.httpclient.UsernamePasswordCredentials;
+
+import org.apache.commons.httpclient.auth.AuthScope;
+
+import org.apache.commons.httpclient.methods.ByteArrayRequestEntity;
+import org.apache.commons.httpclient.methods.PostMethod;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+
+import org.xml.sax.helpers.DefaultHandler;
 
 import static org.exjello.mail.ExchangeConstants.CONNECTION_TIMEOUT_PROPERTY;
 import static org.exjello.mail.ExchangeConstants.DELETE_PROPERTY;
+import static org.exjello.mail.ExchangeConstants.EWS_BATCH_SIZE_PROPERTY;
+import static org.exjello.mail.ExchangeConstants.EWS_PAGE_SIZE_PROPERTY;
+import static org.exjello.mail.ExchangeConstants.EWS_PATH_PROPERTY;
+import static org.exjello.mail.ExchangeConstants.EWS_SAVE_COPY_PROPERTY;
+import static org.exjello.mail.ExchangeConstants.EWS_SYNC_DIRECTORY_PROPERTY;
+import static org.exjello.mail.ExchangeConstants.EWS_SYNC_PROPERTY;
 import static org.exjello.mail.ExchangeConstants.FROM_PROPERTY;
 import static org.exjello.mail.ExchangeConstants.LIMIT_PROPERTY;
 import static org.exjello.mail.ExchangeConstants.LOCAL_ADDRESS_PROPERTY;
 import static org.exjello.mail.ExchangeConstants.MAILBOX_PROPERTY;
+import static org.exjello.mail.ExchangeConstants.OFFSET_PROPERTY;
+import static org.exjello.mail.ExchangeConstants.ORDER_BY_PROPERTY;
+import static org.exjello.mail.ExchangeConstants.ORDER_PROPERTY;
+import static org.exjello.mail.ExchangeConstants.POOL_MAX_CONNECTIONS_PROPERTY;
+import static org.exjello.mail.ExchangeConstants.POOL_MAX_PER_MAILBOX_PROPERTY;
 import static org.exjello.mail.ExchangeConstants.PORT_PROPERTY;
 import static org.exjello.mail.ExchangeConstants.SSL_PROPERTY;
+import static org.exjello.mail.ExchangeConstants.THROTTLE_MAILBOX_PROPERTY;
+import static org.exjello.mail.ExchangeConstants.THROTTLE_RETRIES_PROPERTY;
+import static org.exjello.mail.ExchangeConstants.THROTTLE_SERVER_PROPERTY;
 import static org.exjello.mail.ExchangeConstants.TIMEOUT_PROPERTY;
 import static org.exjello.mail.ExchangeConstants.UNFILTERED_PROPERTY;
 
@@ -59,10 +123,68 @@ class Exchange2007Connection implements ExchangeConnection {
 
 	private static final int HTTPS_PORT = 443;
 
+	private static final int DEFAULT_MAX_CONNECTIONS = 20;
+
+	private static final int DEFAULT_PAGE_SIZE = 500;
+
+	private static final int DEFAULT_BATCH_SIZE = 50;
+
+	private static final String DEFAULT_EWS_PATH = "/EWS/Exchange.asmx";
+
+	private static final int MAX_SYNC_CHANGES = 512;
+
+	private static final int DEFAULT_SERVER_CONCURRENCY = 20;
+
+	private static final int DEFAULT_MAILBOX_CONCURRENCY = 10;
+
+	private static final int DEFAULT_RETRIES = 3;
+
+	private static final long DEFAULT_BACK_OFF = 1000;
+
+	private static final int HTTP_SERVICE_UNAVAILABLE = 503;
+
+	private static final String SERVER_BUSY = "ErrorServerBusy";
+
+	private static final String INVALID_SYNC_STATE =
+            "ErrorInvalidSyncStateData";
+
+	private static final String DEFAULT_SORT_FIELD = "item:DateTimeReceived";
+
+	private static final Map<String, String> SORT_FIELDS =
+            new HashMap<String, String>();
+
+	private static final String[] SUBSCRIBED_EVENTS = new String[] {
+        "NewMailEvent", "CreatedEvent", "DeletedEvent", "ModifiedEvent",
+                "MovedEvent", "CopiedEvent"
+    };
+
+	private static final String[] READ_ONLY_OPERATIONS = new String[] {
+        "FindItem", "GetItem", "GetAttachment", "GetFolder",
+                "SyncFolderItems", "GetEvents"
+    };
+
+	private static final String SERVER_VERSION = "Exchange2007_SP1";
+
+	private static final String SOAP_CONTENT_TYPE = "text/xml; charset=utf-8";
+
+	private static final String SOAP_NAMESPACE =
+            "http://schemas.xmlsoap.org/soap/envelope/";
+
+	private static final String TYPES_NAMESPACE =
+            "http://schemas.microsoft.com/exchange/services/2006/types";
+
+	private static final String MESSAGES_NAMESPACE =
+            "http://schemas.microsoft.com/exchange/services/2006/messages";
+
+	private static final String XMLNS_NAMESPACE =
+            "http://www.w3.org/2000/xmlns/";
+
 	private final Session session;
 
 	private final String server;
 
+	private final String endpoint;
+
 	private final String mailbox;
 
 	private final String username;
@@ -89,6 +211,59 @@ class Exchange2007Connection implements ExchangeConnection {
 
 	private final int limit;
 
+	private final int offset;
+
+	private final String sortField;
+
+	private final boolean descending;
+
+	private final int maxConnections;
+
+	private final int maxPerMailbox;
+
+	private final int pageSize;
+
+	private final int batchSize;
+
+	private final boolean saveCopy;
+
+	private final ConcurrencyLimiter serverLimiter;
+
+	private final ConcurrencyLimiter mailboxLimiter;
+
+	private final int retries;
+
+	private final boolean sync;
+
+	private final File syncDirectory;
+
+	private final SpoolManager spool;
+
+	private final Map<HttpMethod, HttpResourceRegistry.Resources> leases =
+            new HashMap<HttpMethod, HttpResourceRegistry.Resources>();
+
+	private final Lock lock = new ReentrantLock();
+
+	private final Map<String, List<String>> listings =
+            new HashMap<String, List<String>>();
+
+	private final Map<String, File> spooled = new HashMap<String, File>();
+
+	private final Map<String, FolderSync> syncs =
+            new HashMap<String, FolderSync>();
+
+	private HttpResourceRegistry.Resources resources;
+
+	private boolean connected;
+
+	static {
+		SORT_FIELDS.put("received", "item:DateTimeReceived");
+		SORT_FIELDS.put("created", "item:DateTimeCreated");
+		SORT_FIELDS.put("sent", "item:DateTimeSent");
+		SORT_FIELDS.put("subject", "item:Subject");
+		SORT_FIELDS.put("size", "item:Size");
+	}
+
 	public static Exchange2007Connection createConnection(String protocol,
             Session session, String host, int port, String username,
                     String password) throws Exception {
@@ -130,6 +305,10 @@ class Exchange2007Connection implements ExchangeConnection {
                         limitString);
 			}
 		}
+		int offset = parseInt(session, OFFSET_PROPERTY, 0,
+                "Invalid offset specified: ");
+		String orderBy = session.getProperty(ORDER_BY_PROPERTY);
+		String order = session.getProperty(ORDER_PROPERTY);
 		try {
 			URL url = new URL(host);
 			// if parsing succeeded, then strip out the components and use
@@ -165,48 +344,32 @@ class Exchange2007Connection implements ExchangeConnection {
 			}
 		}
 
-		int index = username.indexOf(':');
-		if (index != -1) {
-			mailbox = username.substring(index + 1);
-			username = username.substring(0, index);
-			String mailboxOptions = null;
-			index = mailbox.indexOf('[');
-			if (index != -1) {
-				mailboxOptions = mailbox.substring(index + 1);
-				mailboxOptions = mailboxOptions.substring(0,
-                        mailboxOptions.indexOf(']'));
-				mailbox = mailbox.substring(0, index);
-			}
-			if (mailboxOptions != null) {
-				Properties props = null;
-				try {
-					props = parseOptions(mailboxOptions);
-				} catch (Exception ex) {
-					throw new IllegalArgumentException(
-                            "Unable to parse mailbox options: " +
-                                    ex.getMessage(), ex);
-				}
-				String value = props.getProperty("unfiltered");
+		MailboxSpec spec = MailboxSpec.parse(username);
+		if (spec.getMailbox() != null) {
+			mailbox = spec.getMailbox();
+			username = spec.getUsername();
+			if (spec.hasOptions()) {
+				String value = spec.getOption("unfiltered");
 				if (value != null)
 					unfiltered = Boolean.parseBoolean(value);
 
-				value = props.getProperty("filterLastCheck");
+				value = spec.getOption("filterLastCheck");
 				if (value != null)
 					filterLastCheck = value;
-				value = props.getProperty("filterTo");
+				value = spec.getOption("filterTo");
 				if (value != null)
 					filterTo = value;
-				value = props.getProperty("filterFrom");
+				value = spec.getOption("filterFrom");
 				if (value != null)
 					filterFrom = value;
-				value = props.getProperty("filterNotFrom");
+				value = spec.getOption("filterNotFrom");
 				if (value != null)
 					filterNotFrom = value;
 
-				value = props.getProperty("delete");
+				value = spec.getOption("delete");
 				if (value != null)
 					delete = Boolean.parseBoolean(value);
-				value = props.getProperty("limit");
+				value = spec.getOption("limit");
 				if (value != null) {
 					try {
 						limit = Integer.parseInt(value);
@@ -215,6 +378,21 @@ class Exchange2007Connection implements ExchangeConnection {
                                 "Invalid limit specified: " + value);
 					}
 				}
+				value = spec.getOption("offset");
+				if (value != null) {
+					try {
+						offset = Integer.parseInt(value);
+					} catch (NumberFormatException ex) {
+						throw new NumberFormatException(
+                                "Invalid offset specified: " + value);
+					}
+				}
+				value = spec.getOption("orderBy");
+				if (value != null)
+					orderBy = value;
+				value = spec.getOption("order");
+				if (value != null)
+					order = value;
 			} else if (session.getDebug()) {
 				session.getDebugOut().println("No mailbox options specified; " +
                         "using explicit limit, unfiltered, and delete.");
@@ -244,6 +422,42 @@ class Exchange2007Connection implements ExchangeConnection {
                         "Invalid connection timeout value: " + timeoutString);
 			}
 		}
+		int maxConnections = parseInt(session, POOL_MAX_CONNECTIONS_PROPERTY,
+                DEFAULT_MAX_CONNECTIONS, "Invalid maximum connections value: ");
+		int maxPerMailbox = parseInt(session, POOL_MAX_PER_MAILBOX_PROPERTY,
+                -1, "Invalid maximum connections per mailbox value: ");
+		int pageSize = parseInt(session, EWS_PAGE_SIZE_PROPERTY,
+                DEFAULT_PAGE_SIZE, "Invalid page size: ");
+		int batchSize = parseInt(session, EWS_BATCH_SIZE_PROPERTY,
+                DEFAULT_BATCH_SIZE, "Invalid batch size: ");
+		int serverConcurrency = parseInt(session, THROTTLE_SERVER_PROPERTY,
+                DEFAULT_SERVER_CONCURRENCY, "Invalid server concurrency: ");
+		int mailboxConcurrency = parseInt(session, THROTTLE_MAILBOX_PROPERTY,
+                DEFAULT_MAILBOX_CONCURRENCY, "Invalid mailbox concurrency: ");
+		int retries = parseInt(session, THROTTLE_RETRIES_PROPERTY,
+                DEFAULT_RETRIES, "Invalid retry count: ");
+		if (pageSize <= 0) pageSize = DEFAULT_PAGE_SIZE;
+		if (batchSize <= 0) batchSize = DEFAULT_BATCH_SIZE;
+		String path = session.getProperty(EWS_PATH_PROPERTY);
+		if (path == null) path = DEFAULT_EWS_PATH;
+		if (!path.startsWith("/")) path = "/" + path;
+		String saveCopyString = session.getProperty(EWS_SAVE_COPY_PROPERTY);
+		boolean saveCopy = (saveCopyString == null) ||
+                Boolean.parseBoolean(saveCopyString);
+		boolean sync = Boolean.parseBoolean(
+                session.getProperty(EWS_SYNC_PROPERTY));
+		File syncDirectory = null;
+		String syncDirectoryString = session.getProperty(
+                EWS_SYNC_DIRECTORY_PROPERTY);
+		if (sync && syncDirectoryString != null) {
+			syncDirectory = new File(syncDirectoryString);
+			if (!syncDirectory.isDirectory() && !syncDirectory.mkdirs()) {
+				throw new IllegalStateException(
+                        "Invalid sync directory specified: " +
+                                syncDirectoryString);
+			}
+		}
+		SpoolManager spool = SpoolManager.getInstance(session);
 		InetAddress localAddress = null;
 		String localAddressString = session.getProperty(prefix +
                 LOCAL_ADDRESS_PROPERTY);
@@ -259,15 +473,25 @@ class Exchange2007Connection implements ExchangeConnection {
 		if (mailbox == null) {
 			throw new IllegalStateException("No mailbox specified.");
 		}
+		if (offset < 0) {
+			throw new IllegalArgumentException("Invalid offset specified: " +
+                    offset);
+		}
+		String sortField = getSortField(orderBy);
+		boolean descending = isDescending(order);
 		if (session.getDebug()) {
 			PrintStream debugStream = session.getDebugOut();
 			debugStream.println("Server:\t" + server);
+			debugStream.println("Endpoint:\t" + server + path);
 			debugStream.println("Username:\t" + username);
 			debugStream.println("Password:\t" + pwd);
 			debugStream.println("Mailbox:\t" + mailbox);
 			debugStream.print("Options:\t");
 			debugStream.print((limit > 0) ? "Message Limit = " + limit :
                     "Unlimited Messages");
+			if (offset > 0) debugStream.print("; Offset = " + offset);
+			debugStream.print("; Ordered by " + sortField +
+                    (descending ? " descending" : " ascending"));
 			debugStream.print(unfiltered ? "; Unfiltered" :
                     "; Filtered to Unread");
 			debugStream.print(filterLastCheck == null ||
@@ -291,21 +515,97 @@ class Exchange2007Connection implements ExchangeConnection {
 				debugStream.println("Connection timeout:\t" +
                         connectionTimeout + " ms");
 			}
+			debugStream.println("Connection pool:\t" + maxConnections +
+                    " connections" + ((maxPerMailbox > 0) ? ", " +
+                            maxPerMailbox + " per mailbox" : ""));
+			debugStream.println("Paging:\t" + pageSize + " items per page, " +
+                    batchSize + " items per batch");
+			debugStream.println("Concurrency:\t" + serverConcurrency +
+                    " per server, " + mailboxConcurrency + " per mailbox, " +
+                            retries + " retries when busy");
+			debugStream.println(saveCopy ? "Save sent messages" :
+                    "Do not save sent messages");
+			if (sync) {
+				debugStream.println("Sync state:\t" + ((syncDirectory != null) ?
+                        syncDirectory.getAbsolutePath() : "in memory"));
+			}
+			debugStream.println("Spool:\t" + spool.getDirectory() +
+                    ((spool.getQuota() >= 0) ? ", " + spool.getQuota() +
+                            " bytes" : ""));
+		}
+		return new Exchange2007Connection(session, server, server + path,
+                mailbox, username, password, timeout, connectionTimeout,
+                        localAddress, maxConnections, maxPerMailbox, pageSize,
+                                batchSize, serverConcurrency,
+                                        mailboxConcurrency, retries, saveCopy,
+                                                sync, syncDirectory, spool,
+                                                        unfiltered,
+                                        delete, limit, offset, sortField,
+                                                descending, filterLastCheck,
+                                                filterFrom, filterNotFrom,
+                                                        filterTo);
+	}
+
+	private static String getSortField(String orderBy) {
+		if (isEmpty(orderBy)) return DEFAULT_SORT_FIELD;
+		String field = SORT_FIELDS.get(orderBy.toLowerCase());
+		if (field != null) return field;
+		if (!orderBy.matches("[A-Za-z]+:[A-Za-z]+")) {
+			throw new IllegalArgumentException(
+                    "Invalid sort order specified: " + orderBy);
+		}
+		return orderBy;
+	}
+
+	private static boolean isDescending(String order) {
+		if (isEmpty(order) || "ascending".equalsIgnoreCase(order) ||
+                "asc".equalsIgnoreCase(order)) {
+			return false;
+		}
+		if ("descending".equalsIgnoreCase(order) ||
+                "desc".equalsIgnoreCase(order)) {
+			return true;
+		}
+		throw new IllegalArgumentException("Invalid order specified: " +
+                order);
+	}
+
+	private static int parseInt(Session session, String property,
+            int defaultValue, String message) {
+		String value = session.getProperty(property);
+		if (value == null) return defaultValue;
+		try {
+			return Integer.parseInt(value);
+		} catch (NumberFormatException ex) {
+			throw new NumberFormatException(message + value);
 		}
-		return new Exchange2007Connection(session, server, mailbox, username,
-                password, timeout, connectionTimeout, localAddress, unfiltered,
-                        delete, limit, filterLastCheck, filterFrom,
-                                filterNotFrom, filterTo);
 	}
 
 	private Exchange2007Connection(Session session, String server,
-            String mailbox, String username, String password, int timeout,
-            int connectionTimeout, InetAddress localAddress,
-            boolean unfiltered, boolean delete, int limit,
-            String filterLastCheck, String filterFrom, String filterNotFrom,
+            String endpoint, String mailbox, String username, String password,
+            int timeout, int connectionTimeout, InetAddress localAddress,
+            int maxConnections, int maxPerMailbox, int pageSize,
+            int batchSize, int serverConcurrency, int mailboxConcurrency,
+            int retries, boolean saveCopy, boolean sync, File syncDirectory,
+            SpoolManager spool, boolean unfiltered, boolean delete, int limit, int offset,
+            String sortField, boolean descending, String filterLastCheck, String filterFrom, String filterNotFrom,
             String filterTo) {
 		this.session = session;
 		this.server = server;
+		this.endpoint = endpoint;
+		this.maxConnections = maxConnections;
+		this.maxPerMailbox = maxPerMailbox;
+		this.pageSize = pageSize;
+		this.batchSize = batchSize;
+		this.serverLimiter = ConcurrencyLimiter.getInstance(server,
+                serverConcurrency);
+		this.mailboxLimiter = ConcurrencyLimiter.getInstance(server + " " +
+                mailbox, mailboxConcurrency);
+		this.retries = retries;
+		this.saveCopy = saveCopy;
+		this.sync = sync;
+		this.syncDirectory = syncDirectory;
+		this.spool = spool;
 		this.mailbox = mailbox;
 		this.username = username;
 		this.password = password;
@@ -315,6 +615,9 @@ class Exchange2007Connection implements ExchangeConnection {
 		this.unfiltered = unfiltered;
 		this.delete = delete;
 		this.limit = limit;
+		this.offset = offset;
+		this.sortField = sortField;
+		this.descending = descending;
 		this.filterLastCheck = filterLastCheck;
 		this.filterFrom = filterFrom;
 		this.filterNotFrom = filterNotFrom;
@@ -322,37 +625,1543 @@ class Exchange2007Connection implements ExchangeConnection {
 	}
 
 	public void connect() throws Exception {
-        throw new UnsupportedOperationException("connect not yet supported.");
-    }
+		lock.lock();
+		try {
+			connected = false;
+			HttpClient client = getClient();
+			URL serverUrl = new URL(server);
+			String host = serverUrl.getHost();
+			int port = serverUrl.getPort();
+			if (port == -1) port = serverUrl.getDefaultPort();
+			AuthScope authScope = new AuthScope(host, port);
+			int index = username.indexOf('\\');
+			if (index == -1) {
+				client.getState().setCredentials(authScope,
+                        new UsernamePasswordCredentials(username, password));
+			} else {
+				client.getState().setCredentials(authScope, new NTCredentials(
+                        username.substring(index + 1), password, host,
+                                username.substring(0, index)));
+			}
+			Element getFolder = createRequest("m:GetFolder");
+			Element folderShape = append(getFolder, MESSAGES_NAMESPACE,
+                    "m:FolderShape");
+			append(folderShape, TYPES_NAMESPACE, "t:BaseShape").setTextContent(
+                    "IdOnly");
+			Element folderIds = append(getFolder, MESSAGES_NAMESPACE,
+                    "m:FolderIds");
+			appendFolderId(folderIds, ExchangeFolder.INBOX);
+			ResponseHandler handler = new ResponseHandler();
+			try {
+				invoke(getFolder, handler);
+				handler.checkErrors("Unable to obtain inbox");
+			} catch (Exception ex) {
+				// Give back the pool leased for the sign-on.
+				close();
+				throw ex;
+			}
+			connected = true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public void close() throws Exception {
+		lock.lock();
+		try {
+			connected = false;
+			listings.clear();
+			syncs.clear();
+			clearSpool();
+			if (resources != null) {
+				HttpResourceRegistry.release(resources, mailbox);
+				resources = null;
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
 
 	public List<String> getMessages(String name) throws Exception {
-        throw new UnsupportedOperationException(
-                "getMessages not yet supported.");
-    }
+		lock.lock();
+		try {
+			if (!connected) throw new IllegalStateException("Not connected.");
+			if (sync) {
+				List<String> messages = synchronize(name).getMessages();
+				return window(messages, 0, limit);
+			}
+			List<String> messages = listMessages(name, 0, limit);
+			listings.put(name.toUpperCase(), messages);
+			clearSpool();
+			return Collections.unmodifiableList(messages);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public List<String> getMessages(String name, int start, int count)
+            throws Exception {
+		lock.lock();
+		try {
+			if (!connected) throw new IllegalStateException("Not connected.");
+			if (limit > 0) count = Math.min(count, limit - start);
+			if (start < 0 || count <= 0) return Collections.emptyList();
+			if (sync) {
+				return window(synchronize(name).getMessages(), start, count);
+			}
+			return Collections.unmodifiableList(listMessages(name, start,
+                    count));
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Lists the folder again as {@link #getMessages(String)} did when it
+	 * was opened, through sync or <code>FindItem</code> and within the same
+	 * window and sort order, so that the listing can be compared with the
+	 * open folder's.  Messages already spooled ahead are kept.
+	 */
+	List<String> relist(String name) throws Exception {
+		lock.lock();
+		try {
+			if (!connected) throw new IllegalStateException("Not connected.");
+			if (sync) {
+				return window(synchronize(name).getMessages(), 0, limit);
+			}
+			return Collections.unmodifiableList(listMessages(name, 0, limit));
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Lists <code>count</code> messages from the given position, relative to
+	 * the configured offset; a negative count lists to the end.  Sender and
+	 * recipient filters are applied here, so the window is then counted in
+	 * accepted messages rather than server positions.
+	 */
+	private List<String> listMessages(String name, int start, int count)
+            throws Exception {
+		List<String> messages = new ArrayList<String>();
+		boolean clientFilter = !isEmpty(filterFrom) ||
+                !isEmpty(filterNotFrom) || !isEmpty(filterTo);
+		int skip = clientFilter ? offset + start : 0;
+		int position = clientFilter ? 0 : offset + start;
+		while (count < 0 || messages.size() < count) {
+			int size = pageSize;
+			if (count > 0 && !clientFilter) {
+				size = Math.min(size, count - messages.size());
+			}
+			FindItemHandler handler = new FindItemHandler();
+			invoke(createFindItem(name, position, size, clientFilter),
+                    handler);
+			handler.checkErrors("Unable to obtain " + name);
+			for (String[] item : handler.items) {
+				if (count > 0 && messages.size() >= count) break;
+				if (!accept(item[1], item[2])) continue;
+				if (skip > 0) {
+					skip--;
+				} else {
+					messages.add(item[0]);
+				}
+			}
+			if (handler.last || handler.items.isEmpty()) break;
+			position = (handler.nextOffset > position) ? handler.nextOffset :
+                    position + handler.items.size();
+		}
+		return messages;
+	}
+
+	/**
+	 * Applies the configured offset and the given window to a listing
+	 * obtained in full, as the sync state is.
+	 */
+	private List<String> window(List<String> messages, int start, int count) {
+		int from = Math.min(messages.size(), offset + start);
+		int to = (count > 0) ? Math.min(messages.size(), from + count) :
+                messages.size();
+		return messages.subList(from, to);
+	}
+
+	/**
+	 * Counts the listing from the folder's <code>TotalCount</code> or, when
+	 * filtered to unread messages, <code>UnreadCount</code>.  Date, sender
+	 * and recipient filters, and sync mode, need the folder listed.
+	 */
+	public int getMessageCount(String name) throws Exception {
+		lock.lock();
+		try {
+			if (!connected) throw new IllegalStateException("Not connected.");
+			if (sync || !isEmpty(filterLastCheck) || !isEmpty(filterFrom) ||
+                    !isEmpty(filterNotFrom) || !isEmpty(filterTo)) {
+				return -1;
+			}
+			FolderStatistics statistics = getStatistics(name);
+			long count = Math.max(0, (unfiltered ?
+                    statistics.getMessageCount() :
+                            statistics.getUnreadCount()) - offset);
+			if (limit > 0) count = Math.min(count, limit);
+			return (int) count;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Reads the folder's <code>TotalCount</code> and
+	 * <code>UnreadCount</code> with a single <code>GetFolder</code> call.
+	 */
+	public FolderStatistics getStatistics(String name) throws Exception {
+		lock.lock();
+		try {
+			if (!connected) throw new IllegalStateException("Not connected.");
+			Element getFolder = createRequest("m:GetFolder");
+			Element folderShape = append(getFolder, MESSAGES_NAMESPACE,
+                    "m:FolderShape");
+			append(folderShape, TYPES_NAMESPACE,
+                    "t:BaseShape").setTextContent("Default");
+			appendFolderId(append(getFolder, MESSAGES_NAMESPACE,
+                    "m:FolderIds"), name);
+			FolderCountHandler handler = new FolderCountHandler();
+			invoke(getFolder, handler);
+			handler.checkErrors("Unable to obtain " + name);
+			if (handler.counts[0] < 0 || handler.counts[1] < 0) {
+				throw new IllegalStateException("Unable to count " + name +
+                        ".");
+			}
+			return new FolderStatistics(handler.counts[0],
+                    handler.counts[1]);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * EWS requests are sent without <code>Accept-Encoding</code>, as the
+	 * MIME content is decoded from the SOAP response as it is parsed.
+	 */
+	public CompressionStatistics getCompressionStatistics() {
+		return null;
+	}
+
+	/**
+	 * WebDAV search conditions have no EWS equivalent here; returning
+	 * <code>null</code> makes the folder evaluate searches locally.
+	 */
+	public List<String> search(String name, String condition) {
+		return null;
+	}
 
 	public void send(MimeMessage message) throws Exception {
-        throw new UnsupportedOperationException("send not yet supported.");
-    }
+		Exception failure = send(Collections.singletonList(message)).get(0);
+		if (failure != null) throw failure;
+	}
+
+	/**
+	 * Submits the given messages in a single <code>CreateItem</code> call.
+	 * Returns, for each message in order, the reason it was not sent, or
+	 * <code>null</code> if it was sent.
+	 */
+	List<Exception> send(List<MimeMessage> messages) throws Exception {
+		Element createItem = createRequest("m:CreateItem");
+		if (saveCopy) {
+			createItem.setAttribute("MessageDisposition", "SendAndSaveCopy");
+			appendFolderId(append(createItem, MESSAGES_NAMESPACE,
+                    "m:SavedItemFolderId"), ExchangeFolder.SENTITEMS);
+		} else {
+			createItem.setAttribute("MessageDisposition", "SendOnly");
+		}
+		Element items = append(createItem, MESSAGES_NAMESPACE, "m:Items");
+		for (MimeMessage message : messages) {
+			ByteArrayOutputStream collector = new ByteArrayOutputStream();
+			OutputStream encoder = MimeUtility.encode(collector, "base64");
+			message.writeTo(encoder);
+			encoder.close();
+			if (session.getDebug()) {
+				PrintStream log = session.getDebugOut();
+				log.println("Message Content:");
+				message.writeTo(log);
+				log.println();
+				log.flush();
+			}
+			Element item = append(items, TYPES_NAMESPACE, "t:Message");
+			append(item, TYPES_NAMESPACE, "t:MimeContent").setTextContent(
+                    collector.toString("US-ASCII"));
+		}
+		final List<Exception> results = new ArrayList<Exception>();
+		lock.lock();
+		try {
+			if (!connected) throw new IllegalStateException("Not connected.");
+			invoke(createItem, new ResponseHandler() {
+				protected void responseCompleted(int index, boolean success) {
+					results.add(success ? null : new MessagingException(
+                            "Unable to send message: " + getLastError()));
+				}
+			});
+		} finally {
+			lock.unlock();
+		}
+		if (results.size() != messages.size()) {
+			throw new IllegalStateException("Expected " + messages.size() +
+                    " responses, received " + results.size() + ".");
+		}
+		if (session.getDebug()) {
+			int sent = 0;
+			for (Exception result : results) if (result == null) sent++;
+			session.getDebugOut().println("Sent " + sent + " of " +
+                    messages.size() + " successfully.");
+		}
+		return results;
+	}
 
 	public void delete(List<ExchangeMessage> messages) throws Exception {
-        throw new UnsupportedOperationException("delete not yet supported.");
-    }
+		lock.lock();
+		try {
+			if (!connected) throw new IllegalStateException("Not connected.");
+			for (int i = 0; i < messages.size(); i += batchSize) {
+				List<ExchangeMessage> batch = messages.subList(i,
+                        Math.min(messages.size(), i + batchSize));
+				if (delete) {
+					doDelete(batch);
+				} else {
+					doMarkRead(batch);
+				}
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
 
 	public InputStream getInputStream(ExchangeMessage message)
             throws Exception {
-        throw new UnsupportedOperationException(
-                "getInputStream not yet supported.");
-    }
-
-	private static Properties parseOptions(String options) throws Exception {
-		StringBuilder collector = new StringBuilder();
-		String[] nvPairs = options.split("[,;]");
-		for (String nvPair : nvPairs)
-			collector.append(nvPair).append('\n');
+		lock.lock();
+		try {
+			if (!connected) throw new IllegalStateException("Not connected.");
+			String id = message.getUrl();
+			File file = spooled.remove(id);
+			if (file == null) {
+				List<String> batch = new ArrayList<String>();
+				batch.add(id);
+				List<String> listing = listings.get(
+                        message.getFolder().getName().toUpperCase());
+				int index = message.getMessageNumber() - 1;
+				if (listing != null && index >= 0 && index < listing.size() &&
+                        id.equals(listing.get(index))) {
+					for (int i = index + 1; i < listing.size() &&
+                            batch.size() < batchSize; i++) {
+						String next = listing.get(i);
+						if (!spooled.containsKey(next)) batch.add(next);
+					}
+				}
+				fetchItems(batch);
+				file = spooled.remove(id);
+				if (file == null) {
+					throw new IllegalStateException(
+                            "Unable to obtain message " + id + ".");
+				}
+			}
+			try {
+				return new CachedMessageStream(file, spool,
+                        (ExchangeFolder) message.getFolder());
+			} finally {
+				spool.release(file);
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Lists the attachments of the message with a <code>GetItem</code>
+	 * call for its <code>item:Attachments</code> property.  Attachments are
+	 * identified by their EWS attachment id; attached items are reported
+	 * as <code>message/rfc822</code>.
+	 */
+	public List<ExchangeAttachment> getAttachments(ExchangeMessage message)
+            throws Exception {
+		lock.lock();
+		try {
+			if (!connected) throw new IllegalStateException("Not connected.");
+			Element getItem = createRequest("m:GetItem");
+			Element itemShape = append(getItem, MESSAGES_NAMESPACE,
+                    "m:ItemShape");
+			append(itemShape, TYPES_NAMESPACE, "t:BaseShape").setTextContent(
+                    "IdOnly");
+			append(append(itemShape, TYPES_NAMESPACE,
+                    "t:AdditionalProperties"), TYPES_NAMESPACE,
+                            "t:FieldURI").setAttribute("FieldURI",
+                                    "item:Attachments");
+			append(append(getItem, MESSAGES_NAMESPACE, "m:ItemIds"),
+                    TYPES_NAMESPACE, "t:ItemId").setAttribute("Id",
+                            message.getUrl());
+			AttachmentListHandler handler = new AttachmentListHandler(message);
+			invoke(getItem, handler);
+			handler.checkErrors("Unable to list attachments");
+			return handler.attachments;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Downloads the attachment with a <code>GetAttachment</code> call,
+	 * spooling its decoded content before it is returned, since EWS sends
+	 * it base64-encoded within the SOAP response.
+	 */
+	public InputStream getAttachmentStream(ExchangeAttachment attachment)
+            throws Exception {
+		lock.lock();
+		try {
+			if (!connected) throw new IllegalStateException("Not connected.");
+			String id = attachment.getUrl();
+			Element getAttachment = createRequest("m:GetAttachment");
+			append(append(getAttachment, MESSAGES_NAMESPACE,
+                    "m:AttachmentShape"), TYPES_NAMESPACE,
+                            "t:IncludeMimeContent").setTextContent("true");
+			append(append(getAttachment, MESSAGES_NAMESPACE,
+                    "m:AttachmentIds"), TYPES_NAMESPACE,
+                            "t:AttachmentId").setAttribute("Id", id);
+			Map<String, File> files = new HashMap<String, File>();
+			GetItemHandler handler = new GetAttachmentHandler(
+                    Collections.singletonList(id), files);
+			try {
+				invoke(getAttachment, handler);
+			} finally {
+				handler.discard();
+			}
+			handler.checkErrors("Unable to obtain attachment");
+			File file = files.get(id);
+			if (file == null) {
+				throw new IllegalStateException(
+                        "Unable to obtain attachment " + id + ".");
+			}
+			try {
+				return new CachedMessageStream(file, spool,
+                        (ExchangeFolder) attachment.getMessage().getFolder());
+			} finally {
+				spool.release(file);
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void doDelete(List<ExchangeMessage> messages) throws Exception {
+		Element deleteItem = createRequest("m:DeleteItem");
+		deleteItem.setAttribute("DeleteType", "MoveToDeletedItems");
+		Element itemIds = append(deleteItem, MESSAGES_NAMESPACE, "m:ItemIds");
+		for (ExchangeMessage message : messages) {
+			append(itemIds, TYPES_NAMESPACE, "t:ItemId").setAttribute("Id",
+                    message.getUrl());
+		}
+		ResponseHandler handler = new ResponseHandler();
+		invoke(deleteItem, handler);
+		handler.checkErrors("Unable to delete messages");
+	}
+
+	private void doMarkRead(List<ExchangeMessage> messages) throws Exception {
+		Element updateItem = createRequest("m:UpdateItem");
+		updateItem.setAttribute("MessageDisposition", "SaveOnly");
+		updateItem.setAttribute("ConflictResolution", "AlwaysOverwrite");
+		Element itemChanges = append(updateItem, MESSAGES_NAMESPACE,
+                "m:ItemChanges");
+		for (ExchangeMessage message : messages) {
+			Element itemChange = append(itemChanges, TYPES_NAMESPACE,
+                    "t:ItemChange");
+			append(itemChange, TYPES_NAMESPACE, "t:ItemId").setAttribute("Id",
+                    message.getUrl());
+			Element updates = append(itemChange, TYPES_NAMESPACE, "t:Updates");
+			Element setField = append(updates, TYPES_NAMESPACE,
+                    "t:SetItemField");
+			append(setField, TYPES_NAMESPACE, "t:FieldURI").setAttribute(
+                    "FieldURI", "message:IsRead");
+			Element item = append(setField, TYPES_NAMESPACE, "t:Message");
+			append(item, TYPES_NAMESPACE, "t:IsRead").setTextContent("true");
+		}
+		ResponseHandler handler = new ResponseHandler();
+		invoke(updateItem, handler);
+		handler.checkErrors("Unable to mark messages read");
+	}
+
+	private void fetchItems(final List<String> ids) throws Exception {
+		Element getItem = createRequest("m:GetItem");
+		Element itemShape = append(getItem, MESSAGES_NAMESPACE, "m:ItemShape");
+		append(itemShape, TYPES_NAMESPACE, "t:BaseShape").setTextContent(
+                "IdOnly");
+		append(itemShape, TYPES_NAMESPACE,
+                "t:IncludeMimeContent").setTextContent("true");
+		Element itemIds = append(getItem, MESSAGES_NAMESPACE, "m:ItemIds");
+		for (String id : ids) {
+			append(itemIds, TYPES_NAMESPACE, "t:ItemId").setAttribute("Id", id);
+		}
+		GetItemHandler handler = new GetItemHandler(ids);
+		try {
+			invoke(getItem, handler);
+		} finally {
+			handler.discard();
+		}
+	}
+
+	private Element createFindItem(String name, int offset, int count,
+            boolean clientFilter) throws Exception {
+		Element findItem = createRequest("m:FindItem");
+		findItem.setAttribute("Traversal", "Shallow");
+		Element itemShape = append(findItem, MESSAGES_NAMESPACE, "m:ItemShape");
+		append(itemShape, TYPES_NAMESPACE, "t:BaseShape").setTextContent(
+                "IdOnly");
+		if (clientFilter) {
+			Element properties = append(itemShape, TYPES_NAMESPACE,
+                    "t:AdditionalProperties");
+			append(properties, TYPES_NAMESPACE, "t:FieldURI").setAttribute(
+                    "FieldURI", "message:From");
+			append(properties, TYPES_NAMESPACE, "t:FieldURI").setAttribute(
+                    "FieldURI", "item:DisplayTo");
+		}
+		Element view = append(findItem, MESSAGES_NAMESPACE,
+                "m:IndexedPageItemView");
+		view.setAttribute("MaxEntriesReturned", String.valueOf(count));
+		view.setAttribute("Offset", String.valueOf(offset));
+		view.setAttribute("BasePoint", "Beginning");
+		List<Element> conditions = new ArrayList<Element>();
+		Document doc = findItem.getOwnerDocument();
+		if (!unfiltered) {
+			conditions.add(createComparison(doc, "t:IsEqualTo",
+                    "message:IsRead", "false"));
+		}
+		if (!isEmpty(filterLastCheck)) {
+			conditions.add(createComparison(doc, "t:IsGreaterThan",
+                    "item:DateTimeReceived", filterLastCheck));
+		}
+		if (!conditions.isEmpty()) {
+			Element restriction = append(findItem, MESSAGES_NAMESPACE,
+                    "m:Restriction");
+			if (conditions.size() > 1) {
+				restriction = append(restriction, TYPES_NAMESPACE, "t:And");
+			}
+			for (Element condition : conditions) {
+				restriction.appendChild(condition);
+			}
+		}
+		Element sortOrder = append(findItem, MESSAGES_NAMESPACE, "m:SortOrder");
+		Element fieldOrder = append(sortOrder, TYPES_NAMESPACE,
+                "t:FieldOrder");
+		fieldOrder.setAttribute("Order", descending ? "Descending" :
+                "Ascending");
+		append(fieldOrder, TYPES_NAMESPACE, "t:FieldURI").setAttribute(
+                "FieldURI", sortField);
+		appendFolderId(append(findItem, MESSAGES_NAMESPACE,
+                "m:ParentFolderIds"), name);
+		return findItem;
+	}
+
+	/**
+	 * Brings the sync state of the given folder up to date and returns the
+	 * items created, updated and deleted since the previous call.  Items
+	 * already known keep their position in the listing; new items are
+	 * appended, so message numbers handed out earlier remain valid until
+	 * an item ahead of them is removed.
+	 */
+	Changes synchronize(String name) throws Exception {
+		lock.lock();
+		try {
+			if (!connected) throw new IllegalStateException("Not connected.");
+			String key = name.toUpperCase();
+			FolderSync folder = syncs.get(key);
+			if (folder == null) {
+				folder = loadSync(name);
+				syncs.put(key, folder);
+			}
+			Changes changes = new Changes();
+			while (true) {
+				SyncHandler handler = new SyncHandler();
+				invoke(createSyncFolderItems(name, folder.state), handler);
+				if (folder.state != null &&
+                        handler.hasError(INVALID_SYNC_STATE)) {
+					if (session.getDebug()) {
+						session.getDebugOut().println("Sync state for " +
+                                name + " rejected; resynchronizing.");
+					}
+					changes.deleted.addAll(folder.items);
+					folder.items.clear();
+					folder.state = null;
+					continue;
+				}
+				handler.checkErrors("Unable to synchronize " + name);
+				for (int i = 0; i < handler.items.size(); i++) {
+					apply(folder.items, handler.changes.get(i),
+                            handler.items.get(i), changes);
+				}
+				if (handler.syncState != null) folder.state = handler.syncState;
+				if (handler.last || handler.items.isEmpty()) break;
+			}
+			saveSync(name, folder);
+			changes.messages = Collections.unmodifiableList(
+                    new ArrayList<String>(folder.items));
+			listings.put(key, changes.messages);
+			for (String id : changes.deleted) {
+				File file = spooled.remove(id);
+				if (file != null) spool.release(file);
+			}
+			if (session.getDebug()) {
+				session.getDebugOut().println("Synchronized " + name + ": " +
+                        changes.created.size() + " created, " +
+                                changes.updated.size() + " updated, " +
+                                        changes.deleted.size() + " deleted.");
+			}
+			return changes;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Creates a pull subscription to item events in the given folder,
+	 * which expires if not polled within the given number of minutes.
+	 */
+	Subscription subscribe(String name, int timeout) throws Exception {
+		lock.lock();
+		try {
+			if (!connected) throw new IllegalStateException("Not connected.");
+			Element subscribe = createRequest("m:Subscribe");
+			Element request = append(subscribe, MESSAGES_NAMESPACE,
+                    "m:PullSubscriptionRequest");
+			appendFolderId(append(request, TYPES_NAMESPACE, "t:FolderIds"),
+                    name);
+			Element eventTypes = append(request, TYPES_NAMESPACE,
+                    "t:EventTypes");
+			for (String eventType : SUBSCRIBED_EVENTS) {
+				append(eventTypes, TYPES_NAMESPACE,
+                        "t:EventType").setTextContent(eventType);
+			}
+			append(request, TYPES_NAMESPACE, "t:Timeout").setTextContent(
+                    String.valueOf(timeout));
+			final String[] result = new String[2];
+			ResponseHandler handler = new ResponseHandler() {
+				public void endElement(String uri, String localName,
+                        String qName) throws SAXException {
+					super.endElement(uri, localName, qName);
+					if (!MESSAGES_NAMESPACE.equals(uri)) return;
+					if ("SubscriptionId".equals(localName)) {
+						result[0] = content.toString();
+					} else if ("Watermark".equals(localName)) {
+						result[1] = content.toString();
+					}
+				}
+			};
+			invoke(subscribe, handler);
+			handler.checkErrors("Unable to subscribe to " + name);
+			if (result[0] == null) {
+				throw new IllegalStateException("No subscription returned.");
+			}
+			return new Subscription(result[0], result[1]);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Retrieves the events queued for the given subscription, advancing
+	 * its watermark.  Returns whether any item events were received.
+	 */
+	boolean getEvents(final Subscription subscription) throws Exception {
+		lock.lock();
+		try {
+			if (!connected) throw new IllegalStateException("Not connected.");
+			Element getEvents = createRequest("m:GetEvents");
+			append(getEvents, MESSAGES_NAMESPACE,
+                    "m:SubscriptionId").setTextContent(subscription.id);
+			append(getEvents, MESSAGES_NAMESPACE,
+                    "m:Watermark").setTextContent(subscription.watermark);
+			final int[] events = new int[1];
+			ResponseHandler handler = new ResponseHandler() {
+				public void startElement(String uri, String localName,
+                        String qName, Attributes attributes)
+                                throws SAXException {
+					super.startElement(uri, localName, qName, attributes);
+					if (TYPES_NAMESPACE.equals(uri) &&
+                            localName.endsWith("Event") &&
+                                    !"StatusEvent".equals(localName)) {
+						events[0]++;
+					}
+				}
+
+				public void endElement(String uri, String localName,
+                        String qName) throws SAXException {
+					super.endElement(uri, localName, qName);
+					if (!TYPES_NAMESPACE.equals(uri)) return;
+					if ("Watermark".equals(localName)) {
+						subscription.watermark = content.toString();
+					} else if ("MoreEvents".equals(localName)) {
+						subscription.more = "true".equalsIgnoreCase(
+                                content.toString());
+					}
+				}
+			};
+			subscription.more = false;
+			invoke(getEvents, handler);
+			handler.checkErrors("Unable to obtain events");
+			return events[0] > 0;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	void unsubscribe(Subscription subscription) throws Exception {
+		lock.lock();
+		try {
+			if (!connected) return;
+			Element unsubscribe = createRequest("m:Unsubscribe");
+			append(unsubscribe, MESSAGES_NAMESPACE,
+                    "m:SubscriptionId").setTextContent(subscription.id);
+			ResponseHandler handler = new ResponseHandler();
+			invoke(unsubscribe, handler);
+			handler.checkErrors("Unable to unsubscribe");
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void apply(Set<String> items, String change, String[] item,
+            Changes changes) {
+		String id = item[0];
+		if ("Delete".equals(change)) {
+			if (items.remove(id)) changes.deleted.add(id);
+		} else if ("ReadFlagChange".equals(change)) {
+			if (unfiltered) return;
+			if ("true".equals(item[3])) {
+				if (items.remove(id)) changes.deleted.add(id);
+			} else if (!items.contains(id) && isEmpty(filterLastCheck) &&
+                    isEmpty(filterFrom) && isEmpty(filterNotFrom) &&
+                            isEmpty(filterTo)) {
+				items.add(id);
+				changes.created.add(id);
+			}
+		} else if (items.contains(id)) {
+			if (matches(item)) {
+				changes.updated.add(id);
+			} else {
+				items.remove(id);
+				changes.deleted.add(id);
+			}
+		} else if (matches(item)) {
+			items.add(id);
+			changes.created.add(id);
+		}
+	}
+
+	private boolean matches(String[] item) {
+		if (!unfiltered && "true".equals(item[3])) return false;
+		if (!isEmpty(filterLastCheck) && item[4] != null &&
+                item[4].compareTo(filterLastCheck) <= 0) {
+			return false;
+		}
+		return accept(item[1], item[2]);
+	}
+
+	private FolderSync loadSync(String name) {
+		FolderSync folder = new FolderSync();
+		File file = getSyncFile(name);
+		if (file == null || !file.isFile()) return folder;
+		try {
+			Properties properties = new Properties();
+			InputStream input = new FileInputStream(file);
+			try {
+				properties.load(input);
+			} finally {
+				input.close();
+			}
+			if (!getSyncFilter().equals(properties.getProperty("filter"))) {
+				if (session.getDebug()) {
+					session.getDebugOut().println("Filters changed since " +
+                            "last sync of " + name + "; resynchronizing.");
+				}
+				return folder;
+			}
+			folder.state = properties.getProperty("state");
+			String items = properties.getProperty("items", "").trim();
+			if (items.length() > 0) {
+				for (String id : items.split(" ")) folder.items.add(id);
+			}
+		} catch (Exception ex) {
+			if (session.getDebug()) {
+				session.getDebugOut().println("Unable to load sync state " +
+                        "from " + file + ": " + ex.getMessage());
+			}
+			folder = new FolderSync();
+		}
+		return folder;
+	}
+
+	private void saveSync(String name, FolderSync folder) throws Exception {
+		File file = getSyncFile(name);
+		if (file == null) return;
+		StringBuilder items = new StringBuilder();
+		for (String id : folder.items) {
+			if (items.length() > 0) items.append(' ');
+			items.append(id);
+		}
 		Properties properties = new Properties();
-		properties.load(new ByteArrayInputStream(
-                    collector.toString().getBytes("ISO-8859-1")));
-		return properties;
+		properties.setProperty("filter", getSyncFilter());
+		if (folder.state != null) {
+			properties.setProperty("state", folder.state);
+		}
+		properties.setProperty("items", items.toString());
+		File temp = new File(file.getPath() + ".tmp");
+		OutputStream output = new FileOutputStream(temp);
+		try {
+			properties.store(output, mailbox + " " + name);
+		} finally {
+			output.close();
+		}
+		if (!temp.renameTo(file)) {
+			file.delete();
+			if (!temp.renameTo(file)) {
+				throw new IllegalStateException(
+                        "Unable to store sync state in " + file + ".");
+			}
+		}
+	}
+
+	private File getSyncFile(String name) {
+		if (syncDirectory == null) return null;
+		try {
+			return new File(syncDirectory, URLEncoder.encode(mailbox, "UTF-8") +
+                    "." + getDistinguishedFolder(name) + ".sync");
+		} catch (Exception ex) {
+			throw new IllegalStateException(ex.getMessage(), ex);
+		}
+	}
+
+	private String getSyncFilter() {
+		return unfiltered + ";" + filterLastCheck + ";" + filterFrom + ";" +
+                filterNotFrom + ";" + filterTo;
+	}
+
+	private Element createSyncFolderItems(String name, String state)
+            throws Exception {
+		Element syncFolderItems = createRequest("m:SyncFolderItems");
+		Element itemShape = append(syncFolderItems, MESSAGES_NAMESPACE,
+                "m:ItemShape");
+		append(itemShape, TYPES_NAMESPACE, "t:BaseShape").setTextContent(
+                "IdOnly");
+		Element properties = append(itemShape, TYPES_NAMESPACE,
+                "t:AdditionalProperties");
+		append(properties, TYPES_NAMESPACE, "t:FieldURI").setAttribute(
+                "FieldURI", "message:IsRead");
+		append(properties, TYPES_NAMESPACE, "t:FieldURI").setAttribute(
+                "FieldURI", "item:DateTimeReceived");
+		append(properties, TYPES_NAMESPACE, "t:FieldURI").setAttribute(
+                "FieldURI", "message:From");
+		append(properties, TYPES_NAMESPACE, "t:FieldURI").setAttribute(
+                "FieldURI", "item:DisplayTo");
+		appendFolderId(append(syncFolderItems, MESSAGES_NAMESPACE,
+                "m:SyncFolderId"), name);
+		if (state != null) {
+			append(syncFolderItems, MESSAGES_NAMESPACE,
+                    "m:SyncState").setTextContent(state);
+		}
+		append(syncFolderItems, MESSAGES_NAMESPACE,
+                "m:MaxChangesReturned").setTextContent(String.valueOf(
+                        Math.min(pageSize, MAX_SYNC_CHANGES)));
+		return syncFolderItems;
+	}
+
+	private boolean accept(String from, String to) {
+		if (!isEmpty(filterFrom) && !contains(from, filterFrom)) return false;
+		if (!isEmpty(filterNotFrom)) {
+			for (String notFrom : filterNotFrom.split(";")) {
+				if (!isEmpty(notFrom) && contains(from, notFrom)) return false;
+			}
+		}
+		if (!isEmpty(filterTo) && !contains(to, filterTo)) return false;
+		return true;
+	}
+
+	private void clearSpool() {
+		for (File file : spooled.values()) spool.release(file);
+		spooled.clear();
+	}
+
+	public ExecutorService getExecutor() {
+		return getResources().getExecutor();
+	}
+
+	private HttpClient getClient() {
+		return getResources().getClient();
+	}
+
+	private HttpResourceRegistry.Resources getResources() {
+		lock.lock();
+		try {
+			if (resources == null) {
+				resources = HttpResourceRegistry.acquire(server, username,
+                        password, timeout, connectionTimeout, localAddress,
+                                maxConnections, maxPerMailbox, mailbox);
+			}
+			return resources;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void invoke(Element request, ResponseHandler handler)
+            throws Exception {
+		ByteArrayOutputStream collector = new ByteArrayOutputStream();
+		Transformer transformer =
+                TransformerFactory.newInstance().newTransformer();
+		transformer.setOutputProperty(OutputKeys.ENCODING, "utf-8");
+		transformer.transform(new DOMSource(request.getOwnerDocument()),
+                new StreamResult(collector));
+		byte[] body = collector.toByteArray();
+		collector = null;
+		// only reads are sent again; a busy CreateItem may still have sent
+		boolean readOnly = isReadOnly(request);
+		for (int attempt = 0; ; attempt++) {
+			PostMethod op = new PostMethod(endpoint);
+			op.setRequestEntity(new ByteArrayRequestEntity(body,
+                    SOAP_CONTENT_TYPE));
+			InputStream stream = null;
+			boolean busy = false;
+			long backOff = 0;
+			long latency = -1;
+			mailboxLimiter.acquire();
+			try {
+				serverLimiter.acquire();
+			} catch (InterruptedException ex) {
+				mailboxLimiter.release(false, 0);
+				throw ex;
+			}
+			try {
+				long start = System.currentTimeMillis();
+				int status = execute(op);
+				latency = System.currentTimeMillis() - start;
+				stream = op.getResponseBodyAsStream();
+				if (status == HTTP_SERVICE_UNAVAILABLE) {
+					busy = true;
+				} else if (status >= 300 && status != 500) {
+					throw new IllegalStateException("EWS request failed: " +
+                            status);
+				} else {
+					SAXParserFactory spf = SAXParserFactory.newInstance();
+					spf.setNamespaceAware(true);
+					SAXParser parser = spf.newSAXParser();
+					parser.parse(stream, handler);
+					stream.close();
+					stream = null;
+					busy = handler.busy;
+				}
+				if (busy) {
+					backOff = (handler.backOff > 0) ? handler.backOff :
+                            DEFAULT_BACK_OFF << attempt;
+					if (session.getDebug()) {
+						session.getDebugOut().println("Server busy; backing " +
+                                "off " + backOff + " ms (" + mailboxLimiter +
+                                        ").");
+					}
+				}
+				if (busy && handler.responses == 0) {
+					// rejected as a whole; retry once the back-off has passed
+					if (readOnly && attempt < retries) {
+						handler.reset();
+						continue;
+					}
+					throw new IllegalStateException("EWS request failed: " +
+                            "server busy.");
+				}
+				if (handler.fault != null) {
+					throw new IllegalStateException("EWS request failed: " +
+                            handler.fault);
+				}
+				if (status >= 300) {
+					throw new IllegalStateException("EWS request failed: " +
+                            status);
+				}
+				return;
+			} catch (SocketTimeoutException ex) {
+				busy = true;
+				throw ex;
+			} finally {
+				release(op, stream);
+				serverLimiter.release(busy, backOff, latency);
+				mailboxLimiter.release(busy, backOff, latency);
+			}
+		}
+	}
+
+	private static boolean isReadOnly(Element request) {
+		String operation = request.getLocalName();
+		for (String readOnly : READ_ONLY_OPERATIONS) {
+			if (readOnly.equals(operation)) return true;
+		}
+		return false;
+	}
+
+	private int execute(HttpMethod op) throws Exception {
+		HttpResourceRegistry.Resources resources = getResources();
+		resources.lease(mailbox);
+		synchronized (leases) {
+			leases.put(op, resources);
+		}
+		return resources.getClient().executeMethod(op);
+	}
+
+	private void release(HttpMethod op, InputStream stream) {
+		try {
+			if (stream != null) {
+				byte[] buf = new byte[65536];
+				try {
+					if (session.getDebug()) {
+						PrintStream log = session.getDebugOut();
+						log.println("Response Body:");
+						int count;
+						while ((count = stream.read(buf, 0, 65536)) != -1) {
+							log.write(buf, 0, count);
+						}
+						log.flush();
+						log.println();
+					} else {
+						while (stream.read(buf, 0, 65536) != -1);
+					}
+				} catch (Exception ignore) {
+				} finally {
+					try {
+						stream.close();
+					} catch (Exception ignore2) { }
+				}
+			}
+		} finally {
+			op.releaseConnection();
+			HttpResourceRegistry.Resources leased;
+			synchronized (leases) {
+				leased = leases.remove(op);
+			}
+			if (leased != null) leased.unlease(mailbox);
+		}
+	}
+
+	private Element createRequest(String operation) throws Exception {
+		DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
+		dbf.setNamespaceAware(true);
+		Document doc = dbf.newDocumentBuilder().newDocument();
+		Element envelope = doc.createElementNS(SOAP_NAMESPACE,
+                "soap:Envelope");
+		envelope.setAttributeNS(XMLNS_NAMESPACE, "xmlns:soap", SOAP_NAMESPACE);
+		envelope.setAttributeNS(XMLNS_NAMESPACE, "xmlns:t", TYPES_NAMESPACE);
+		envelope.setAttributeNS(XMLNS_NAMESPACE, "xmlns:m",
+                MESSAGES_NAMESPACE);
+		doc.appendChild(envelope);
+		Element header = append(envelope, SOAP_NAMESPACE, "soap:Header");
+		append(header, TYPES_NAMESPACE, "t:RequestServerVersion").setAttribute(
+                "Version", SERVER_VERSION);
+		Element body = append(envelope, SOAP_NAMESPACE, "soap:Body");
+		return append(body, MESSAGES_NAMESPACE, operation);
+	}
+
+	private void appendFolderId(Element parent, String name) {
+		Element folderId = append(parent, TYPES_NAMESPACE,
+                "t:DistinguishedFolderId");
+		folderId.setAttribute("Id", getDistinguishedFolder(name));
+		Element mailboxElement = append(folderId, TYPES_NAMESPACE,
+                "t:Mailbox");
+		append(mailboxElement, TYPES_NAMESPACE,
+                "t:EmailAddress").setTextContent(mailbox);
+	}
+
+	private static Element createComparison(Document doc, String comparison,
+            String field, String value) {
+		Element element = doc.createElementNS(TYPES_NAMESPACE, comparison);
+		append(element, TYPES_NAMESPACE, "t:FieldURI").setAttribute(
+                "FieldURI", field);
+		Element constant = append(element, TYPES_NAMESPACE,
+                "t:FieldURIOrConstant");
+		append(constant, TYPES_NAMESPACE, "t:Constant").setAttribute("Value",
+                value);
+		return element;
+	}
+
+	private static Element append(Element parent, String namespace,
+            String name) {
+		Element element = parent.getOwnerDocument().createElementNS(namespace,
+                name);
+		parent.appendChild(element);
+		return element;
+	}
+
+	private static String getDistinguishedFolder(String name) {
+		if (ExchangeFolder.SENTITEMS.equalsIgnoreCase(name)) {
+			return "sentitems";
+		}
+		if (ExchangeFolder.OUTBOX.equalsIgnoreCase(name)) return "outbox";
+		if (ExchangeFolder.DRAFT.equalsIgnoreCase(name)) return "drafts";
+		return "inbox";
+	}
+
+	private static boolean contains(String value, String text) {
+		return value != null &&
+                value.toLowerCase().indexOf(text.toLowerCase()) != -1;
+	}
+
+	private static boolean isEmpty(String value) {
+		return (value == null || "".equals(value));
+	}
+
+	private static class ResponseHandler extends DefaultHandler {
+
+		protected final StringBuilder content = new StringBuilder();
+
+		private final List<String> errors = new ArrayList<String>();
+
+		private final Set<String> codes = new HashSet<String>();
+
+		private int responses = 0;
+
+		private String responseClass;
+
+		private String responseCode;
+
+		private String messageText;
+
+		private String fault;
+
+		private boolean busy = false;
+
+		private long backOff = -1;
+
+		private boolean backOffValue = false;
+
+		public void startElement(String uri, String localName, String qName,
+                Attributes attributes) throws SAXException {
+			content.setLength(0);
+			backOffValue = "Value".equals(localName) &&
+                    "BackOffMilliseconds".equals(attributes.getValue("Name"));
+			if (MESSAGES_NAMESPACE.equals(uri) &&
+                    localName.endsWith("ResponseMessage")) {
+				responseClass = attributes.getValue("ResponseClass");
+				responseCode = null;
+				messageText = null;
+			}
+		}
+
+		public void characters(char[] ch, int start, int length)
+                throws SAXException {
+			content.append(ch, start, length);
+		}
+
+		public void endElement(String uri, String localName, String qName)
+                throws SAXException {
+			if (MESSAGES_NAMESPACE.equals(uri)) {
+				if ("ResponseCode".equals(localName)) {
+					responseCode = content.toString();
+				} else if ("MessageText".equals(localName)) {
+					messageText = content.toString();
+				} else if (localName.endsWith("ResponseMessage")) {
+					boolean success = !"Error".equals(responseClass);
+					if (!success) {
+						codes.add(responseCode);
+						errors.add(responseCode + ((messageText != null) ?
+                                " (" + messageText + ")" : ""));
+					}
+					responseCompleted(responses++, success);
+				}
+			} else if ("faultstring".equals(localName)) {
+				fault = content.toString();
+			}
+			if ("ResponseCode".equals(localName) &&
+                    SERVER_BUSY.equals(content.toString().trim())) {
+				busy = true;
+			} else if (backOffValue) {
+				try {
+					backOff = Long.parseLong(content.toString().trim());
+				} catch (NumberFormatException ignore) { }
+				backOffValue = false;
+			}
+		}
+
+		/**
+		 * Prepares the handler for a retry of a request that was rejected
+		 * before any response message was processed.
+		 */
+		public void reset() {
+			errors.clear();
+			codes.clear();
+			fault = null;
+			busy = false;
+			backOff = -1;
+		}
+
+		protected void responseCompleted(int index, boolean success) { }
+
+		protected String getLastError() {
+			return errors.isEmpty() ? null : errors.get(errors.size() - 1);
+		}
+
+		public boolean hasError(String code) {
+			return codes.contains(code);
+		}
+
+		public void checkErrors(String message) {
+			if (errors.isEmpty()) return;
+			throw new IllegalStateException(message + ": " + errors.get(0) +
+                    ((errors.size() > 1) ? " (and " + (errors.size() - 1) +
+                            " more)" : ""));
+		}
+
+	}
+
+	private static class FolderCountHandler extends ResponseHandler {
+
+		private final int[] counts = new int[] { -1, -1 };
+
+		public void endElement(String uri, String localName, String qName)
+                throws SAXException {
+			super.endElement(uri, localName, qName);
+			if (!TYPES_NAMESPACE.equals(uri)) return;
+			if ("TotalCount".equals(localName)) {
+				counts[0] = Integer.parseInt(content.toString().trim());
+			} else if ("UnreadCount".equals(localName)) {
+				counts[1] = Integer.parseInt(content.toString().trim());
+			}
+		}
+
+	}
+
+	private static class FindItemHandler extends ResponseHandler {
+
+		protected final List<String[]> items = new ArrayList<String[]>();
+
+		private String[] item;
+
+		private boolean from = false;
+
+		protected boolean last = true;
+
+		private int nextOffset = -1;
+
+		public void startElement(String uri, String localName, String qName,
+                Attributes attributes) throws SAXException {
+			super.startElement(uri, localName, qName, attributes);
+			if (MESSAGES_NAMESPACE.equals(uri) &&
+                    "RootFolder".equals(localName)) {
+				last = "true".equalsIgnoreCase(attributes.getValue(
+                        "IncludesLastItemInRange"));
+				String offset = attributes.getValue("IndexedPagingOffset");
+				if (offset != null) nextOffset = Integer.parseInt(offset);
+			} else if (TYPES_NAMESPACE.equals(uri)) {
+				if ("ItemId".equals(localName)) {
+					item = new String[] { attributes.getValue("Id"), null,
+                            null, null, null };
+					items.add(item);
+				} else if ("From".equals(localName)) {
+					from = true;
+				}
+			}
+		}
+
+		public void endElement(String uri, String localName, String qName)
+                throws SAXException {
+			super.endElement(uri, localName, qName);
+			if (!TYPES_NAMESPACE.equals(uri) || item == null) return;
+			if ("From".equals(localName)) {
+				from = false;
+			} else if (from && ("Name".equals(localName) ||
+                    "EmailAddress".equals(localName))) {
+				item[1] = (item[1] == null) ? content.toString() :
+                        item[1] + " <" + content.toString() + ">";
+			} else if ("DisplayTo".equals(localName)) {
+				item[2] = content.toString();
+			} else if ("IsRead".equals(localName)) {
+				item[3] = content.toString();
+			} else if ("DateTimeReceived".equals(localName)) {
+				item[4] = content.toString();
+			}
+		}
+
+	}
+
+
+	/**
+	 * Spools the <code>MimeContent</code> of each returned item to a
+	 * temporary file, decoding it as it is parsed, and registers the file
+	 * under the corresponding requested id.
+	 */
+	private class GetItemHandler extends ResponseHandler {
+
+		private final List<String> ids;
+
+		private final Map<String, File> results;
+
+		private final List<File> files = new ArrayList<File>();
+
+		private File file;
+
+		private Base64DecodingWriter decoder;
+
+		public GetItemHandler(List<String> ids) {
+			this(ids, spooled);
+		}
+
+		public GetItemHandler(List<String> ids, Map<String, File> results) {
+			this.ids = ids;
+			this.results = results;
+		}
+
+		protected boolean isContent(String uri, String localName) {
+			return TYPES_NAMESPACE.equals(uri) &&
+                    "MimeContent".equals(localName);
+		}
+
+		public void startElement(String uri, String localName, String qName,
+                Attributes attributes) throws SAXException {
+			super.startElement(uri, localName, qName, attributes);
+			if (isContent(uri, localName)) {
+				try {
+					file = spool.create();
+					files.add(file);
+					decoder = new Base64DecodingWriter(
+                            new FileOutputStream(file));
+				} catch (IOException ex) {
+					throw new SAXException(ex);
+				}
+			}
+		}
+
+		public void characters(char[] ch, int start, int length)
+                throws SAXException {
+			if (decoder == null) {
+				super.characters(ch, start, length);
+				return;
+			}
+			try {
+				decoder.write(ch, start, length);
+			} catch (IOException ex) {
+				throw new SAXException(ex);
+			}
+		}
+
+		public void endElement(String uri, String localName, String qName)
+                throws SAXException {
+			if (decoder != null && isContent(uri, localName)) {
+				try {
+					closeDecoder();
+				} catch (IOException ex) {
+					throw new SAXException(ex);
+				}
+			}
+			super.endElement(uri, localName, qName);
+		}
+
+		protected void responseCompleted(int index, boolean success) {
+			if (success && file != null && index < ids.size()) {
+				results.put(ids.get(index), file);
+				files.remove(file);
+			}
+			file = null;
+		}
+
+		/**
+		 * Closes and deletes any file not handed over to the spool, e.g.
+		 * after a failed or truncated response.
+		 */
+		public void discard() {
+			try {
+				closeDecoder();
+			} catch (IOException ignore) { }
+			for (File file : files) spool.release(file);
+			files.clear();
+		}
+
+		private void closeDecoder() throws IOException {
+			if (decoder == null) return;
+			try {
+				decoder.close();
+			} finally {
+				decoder = null;
+			}
+		}
+
+	}
+
+	/**
+	 * Spools the content of each returned attachment: the
+	 * <code>Content</code> of a file attachment, or the
+	 * <code>MimeContent</code> of an attached item.
+	 */
+	private class GetAttachmentHandler extends GetItemHandler {
+
+		public GetAttachmentHandler(List<String> ids,
+                Map<String, File> results) {
+			super(ids, results);
+		}
+
+		protected boolean isContent(String uri, String localName) {
+			return super.isContent(uri, localName) ||
+                    (TYPES_NAMESPACE.equals(uri) &&
+                            "Content".equals(localName));
+		}
+
+	}
+
+	/**
+	 * Collects the attachments listed in a <code>GetItem</code> response.
+	 * Sizes are only reported by later versions of Exchange.
+	 */
+	private static class AttachmentListHandler extends ResponseHandler {
+
+		private final ExchangeMessage message;
+
+		private final List<ExchangeAttachment> attachments =
+                new ArrayList<ExchangeAttachment>();
+
+		private String[] attachment;
+
+		public AttachmentListHandler(ExchangeMessage message) {
+			this.message = message;
+		}
+
+		public void startElement(String uri, String localName, String qName,
+                Attributes attributes) throws SAXException {
+			super.startElement(uri, localName, qName, attributes);
+			if (!TYPES_NAMESPACE.equals(uri)) return;
+			if ("FileAttachment".equals(localName)) {
+				attachment = new String[] { null, null, null, null };
+			} else if ("ItemAttachment".equals(localName)) {
+				attachment = new String[] { null, null, "message/rfc822",
+                        null };
+			} else if (attachment != null &&
+                    "AttachmentId".equals(localName)) {
+				attachment[0] = attributes.getValue("Id");
+			}
+		}
+
+		public void endElement(String uri, String localName, String qName)
+                throws SAXException {
+			super.endElement(uri, localName, qName);
+			if (!TYPES_NAMESPACE.equals(uri) || attachment == null) return;
+			if ("Name".equals(localName)) {
+				attachment[1] = content.toString();
+			} else if ("ContentType".equals(localName)) {
+				attachment[2] = content.toString();
+			} else if ("Size".equals(localName)) {
+				attachment[3] = content.toString().trim();
+			} else if ("FileAttachment".equals(localName) ||
+                    "ItemAttachment".equals(localName)) {
+				long size = -1;
+				if (attachment[3] != null) {
+					try {
+						size = Long.parseLong(attachment[3]);
+					} catch (NumberFormatException ignore) { }
+				}
+				if (attachment[0] != null) {
+					attachments.add(new ExchangeAttachment(message,
+                            attachment[0], attachment[1], attachment[2],
+                                    size));
+				}
+				attachment = null;
+			}
+		}
+
+	}
+
+	private static class SyncHandler extends FindItemHandler {
+
+		private final List<String> changes = new ArrayList<String>();
+
+		private String change;
+
+		private String syncState;
+
+		public void startElement(String uri, String localName, String qName,
+                Attributes attributes) throws SAXException {
+			super.startElement(uri, localName, qName, attributes);
+			if (!TYPES_NAMESPACE.equals(uri)) return;
+			if ("Create".equals(localName) || "Update".equals(localName) ||
+                    "Delete".equals(localName) ||
+                            "ReadFlagChange".equals(localName)) {
+				change = localName;
+			} else if ("ItemId".equals(localName)) {
+				changes.add(change);
+			}
+		}
+
+		public void endElement(String uri, String localName, String qName)
+                throws SAXException {
+			super.endElement(uri, localName, qName);
+			if (MESSAGES_NAMESPACE.equals(uri)) {
+				if ("SyncState".equals(localName)) {
+					syncState = content.toString();
+				} else if ("IncludesLastItemInRange".equals(localName)) {
+					last = "true".equalsIgnoreCase(content.toString());
+				}
+			}
+		}
+
+	}
+
+	private static class FolderSync {
+
+		private final Set<String> items = new LinkedHashSet<String>();
+
+		private String state;
+
+	}
+
+	/**
+	 * The outcome of a single {@link #synchronize(String)} call.
+	 */
+	static final class Changes {
+
+		private final List<String> created = new ArrayList<String>();
+
+		private final List<String> updated = new ArrayList<String>();
+
+		private final List<String> deleted = new ArrayList<String>();
+
+		private List<String> messages;
+
+		public List<String> getCreated() {
+			return created;
+		}
+
+		public List<String> getUpdated() {
+			return updated;
+		}
+
+		public List<String> getDeleted() {
+			return deleted;
+		}
+
+		/**
+		 * Returns the complete listing of the folder after the changes
+		 * have been applied.
+		 */
+		public List<String> getMessages() {
+			return messages;
+		}
+
+	}
+
+
+	/**
+	 * A pull subscription created by {@link #subscribe(String, int)}.
+	 */
+	static final class Subscription {
+
+		private final String id;
+
+		private String watermark;
+
+		private boolean more = false;
+
+		private Subscription(String id, String watermark) {
+			this.id = id;
+			this.watermark = watermark;
+		}
+
+		public boolean hasMoreEvents() {
+			return more;
+		}
+
 	}
 
 }
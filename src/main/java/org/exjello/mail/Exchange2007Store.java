@@ -22,11 +22,28 @@ THE SOFTWARE.
 
 package org.exjello.mail;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.mail.MessagingException;
 import javax.mail.Session;
 import javax.mail.URLName;
 
+import static org.exjello.mail.ExchangeConstants.EWS_NOTIFY_INTERVAL_PROPERTY;
+import static org.exjello.mail.ExchangeConstants.EWS_NOTIFY_PROPERTY;
+import static org.exjello.mail.ExchangeConstants.EWS_NOTIFY_TIMEOUT_PROPERTY;
+
 public class Exchange2007Store extends ExchangeStore {
 
+    private static final long DEFAULT_NOTIFY_INTERVAL = 500;
+
+    private static final int DEFAULT_NOTIFY_TIMEOUT = 10;
+
+    private final Map<ExchangeFolder, ExchangeFolderWatcher> watchers =
+            new HashMap<ExchangeFolder, ExchangeFolderWatcher>();
+
 	public Exchange2007Store(Session session, URLName urlname) {
 		super(session, urlname);
 	}
@@ -37,4 +54,52 @@ public class Exchange2007Store extends ExchangeStore {
                 host, port, username, password);
     }
 
+    protected void folderOpened(ExchangeFolder folder)
+            throws MessagingException {
+        if (!Boolean.parseBoolean(session.getProperty(EWS_NOTIFY_PROPERTY))) {
+            return;
+        }
+        long interval = DEFAULT_NOTIFY_INTERVAL;
+        int timeout = DEFAULT_NOTIFY_TIMEOUT;
+        String value = session.getProperty(EWS_NOTIFY_INTERVAL_PROPERTY);
+        try {
+            if (value != null) interval = Long.parseLong(value);
+            value = session.getProperty(EWS_NOTIFY_TIMEOUT_PROPERTY);
+            if (value != null) timeout = Integer.parseInt(value);
+        } catch (NumberFormatException ex) {
+            throw new MessagingException("Invalid notification setting: " +
+                    value, ex);
+        }
+        ExchangeFolderWatcher watcher = new ExchangeFolderWatcher(session,
+                folder, (Exchange2007Connection) folder.getConnection(),
+                        interval, timeout);
+        ExchangeFolderWatcher previous;
+        synchronized (watchers) {
+            previous = watchers.put(folder, watcher);
+        }
+        if (previous != null) previous.stop();
+        watcher.start();
+    }
+
+    protected void folderClosed(ExchangeFolder folder) {
+        ExchangeFolderWatcher watcher;
+        synchronized (watchers) {
+            watcher = watchers.remove(folder);
+        }
+        if (watcher != null) watcher.stop();
+    }
+
+    protected void setConnected(boolean connected) {
+        if (!connected) {
+            List<ExchangeFolderWatcher> stopped;
+            synchronized (watchers) {
+                stopped = new ArrayList<ExchangeFolderWatcher>(
+                        watchers.values());
+                watchers.clear();
+            }
+            for (ExchangeFolderWatcher watcher : stopped) watcher.stop();
+        }
+        super.setConnected(connected);
+    }
+
 }
@@ -22,19 +22,195 @@ THE SOFTWARE.
 
 package org.exjello.mail;
 
+import java.util.ArrayList;
+import java.util.List;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.Address;
+import javax.mail.Message;
+import javax.mail.MessagingException;
 import javax.mail.Session;
 import javax.mail.URLName;
 
+import javax.mail.event.TransportEvent;
+
+import javax.mail.internet.MimeMessage;
+
+import static org.exjello.mail.ExchangeConstants.EWS_SEND_BATCH_SIZE_PROPERTY;
+import static org.exjello.mail.ExchangeConstants.EWS_SEND_FLUSH_INTERVAL_PROPERTY;
+
+/**
+ * Exchange 2007 transport.  In addition to the usual
+ * <code>sendMessage</code>, messages may be queued with
+ * {@link #queueMessage(Message, Address[])}; queued messages are submitted
+ * together in a single EWS request once the batch is full, once the flush
+ * interval has passed, or when {@link #flush()} or <code>close</code> is
+ * called.  The outcome for each queued message is reported to the
+ * transport's <code>TransportListener</code>s.
+ */
 public class Exchange2007Transport extends ExchangeTransport {
 
+    private static final int DEFAULT_BATCH_SIZE = 50;
+
+    private static final long DEFAULT_FLUSH_INTERVAL = 1000;
+
+    private final List<Pending> pending = new ArrayList<Pending>();
+
+    private ScheduledExecutorService scheduler;
+
+    private ScheduledFuture<?> scheduledFlush;
+
 	public Exchange2007Transport(Session session, URLName urlname) {
 		super(session, urlname);
 	}
 
+    /**
+     * Queues the message for submission with the next batch.  The message
+     * is prepared for the given addresses immediately, so it should not be
+     * modified afterwards.
+     */
+    public void queueMessage(Message message, Address[] addresses)
+            throws MessagingException {
+        MimeMessage mimeMessage = prepareMessage(message, addresses);
+        boolean full;
+        synchronized (pending) {
+            pending.add(new Pending(mimeMessage, addresses));
+            full = pending.size() >= getBatchSize();
+            if (!full && scheduledFlush == null) {
+                if (scheduler == null) {
+                    scheduler = new ScheduledThreadPoolExecutor(1,
+                            ExchangeExecutors.newThreadFactory("sender"));
+                }
+                scheduledFlush = scheduler.schedule(new Runnable() {
+                    public void run() {
+                        try {
+                            flush();
+                        } catch (Exception ex) {
+                            if (session.getDebug()) {
+                                session.getDebugOut().println(
+                                        "Scheduled flush failed: " +
+                                                ex.getMessage());
+                            }
+                        }
+                    }
+                }, getFlushInterval(), TimeUnit.MILLISECONDS);
+            }
+        }
+        if (full) flush();
+    }
+
+    /**
+     * Submits all queued messages.  Messages the server rejects are
+     * reported as not delivered; if a whole batch could not be submitted,
+     * its messages are likewise reported and the failure is rethrown.
+     */
+    public void flush() throws MessagingException {
+        while (true) {
+            List<Pending> batch;
+            synchronized (pending) {
+                if (scheduledFlush != null) {
+                    scheduledFlush.cancel(false);
+                    scheduledFlush = null;
+                }
+                if (pending.isEmpty()) return;
+                List<Pending> head = pending.subList(0,
+                        Math.min(pending.size(), getBatchSize()));
+                batch = new ArrayList<Pending>(head);
+                head.clear();
+            }
+            send(batch);
+        }
+    }
+
+    public void close() throws MessagingException {
+        try {
+            if (isConnected()) flush();
+        } finally {
+            synchronized (pending) {
+                if (scheduler != null) {
+                    scheduler.shutdownNow();
+                    scheduler = null;
+                    scheduledFlush = null;
+                }
+            }
+            super.close();
+        }
+    }
+
     protected ExchangeConnection createConnection(String host, int port,
             String username, String password) throws Exception {
         return Exchange2007Connection.createConnection(SMTP_PROTOCOL, session,
                 host, port, username, password);
     }
 
+    private void send(List<Pending> batch) throws MessagingException {
+        List<MimeMessage> messages = new ArrayList<MimeMessage>(batch.size());
+        for (Pending item : batch) messages.add(item.message);
+        List<Exception> results;
+        try {
+            results = ((Exchange2007Connection) getConnection()).send(
+                    messages);
+        } catch (Exception ex) {
+            for (Pending item : batch) notifyFailed(item);
+            throw new MessagingException(ex.getMessage(), ex);
+        }
+        for (int i = 0; i < batch.size(); i++) {
+            Pending item = batch.get(i);
+            if (results.get(i) == null) {
+                notifyTransportListeners(TransportEvent.MESSAGE_DELIVERED,
+                        item.addresses, new Address[0], new Address[0],
+                                item.message);
+            } else {
+                if (session.getDebug()) {
+                    session.getDebugOut().println(
+                            results.get(i).getMessage());
+                }
+                notifyFailed(item);
+            }
+        }
+    }
+
+    private void notifyFailed(Pending item) {
+        notifyTransportListeners(TransportEvent.MESSAGE_NOT_DELIVERED,
+                new Address[0], item.addresses, new Address[0], item.message);
+    }
+
+    private int getBatchSize() {
+        String value = session.getProperty(EWS_SEND_BATCH_SIZE_PROPERTY);
+        if (value == null) return DEFAULT_BATCH_SIZE;
+        try {
+            return Math.max(1, Integer.parseInt(value));
+        } catch (NumberFormatException ex) {
+            throw new NumberFormatException("Invalid batch size: " + value);
+        }
+    }
+
+    private long getFlushInterval() {
+        String value = session.getProperty(EWS_SEND_FLUSH_INTERVAL_PROPERTY);
+        if (value == null) return DEFAULT_FLUSH_INTERVAL;
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException ex) {
+            throw new NumberFormatException("Invalid flush interval: " +
+                    value);
+        }
+    }
+
+    private static class Pending {
+
+        private final MimeMessage message;
+
+        private final Address[] addresses;
+
+        public Pending(MimeMessage message, Address[] addresses) {
+            this.message = message;
+            this.addresses = addresses;
+        }
+
+    }
+
 }
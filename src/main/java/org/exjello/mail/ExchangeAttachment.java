@@ -0,0 +1,101 @@
+/*
+Copyright (c) 2010 Eric Glass
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+
+package org.exjello.mail;
+
+import java.io.InputStream;
+
+import javax.mail.MessagingException;
+
+/**
+ * An attachment of an {@link ExchangeMessage}, as listed by the server.
+ * Its content is downloaded on its own, without fetching the rest of the
+ * message.
+ */
+public final class ExchangeAttachment {
+
+    private final ExchangeMessage message;
+
+    private final String url;
+
+    private final String fileName;
+
+    private final String contentType;
+
+    private final long size;
+
+    ExchangeAttachment(ExchangeMessage message, String url, String fileName,
+            String contentType, long size) {
+        this.message = message;
+        this.url = url;
+        this.fileName = fileName;
+        this.contentType = contentType;
+        this.size = size;
+    }
+
+    public ExchangeMessage getMessage() {
+        return message;
+    }
+
+    /**
+     * Returns the URL of the attachment on an Exchange 2003 server, or its
+     * attachment id on an Exchange 2007 server.
+     */
+    public String getUrl() {
+        return url;
+    }
+
+    public String getFileName() {
+        return fileName;
+    }
+
+    /**
+     * Returns the MIME type of the attachment, or <code>null</code> if the
+     * server did not report one.
+     */
+    public String getContentType() {
+        return contentType;
+    }
+
+    /**
+     * Returns the size of the attachment in bytes as reported by the
+     * server, or -1 if unknown.
+     */
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * Opens the content of the attachment, streamed from the server as it
+     * is read, or from a spool file once downloaded from an Exchange 2007
+     * server.  The stream must be closed to release the connection or the
+     * spool file.
+     */
+    public InputStream getInputStream() throws MessagingException {
+        return message.getAttachmentStream(this);
+    }
+
+    public String toString() {
+        return fileName;
+    }
+
+}
@@ -24,6 +24,7 @@ package org.exjello.mail;
 
 import java.io.InputStream;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
 
 import javax.mail.internet.MimeMessage;
 
@@ -31,12 +32,58 @@ interface ExchangeConnection {
 
 	public void connect() throws Exception;
 
+	public void close() throws Exception;
+
 	public List<String> getMessages(String name) throws Exception;
 
+	/**
+	 * Lists <code>count</code> messages of the folder starting at the given
+	 * zero-based position, within the window selected by the configured
+	 * offset and limit.
+	 */
+	public List<String> getMessages(String name, int start, int count)
+			throws Exception;
+
+	/**
+	 * Returns the number of messages the folder's listing would contain,
+	 * without listing it, or -1 if that can only be found by listing.
+	 */
+	public int getMessageCount(String name) throws Exception;
+
+	/**
+	 * Returns the server's message counts for the folder as a whole,
+	 * regardless of the configured filters and window.
+	 */
+	public FolderStatistics getStatistics(String name) throws Exception;
+
+	/**
+	 * Returns the counts of compressed responses received, or
+	 * <code>null</code> if the connection does not negotiate compression.
+	 */
+	public CompressionStatistics getCompressionStatistics();
+
+	/**
+	 * Returns the executor on which asynchronous operations run, shared by
+	 * the connections to the same server with the same credentials.
+	 */
+	public ExecutorService getExecutor();
+
+	public List<String> search(String name, String condition) throws Exception;
+
 	public void send(MimeMessage message) throws Exception;
 
 	public void delete(List<ExchangeMessage> messages) throws Exception;
 
 	public InputStream getInputStream(ExchangeMessage message) throws Exception;
 
+	/**
+	 * Lists the attachments of the given message, or returns
+	 * <code>null</code> if the server cannot list them separately.
+	 */
+	public List<ExchangeAttachment> getAttachments(ExchangeMessage message)
+			throws Exception;
+
+	public InputStream getAttachmentStream(ExchangeAttachment attachment)
+			throws Exception;
+
 }
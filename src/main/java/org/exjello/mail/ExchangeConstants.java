@@ -91,6 +91,306 @@ public interface ExchangeConstants {
      */
     public static final String LIMIT_PROPERTY = "org.exjello.mail.limit";
 
+    /**
+     * Number of messages skipped at the start of the listing before the
+     * limit is applied, so that <code>offset</code> and <code>limit</code>
+     * together select a window of the folder.  Defaults to 0.
+     */
+    public static final String OFFSET_PROPERTY = "org.exjello.mail.offset";
+
+    /**
+     * Field the listing is sorted by on the server; one of
+     * "<code>received</code>", "<code>created</code>", "<code>sent</code>",
+     * "<code>subject</code>" or "<code>size</code>", or a property name
+     * understood by the server ("<code>urn:schemas:httpmail:importance</code>"
+     * for Exchange 2003, "<code>item:Importance</code>" for Exchange 2007).
+     * Defaults to the creation date for Exchange 2003 and the received date
+     * for Exchange 2007.
+     */
+    public static final String ORDER_BY_PROPERTY = "org.exjello.mail.orderby";
+
+    /**
+     * Direction of the listing, "<code>ascending</code>" (oldest first when
+     * sorted by date) or "<code>descending</code>".  Combined with the limit,
+     * "<code>descending</code>" lists only the newest messages.  Defaults to
+     * "<code>ascending</code>".
+     */
+    public static final String ORDER_PROPERTY = "org.exjello.mail.order";
+
+    /**
+     * Specifies whether folders are opened lazily: "<code>true</code>" only
+     * counts the messages when the folder is opened, and lists them a page
+     * at a time as they are reached, prefetching the following page in the
+     * background.  Takes effect only when the server can count the listing,
+     * that is when no date, sender or recipient filter is set.  Defaults to
+     * "<code>false</code>" (list the whole folder when it is opened).
+     */
+    public static final String LAZY_OPEN_PROPERTY = "org.exjello.mail.lazy";
+
+    /**
+     * Number of messages listed at a time by a lazily opened folder.
+     * Defaults to 500.
+     */
+    public static final String LAZY_PAGE_SIZE_PROPERTY =
+            "org.exjello.mail.lazy.pagesize";
+
+    /**
+     * Time in milliseconds for which a folder's message and unread counts,
+     * read from the server without opening the folder, are reused.
+     * Defaults to 5000; 0 reads them on every call.
+     */
+    public static final String STATISTICS_TTL_PROPERTY =
+            "org.exjello.mail.statistics.ttl";
+
+    /**
+     * Specifies whether message content is streamed to the caller straight
+     * from the server instead of spooled to a temporary file first:
+     * "<code>true</code>" suits consumers reading each message once, as
+     * every read of the content fetches it again.  Applies to the
+     * Exchange 2003 store.  Defaults to "<code>false</code>".
+     */
+    public static final String STREAM_PROPERTY = "org.exjello.mail.stream";
+
+    /**
+     * Specifies whether responses may be sent compressed with gzip or
+     * deflate, which shrinks WebDAV listings considerably.  Applies to the
+     * Exchange 2003 store.  Defaults to "<code>true</code>".
+     */
+    public static final String COMPRESSION_PROPERTY =
+            "org.exjello.mail.compression";
+
+    /**
+     * Number of messages whose content a folder's message iterator keeps
+     * downloading ahead of the caller; 0 disables read-ahead.  This is
+     * also the most that an open folder downloads ahead on its own once
+     * it sees messages read in sequence.  Ignored when content is
+     * streamed.  Defaults to 4.
+     */
+    public static final String READ_AHEAD_PROPERTY =
+            "org.exjello.mail.readahead";
+
+    /**
+     * Number of bytes of content read ahead in sequence that may be held
+     * before it is read; beyond this the messages furthest ahead are
+     * dropped and downloaded again if reached.  Defaults to 16777216.
+     */
+    public static final String READ_AHEAD_BUDGET_PROPERTY =
+            "org.exjello.mail.readahead.budget";
+
+    /**
+     * Directory in which message content is spooled, e.g. a tmpfs mount.
+     * Each JVM spools into its own subdirectory, and subdirectories left
+     * behind by JVMs that have exited are removed.  Defaults to the
+     * "<code>java.io.tmpdir</code>" directory.
+     */
+    public static final String SPOOL_DIRECTORY_PROPERTY =
+            "org.exjello.mail.spool.directory";
+
+    /**
+     * Maximum number of bytes held in the spool; fetching a message while
+     * the spool is full fails until spooled messages are released, e.g. by
+     * closing their folder.  Defaults to -1 (unlimited).
+     */
+    public static final String SPOOL_QUOTA_PROPERTY =
+            "org.exjello.mail.spool.quota";
+
+    /**
+     * Number of times a message download interrupted by an I/O error is
+     * resumed from the last byte received, using a ranged request
+     * validated against the message's entity tag or modification date.
+     * Applies to the Exchange 2003 store.  Defaults to 3.
+     */
+    public static final String DOWNLOAD_RETRIES_PROPERTY =
+            "org.exjello.mail.download.retries";
+
+    /**
+     * Number of byte ranges a large message is downloaded in at once.
+     * Applies to the Exchange 2003 store.  Defaults to 1 (sequential).
+     */
+    public static final String DOWNLOAD_PARALLEL_PROPERTY =
+            "org.exjello.mail.download.parallel";
+
+    /**
+     * Size in bytes from which a message is downloaded in parallel ranges.
+     * Defaults to 8388608 (8 MB).
+     */
+    public static final String DOWNLOAD_PARALLEL_THRESHOLD_PROPERTY =
+            "org.exjello.mail.download.parallel.threshold";
+
+    /**
+     * Maximum number of HTTP connections shared by all stores and transports
+     * connected to the same server with the same credentials.  Defaults to
+     * 20.
+     */
+    public static final String POOL_MAX_CONNECTIONS_PROPERTY =
+            "org.exjello.mail.pool.maxconnections";
+
+    /**
+     * Maximum number of shared HTTP connections a single mailbox may use
+     * at once.  By default the pool is split evenly among the mailboxes
+     * currently connected.
+     */
+    public static final String POOL_MAX_PER_MAILBOX_PROPERTY =
+            "org.exjello.mail.pool.maxpermailbox";
+
+    /**
+     * Property selecting how the Exchange 2003 store and transport send
+     * their requests: "httpclient" (the default) through commons-httpclient,
+     * or "socket" over pooled sockets of their own, which support Basic
+     * and forms-based authentication but not NTLM.
+     */
+    public static final String HTTP_TRANSPORT_PROPERTY =
+            "org.exjello.mail.http.transport";
+
+    /**
+     * Property enabling hedged requests on the Exchange 2003 store: a GET,
+     * SEARCH or PROPFIND still waiting for its response headers after the
+     * hedge percentile of recent response times is sent again on another
+     * connection, and whichever response arrives first is used.  Defaults
+     * to "false".
+     */
+    public static final String HEDGE_PROPERTY = "org.exjello.mail.hedge";
+
+    /**
+     * Property specifying the percentile of recent response times after
+     * which a request is hedged.  Defaults to 95.
+     */
+    public static final String HEDGE_PERCENTILE_PROPERTY =
+            "org.exjello.mail.hedge.percentile";
+
+    /**
+     * Property specifying the most hedged requests sent, as a percentage of
+     * all requests.  Defaults to 5.
+     */
+    public static final String HEDGE_BUDGET_PROPERTY =
+            "org.exjello.mail.hedge.budget";
+
+    /**
+     * Property specifying the most requests made to one server at once by
+     * all stores and transports in the JVM.  When the server reports that
+     * it is busy, returns a server error or times out the limit is halved,
+     * and when its response times rise well above their long-term average
+     * the limit is cut by a tenth; it is restored gradually as requests
+     * succeed.  The current limits and queueing times are available from
+     * {@link ConcurrencyLimiter#getLimiters()}.  Defaults to 20.
+     */
+    public static final String THROTTLE_SERVER_PROPERTY =
+            "org.exjello.mail.throttle.server";
+
+    /**
+     * Property specifying the most requests made on behalf of one mailbox
+     * at once, adapted in the same way as the server limit.  Defaults to 10.
+     */
+    public static final String THROTTLE_MAILBOX_PROPERTY =
+            "org.exjello.mail.throttle.mailbox";
+
+    /**
+     * Property specifying how many times a request rejected because the
+     * server is busy is retried, after the back-off period the server
+     * requests.  Only requests that read from the server are retried;
+     * sending, moving, updating or deleting fails at once.
+     * Defaults to 3.
+     */
+    public static final String THROTTLE_RETRIES_PROPERTY =
+            "org.exjello.mail.throttle.retries";
+
+    /**
+     * System property selecting the threads that run background work:
+     * "platform" (the default) or "virtual", which on Java 21 and later
+     * runs read-ahead, parallel downloads, polling and asynchronous
+     * operations on virtual threads.  It is read from the system
+     * properties rather than the session, since the threads are shared
+     * by every session in the JVM.
+     */
+    public static final String THREADS_PROPERTY = "org.exjello.mail.threads";
+
+    /**
+     * Property specifying the path of the Exchange Web Services endpoint
+     * used by the Exchange 2007 store and transport, relative to the
+     * server.  Defaults to "/EWS/Exchange.asmx".
+     */
+    public static final String EWS_PATH_PROPERTY = "org.exjello.mail.ews.path";
+
+    /**
+     * Property specifying the number of items requested per
+     * <code>FindItem</code> page when listing an Exchange 2007 folder.
+     * Defaults to 500.
+     */
+    public static final String EWS_PAGE_SIZE_PROPERTY =
+            "org.exjello.mail.ews.pagesize";
+
+    /**
+     * Property specifying the maximum number of items fetched, deleted or
+     * updated in a single Exchange Web Services request.  Message content
+     * is fetched ahead in batches of this size and spooled until read.
+     * Defaults to 50.
+     */
+    public static final String EWS_BATCH_SIZE_PROPERTY =
+            "org.exjello.mail.ews.batchsize";
+
+    /**
+     * Specifies whether messages sent through the Exchange 2007 transport
+     * are saved to the Sent Items folder ("SendAndSaveCopy") or only sent
+     * ("SendOnly").  Defaults to true.
+     */
+    public static final String EWS_SAVE_COPY_PROPERTY =
+            "org.exjello.mail.ews.savecopy";
+
+    /**
+     * Property specifying the maximum number of messages the Exchange 2007
+     * transport submits in a single <code>CreateItem</code> call when
+     * messages are queued with <code>queueMessage</code>.  Defaults to 50.
+     */
+    public static final String EWS_SEND_BATCH_SIZE_PROPERTY =
+            "org.exjello.mail.ews.send.batchsize";
+
+    /**
+     * Property specifying the longest time in milliseconds a queued message
+     * waits for its batch to fill before the batch is sent anyway.
+     * Defaults to 1000.
+     */
+    public static final String EWS_SEND_FLUSH_INTERVAL_PROPERTY =
+            "org.exjello.mail.ews.send.flushinterval";
+
+    /**
+     * Specifies whether the Exchange 2007 store lists folders incrementally
+     * using <code>SyncFolderItems</code> rather than a full
+     * <code>FindItem</code> listing on every open.  Items keep their
+     * message numbers across opens; new items are appended.
+     */
+    public static final String EWS_SYNC_PROPERTY = "org.exjello.mail.ews.sync";
+
+    /**
+     * Property specifying a directory in which the sync state of each
+     * mailbox and folder is persisted between sessions.  If unset, the
+     * state is kept only for the lifetime of the store connection.
+     */
+    public static final String EWS_SYNC_DIRECTORY_PROPERTY =
+            "org.exjello.mail.ews.syncdir";
+
+    /**
+     * Specifies whether an open Exchange 2007 folder is kept up to date
+     * through a pull subscription.  New and removed messages are reported
+     * to the folder's <code>MessageCountListener</code>s while it is open.
+     */
+    public static final String EWS_NOTIFY_PROPERTY =
+            "org.exjello.mail.ews.notify";
+
+    /**
+     * Property specifying the interval in milliseconds between requests
+     * for subscription events.  Defaults to 500.
+     */
+    public static final String EWS_NOTIFY_INTERVAL_PROPERTY =
+            "org.exjello.mail.ews.notify.interval";
+
+    /**
+     * Property specifying the time in minutes after which the server
+     * drops an unpolled subscription.  Subscriptions that expire or fail
+     * are renewed automatically.  Defaults to 10.
+     */
+    public static final String EWS_NOTIFY_TIMEOUT_PROPERTY =
+            "org.exjello.mail.ews.notify.timeout";
+
     /**
      * Property specifying the mailbox to which the connection is made
      * (used for both SMTP and POP3). This is an e-mail address,
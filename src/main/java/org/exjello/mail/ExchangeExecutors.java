@@ -0,0 +1,115 @@
+/*
+Copyright (c) 2010 Eric Glass
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+
+package org.exjello.mail;
+
+import java.lang.reflect.Method;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates the threads used for background work.  All threads are daemon
+ * threads, so that an abandoned store or poller never keeps the JVM alive.
+ * <p>
+ * If the system property {@link ExchangeConstants#THREADS_PROPERTY} is
+ * "virtual" and the JVM has virtual threads, the work runs on virtual
+ * threads instead.  They are created reflectively, so the library still
+ * runs on JVMs without them.
+ */
+final class ExchangeExecutors {
+
+    private static final boolean VIRTUAL;
+
+    private static final Method OF_VIRTUAL;
+
+    private static final Method NAME;
+
+    private static final Method FACTORY;
+
+    static {
+        Method ofVirtual = null;
+        Method name = null;
+        Method factory = null;
+        if ("virtual".equalsIgnoreCase(System.getProperty(
+                ExchangeConstants.THREADS_PROPERTY))) {
+            try {
+                Class<?> builder = Class.forName("java.lang.Thread$Builder");
+                ofVirtual = Thread.class.getMethod("ofVirtual");
+                name = builder.getMethod("name", String.class, long.class);
+                factory = builder.getMethod("factory");
+            } catch (Exception ex) {
+                // not available before Java 21
+                ofVirtual = null;
+            }
+        }
+        VIRTUAL = (ofVirtual != null);
+        OF_VIRTUAL = ofVirtual;
+        NAME = name;
+        FACTORY = factory;
+    }
+
+    private ExchangeExecutors() { }
+
+    public static ThreadFactory newThreadFactory(final String name) {
+        if (VIRTUAL) {
+            try {
+                Object builder = OF_VIRTUAL.invoke(null);
+                builder = NAME.invoke(builder, "exjello-" + name + "-", 1l);
+                return (ThreadFactory) FACTORY.invoke(builder);
+            } catch (Exception ex) {
+                throw new IllegalStateException(
+                        "Unable to create virtual threads.", ex);
+            }
+        }
+        return new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "exjello-" + name + "-" +
+                        count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
+    /**
+     * Returns an executor running each task on a thread of its own.  Idle
+     * platform threads are kept a while for reuse; virtual threads cost
+     * too little to be worth keeping.
+     */
+    public static ExecutorService newCachedThreadPool(String name) {
+        ThreadFactory threads = newThreadFactory(name);
+        if (!VIRTUAL) return Executors.newCachedThreadPool(threads);
+        return new ThreadPoolExecutor(0, Integer.MAX_VALUE, 0l,
+                TimeUnit.MILLISECONDS, new SynchronousQueue<Runnable>(),
+                        threads);
+    }
+
+}
@@ -25,11 +25,25 @@ package org.exjello.mail;
 import java.io.InputStream;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.TreeSet;
 import java.util.Vector;
 
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
 import javax.mail.Flags;
 import javax.mail.Folder;
 import javax.mail.FolderNotFoundException;
@@ -40,7 +54,9 @@ import javax.mail.Store;
 
 import javax.mail.event.ConnectionEvent;
 
-class ExchangeFolder extends Folder {
+import javax.mail.search.SearchTerm;
+
+public class ExchangeFolder extends Folder implements Iterable<Message> {
 
     public static final String INBOX = "INBOX";
     public static final String SENTITEMS = "SENT ITEMS";
@@ -49,16 +65,36 @@ class ExchangeFolder extends Folder {
 
     private static final String ROOT = "";
 
+    private static final Executor PREFETCH =
+            ExchangeExecutors.newCachedThreadPool("prefetch");
+
+    private static final ExecutorService READ_AHEAD =
+            ExchangeExecutors.newCachedThreadPool("read-ahead");
+
     private final String name;
 
     private final ExchangeConnection connection;
 
+    /*
+     * held while listing, so a lock rather than the folder's monitor,
+     * which would pin a virtual thread to its carrier for the request
+     */
+    private final Lock lock = new ReentrantLock();
+
+    private final Condition prefetched = lock.newCondition();
+
     private List<String> messages;
 
     private Vector<ExchangeMessage> cache;
 
     private Set<InputStream> openStreams;
 
+    private final Set<Integer> prefetching = new HashSet<Integer>();
+
+    private int pageSize;
+
+    private SequentialReadAhead sequential;
+
     private boolean open = false;
 
 	public ExchangeFolder(ExchangeStore store, String name,
@@ -73,7 +109,9 @@ class ExchangeFolder extends Folder {
 	}
 
 	public void close(boolean expunge) throws MessagingException {
-        synchronized (this) {
+        if (isOpen()) ((ExchangeStore) getStore()).folderClosed(this);
+        lock.lock();
+        try {
             if (!isOpen()) throw new IllegalStateException("Already closed.");
             if (ROOT.equals(getName())) {
                 throw new MethodNotSupportedException("close");
@@ -94,23 +132,30 @@ class ExchangeFolder extends Folder {
                             connection.delete(deletedMessages);
                         } catch (Exception ex) {
                             throw new MessagingException(ex.getMessage(), ex);
+                        } finally {
+                            ((ExchangeStore) getStore()).invalidateStatistics(
+                                    name);
                         }
                     }
                 }
             } finally {
                 cache.clear();
-                if (openStreams != null) {
-                    for (InputStream stream : openStreams) {
+                if (sequential != null) sequential.close();
+                sequential = null;
+                Set<InputStream> streams = openStreams;
+                openStreams = null;
+                if (streams != null) {
+                    for (InputStream stream : streams) {
                         try {
                             stream.close();
                         } catch (Exception ignore) { }
                     }
-                    openStreams.clear();
                 }
-                openStreams = null;
                 cache = null;
                 open = false;
             }
+        } finally {
+            lock.unlock();
         }
         notifyConnectionListeners(ConnectionEvent.CLOSED);
 	}
@@ -160,26 +205,108 @@ class ExchangeFolder extends Folder {
         if (ROOT.equals(getName())) {
             throw new MethodNotSupportedException("getMessage");
         }
-        synchronized (this) {
+        lock.lock();
+        try {
             int index = messageNumber - 1;
             ExchangeMessage message = cache.get(index);
             if (message == null) {
+                load(index, 1);
                 cache.set(index, (message = new ExchangeMessage(this,
                         messageNumber, messages.get(index), connection)));
             }
             return message;
+        } finally {
+            lock.unlock();
+        }
+	}
+
+    /**
+     * Returns the given range of messages; any of them not yet listed are
+     * listed together, with a single request for just those rows.
+     */
+    public Message[] getMessages(int start, int end)
+            throws MessagingException {
+        if (!isOpen()) throw new IllegalStateException("Folder is closed.");
+        if (!exists()) throw new FolderNotFoundException(this);
+        if (ROOT.equals(getName())) {
+            throw new MethodNotSupportedException("getMessages");
+        }
+        lock.lock();
+        try {
+            if (end < start) return new Message[0];
+            if (start < 1 || end > messages.size()) {
+                throw new IndexOutOfBoundsException("Messages " + start +
+                        " to " + end + " of " + messages.size());
+            }
+            load(start - 1, end - start + 1);
+            Message[] result = new Message[end - start + 1];
+            for (int i = 0; i < result.length; i++) {
+                result[i] = getCachedMessage(start - 1 + i);
+            }
+            return result;
+        } finally {
+            lock.unlock();
         }
 	}
 
+    /**
+     * Returns the number of messages listed when the folder is open, and
+     * the number of messages in the folder on the server otherwise.
+     */
 	public int getMessageCount() throws MessagingException {
-        if (!isOpen()) return -1;
         if (!exists()) throw new FolderNotFoundException(this);
         if (ROOT.equals(getName())) return 0;
-        synchronized (this) {
-            return messages.size();
+        lock.lock();
+        try {
+            if (open) return messages.size();
+        } finally {
+            lock.unlock();
         }
+        return ((ExchangeStore) getStore()).getStatistics(
+                name).getMessageCount();
 	}
 
+    /**
+     * Returns the server's unread count for the folder, whether or not it
+     * is open, without listing or fetching any message.
+     */
+    public int getUnreadMessageCount() throws MessagingException {
+        if (!exists()) throw new FolderNotFoundException(this);
+        if (ROOT.equals(getName())) return 0;
+        return ((ExchangeStore) getStore()).getStatistics(
+                name).getUnreadCount();
+    }
+
+    /**
+     * Exchange has no notion of recent messages; unread messages are the
+     * ones not yet retrieved, so they are reported as new.
+     */
+    public int getNewMessageCount() throws MessagingException {
+        return getUnreadMessageCount();
+    }
+
+    /**
+     * Returns the number of messages marked deleted in the open folder.
+     * Deletion is only applied on the server when the folder is closed
+     * with expunge, so a closed folder has none.
+     */
+    public int getDeletedMessageCount() throws MessagingException {
+        if (!exists()) throw new FolderNotFoundException(this);
+        lock.lock();
+        try {
+            if (!open) return 0;
+            int count = 0;
+            for (ExchangeMessage message : cache) {
+                if (message != null && message.isSet(Flags.Flag.DELETED)) {
+                    count++;
+                }
+            }
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
 	public String getName() {
 		return name;
 	}
@@ -209,8 +336,11 @@ class ExchangeFolder extends Folder {
 
 	public boolean isOpen() {
         if (ROOT.equals(getName())) return false;
-        synchronized (this) {
+        lock.lock();
+        try {
             return open;
+        } finally {
+            lock.unlock();
         }
 	}
 
@@ -235,10 +365,21 @@ class ExchangeFolder extends Folder {
             throw new MethodNotSupportedException("open");
         }
         ExchangeStore store = (ExchangeStore) getStore();
-        synchronized (this) {
+        lock.lock();
+        try {
             this.mode = mode;
             try {
-                messages = connection.getMessages(name);
+                int count = store.isLazyOpen() ?
+                        connection.getMessageCount(name) : -1;
+                if (count >= 0) {
+                    // rows are listed a page at a time as they are reached
+                    pageSize = store.getLazyPageSize();
+                    messages = new ArrayList<String>(
+                            Collections.nCopies(count, (String) null));
+                } else {
+                    pageSize = 0;
+                    messages = connection.getMessages(name);
+                }
             } catch (MessagingException ex) {
                 throw ex;
             } catch (Exception ex) {
@@ -246,21 +387,374 @@ class ExchangeFolder extends Folder {
             }
             cache = new Vector<ExchangeMessage>(messages.size());
             cache.setSize(cache.capacity());
+            int readAhead = store.getReadAhead();
+            sequential = (readAhead > 0 && !store.isStreaming()) ?
+                    new SequentialReadAhead(this, readAhead,
+                            store.getReadAheadBudget()) : null;
             open = true;
+        } finally {
+            lock.unlock();
         }
         notifyConnectionListeners(ConnectionEvent.OPENED);
+        store.folderOpened(this);
 	}
 
+    /**
+     * Searches on the server as far as the term can be expressed there,
+     * evaluating only the remainder locally.
+     */
+    public Message[] search(SearchTerm term) throws MessagingException {
+        if (!isOpen()) throw new IllegalStateException("Folder is closed.");
+        SearchTermTranslator.Translation translation =
+                SearchTermTranslator.translate(term);
+        if (translation.getCondition() == null) return super.search(term);
+        List<String> urls;
+        try {
+            urls = connection.search(name, translation.getCondition());
+        } catch (Exception ex) {
+            throw new MessagingException(ex.getMessage(), ex);
+        }
+        if (urls == null) return super.search(term);
+        Set<Integer> numbers = new TreeSet<Integer>();
+        lock.lock();
+        try {
+            load(0, messages.size());
+            Map<String, Integer> indexes = new HashMap<String, Integer>();
+            for (int i = 0; i < messages.size(); i++) {
+                indexes.put(messages.get(i), i + 1);
+            }
+            for (String url : urls) {
+                Integer number = indexes.get(url);
+                if (number != null) numbers.add(number);
+            }
+        } finally {
+            lock.unlock();
+        }
+        SearchTerm residual = translation.getResidual();
+        List<Message> matches = new ArrayList<Message>();
+        for (int number : numbers) {
+            Message message = getMessage(number);
+            if (residual == null || message.match(residual)) {
+                matches.add(message);
+            }
+        }
+        return matches.toArray(new Message[matches.size()]);
+    }
+
 	public boolean renameTo(Folder target) throws MessagingException {
 		throw new MethodNotSupportedException("renameTo");
 	}
 
-    public void register(InputStream stream) throws MessagingException {
+    /**
+     * Brings the open folder in line with the given listing, removing
+     * messages no longer present and appending new ones, and notifies
+     * listeners of both.
+     */
+    void update(List<String> listing) throws MessagingException {
+        List<String> removed = new ArrayList<String>();
+        List<String> added = new ArrayList<String>();
+        lock.lock();
+        try {
+            if (!open) return;
+            load(0, messages.size());
+            Set<String> current = new HashSet<String>(messages);
+            Set<String> updated = new HashSet<String>(listing);
+            for (String url : messages) {
+                if (!updated.contains(url)) removed.add(url);
+            }
+            for (String url : listing) {
+                if (!current.contains(url)) added.add(url);
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (!removed.isEmpty()) messagesRemoved(removed);
+        if (!added.isEmpty()) messagesAdded(added);
+    }
+
+    void messagesAdded(List<String> urls) {
+        Message[] added;
+        lock.lock();
+        try {
+            if (!open || urls.isEmpty()) return;
+            int start = messages.size();
+            messages = new ArrayList<String>(messages);
+            messages.addAll(urls);
+            cache.setSize(messages.size());
+            added = new Message[urls.size()];
+            for (int i = 0; i < added.length; i++) {
+                added[i] = getCachedMessage(start + i);
+            }
+        } finally {
+            lock.unlock();
+        }
+        notifyMessageAddedListeners(added);
+    }
+
+    void messagesRemoved(Collection<String> urls) {
+        List<Message> removed = new ArrayList<Message>();
+        lock.lock();
+        try {
+            if (!open || urls.isEmpty()) return;
+            Set<String> gone = new HashSet<String>(urls);
+            List<String> remaining = new ArrayList<String>(messages.size());
+            Vector<ExchangeMessage> remainingCache =
+                    new Vector<ExchangeMessage>(messages.size());
+            for (int i = 0; i < messages.size(); i++) {
+                ExchangeMessage message = cache.get(i);
+                if (gone.contains(messages.get(i))) {
+                    message = getCachedMessage(i);
+                    message.setExpunged(true);
+                    removed.add(message);
+                } else {
+                    if (message != null) {
+                        message.setMessageNumber(remaining.size() + 1);
+                    }
+                    remaining.add(messages.get(i));
+                    remainingCache.add(message);
+                }
+            }
+            messages = remaining;
+            cache = remainingCache;
+        } finally {
+            lock.unlock();
+        }
+        if (!removed.isEmpty()) {
+            notifyMessageRemovedListeners(true,
+                    removed.toArray(new Message[removed.size()]));
+        }
+    }
+
+    /**
+     * Iterates over all the messages of the open folder, downloading ahead
+     * of the caller as many messages as the store's read-ahead setting.
+     */
+    public MessageIterator iterator() {
+        int count;
+        lock.lock();
+        try {
+            if (!open) throw new IllegalStateException("Folder is closed.");
+            count = messages.size();
+        } finally {
+            lock.unlock();
+        }
+        return iterator(1, count,
+                ((ExchangeStore) getStore()).getReadAhead());
+    }
+
+    /**
+     * Iterates over the messages from <code>start</code> through
+     * <code>end</code>, keeping up to <code>readAhead</code> messages
+     * downloading ahead of the caller.
+     */
+    public MessageIterator iterator(int start, int end, int readAhead) {
+        if (!isOpen()) throw new IllegalStateException("Folder is closed.");
+        if (((ExchangeStore) getStore()).isStreaming()) readAhead = 0;
+        return new MessageIterator(this, start, end, Math.max(0, readAhead));
+    }
+
+    /**
+     * Downloads the content of the given message in the background, or
+     * returns <code>null</code> if it is not in the folder.
+     */
+    Future<?> readAhead(final int messageNumber) {
+        lock.lock();
+        try {
+            if (!open || messageNumber < 1 ||
+                    messageNumber > messages.size()) {
+                return null;
+            }
+        } finally {
+            lock.unlock();
+        }
+        return READ_AHEAD.submit(new Callable<Object>() {
+            public Object call() throws Exception {
+                long start = System.currentTimeMillis();
+                if (((ExchangeMessage) getMessage(messageNumber)).fetch()) {
+                    SequentialReadAhead sequential;
+                    lock.lock();
+                    try {
+                        sequential = ExchangeFolder.this.sequential;
+                    } finally {
+                        lock.unlock();
+                    }
+                    if (sequential != null) {
+                        sequential.fetched(System.currentTimeMillis() - start);
+                    }
+                }
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Called as the content of one of this folder's messages is read,
+     * after waiting the given time for it to be available.
+     */
+    void contentAccessed(ExchangeMessage message, long waited) {
+        SequentialReadAhead sequential;
+        lock.lock();
+        try {
+            sequential = this.sequential;
+        } finally {
+            lock.unlock();
+        }
+        if (sequential != null) {
+            sequential.accessed(message.getMessageNumber(), waited);
+        }
+    }
+
+    /**
+     * Returns the size of the given message's content if it was read
+     * ahead and has not been read since, and 0 otherwise.
+     */
+    long getUnreadSize(int messageNumber) {
+        ExchangeMessage message = getLoadedMessage(messageNumber);
+        return (message != null) ? message.getUnreadSize() : 0;
+    }
+
+    /**
+     * Drops the content of the given message if it was read ahead and has
+     * not been read since; it is downloaded again if needed.
+     */
+    void evict(int messageNumber) {
+        ExchangeMessage message = getLoadedMessage(messageNumber);
+        if (message != null) message.evict();
+    }
+
+    private ExchangeMessage getLoadedMessage(int messageNumber) {
+        lock.lock();
+        try {
+            if (!open || messageNumber < 1 || messageNumber > cache.size()) {
+                return null;
+            }
+            return cache.get(messageNumber - 1);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    ExchangeConnection getConnection() {
+        return connection;
+    }
+
+    /**
+     * Lists the rows of the given range whose URLs are not yet known.  A
+     * lazily opened folder lists whole pages, waiting for any page already
+     * being prefetched, and then prefetches the page following the range.
+     */
+    private void load(int index, int count) throws MessagingException {
+        int first = index;
+        int last = index + count - 1;
+        if (pageSize > 0) {
+            first = first / pageSize * pageSize;
+            last = Math.min(messages.size() - 1,
+                    (last / pageSize + 1) * pageSize - 1);
+            for (int page = first; page <= last; page += pageSize) {
+                while (prefetching.contains(page)) {
+                    try {
+                        prefetched.await();
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                        throw new MessagingException(ex.getMessage(), ex);
+                    }
+                }
+            }
+        }
+        int next = last + 1;
+        while (first <= last && messages.get(first) != null) first++;
+        while (last >= first && messages.get(last) != null) last--;
+        if (first <= last) {
+            List<String> urls;
+            try {
+                urls = connection.getMessages(name, first, last - first + 1);
+            } catch (Exception ex) {
+                throw new MessagingException(ex.getMessage(), ex);
+            }
+            if (urls.size() < last - first + 1) {
+                throw new MessagingException("Listing of " + name +
+                        " changed; reopen the folder.");
+            }
+            for (int i = first; i <= last; i++) {
+                messages.set(i, urls.get(i - first));
+            }
+        }
+        if (pageSize > 0 && next < messages.size() &&
+                messages.get(next) == null) {
+            prefetch(next, Math.min(pageSize, messages.size() - next));
+        }
+    }
+
+    /**
+     * Lists the given page in the background.  The result is discarded if
+     * the folder has been closed or its listing replaced meanwhile.
+     */
+    private void prefetch(final int first, final int count) {
+        if (!prefetching.add(first)) return;
+        final List<String> listing = messages;
+        PREFETCH.execute(new Runnable() {
+            public void run() {
+                List<String> urls = null;
+                try {
+                    urls = connection.getMessages(name, first, count);
+                } catch (Exception ignore) {
+                    // listed again when the page is reached
+                }
+                lock.lock();
+                try {
+                    prefetching.remove(first);
+                    if (open && listing == messages && urls != null &&
+                            urls.size() >= count) {
+                        for (int i = 0; i < count; i++) {
+                            if (messages.get(first + i) == null) {
+                                messages.set(first + i, urls.get(i));
+                            }
+                        }
+                    }
+                    prefetched.signalAll();
+                } finally {
+                    lock.unlock();
+                }
+            }
+        });
+    }
+
+    private ExchangeMessage getCachedMessage(int index) {
+        ExchangeMessage message = cache.get(index);
+        if (message == null) {
+            try {
+                message = new ExchangeMessage(this, index + 1,
+                        messages.get(index), connection);
+            } catch (MessagingException ex) {
+                throw new IllegalStateException(ex.getMessage(), ex);
+            }
+            cache.set(index, message);
+        }
+        return message;
+    }
+
+    void register(InputStream stream) throws MessagingException {
         if (!isOpen()) throw new IllegalStateException("Folder is closed.");
         if (!exists()) throw new FolderNotFoundException(this);
-        synchronized (this) {
+        lock.lock();
+        try {
             if (openStreams == null) openStreams = new HashSet<InputStream>();
             openStreams.add(stream);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Forgets a stream closed before the folder, so that a long-lived
+     * folder does not keep every stream it ever handed out.
+     */
+    void unregister(InputStream stream) {
+        lock.lock();
+        try {
+            if (openStreams != null) openStreams.remove(stream);
+        } finally {
+            lock.unlock();
         }
     }
 
@@ -0,0 +1,129 @@
+/*
+Copyright (c) 2010 Eric Glass
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+
+package org.exjello.mail;
+
+import java.util.concurrent.ThreadFactory;
+
+import javax.mail.Session;
+
+/**
+ * Keeps an open Exchange 2007 folder up to date through a pull
+ * subscription.  Whenever the subscription reports item events, the
+ * folder is listed again the way it was opened, with the same window, and
+ * listeners are told of added and removed messages.  A subscription that
+ * expires or fails is renewed, and the folder listed again to pick up
+ * anything missed in between.
+ */
+final class ExchangeFolderWatcher implements Runnable {
+
+    private static final ThreadFactory THREADS =
+            ExchangeExecutors.newThreadFactory("watcher");
+
+    private static final long MAX_RETRY_DELAY = 60000;
+
+    private final Session session;
+
+    private final ExchangeFolder folder;
+
+    private final Exchange2007Connection connection;
+
+    private final long interval;
+
+    private final int timeout;
+
+    private volatile boolean running;
+
+    private Thread thread;
+
+    public ExchangeFolderWatcher(Session session, ExchangeFolder folder,
+            Exchange2007Connection connection, long interval, int timeout) {
+        this.session = session;
+        this.folder = folder;
+        this.connection = connection;
+        this.interval = interval;
+        this.timeout = timeout;
+    }
+
+    public void start() {
+        synchronized (this) {
+            if (thread != null) throw new IllegalStateException("Started.");
+            running = true;
+            thread = THREADS.newThread(this);
+            thread.start();
+        }
+    }
+
+    public void stop() {
+        synchronized (this) {
+            running = false;
+            if (thread != null) thread.interrupt();
+        }
+    }
+
+    public void run() {
+        Exchange2007Connection.Subscription subscription = null;
+        long delay = interval;
+        try {
+            while (running) {
+                try {
+                    if (subscription == null) {
+                        subscription = connection.subscribe(folder.getName(),
+                                timeout);
+                        refresh();
+                    }
+                    if (connection.getEvents(subscription)) refresh();
+                    delay = interval;
+                    if (!subscription.hasMoreEvents()) Thread.sleep(interval);
+                } catch (InterruptedException ex) {
+                    break;
+                } catch (Exception ex) {
+                    if (!running) break;
+                    if (session.getDebug()) {
+                        session.getDebugOut().println("Subscription to " +
+                                folder.getName() + " failed: " +
+                                        ex.getMessage() + "; renewing.");
+                    }
+                    subscription = null;
+                    try {
+                        Thread.sleep(delay);
+                    } catch (InterruptedException ex2) {
+                        break;
+                    }
+                    delay = Math.min(delay * 2, MAX_RETRY_DELAY);
+                }
+            }
+        } finally {
+            if (subscription != null) {
+                Thread.interrupted();
+                try {
+                    connection.unsubscribe(subscription);
+                } catch (Exception ignore) { }
+            }
+        }
+    }
+
+    private void refresh() throws Exception {
+        folder.update(connection.relist(folder.getName()));
+    }
+
+}
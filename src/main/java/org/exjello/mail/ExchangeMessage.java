@@ -24,23 +24,56 @@ package org.exjello.mail;
 
 import java.io.InputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 
+import java.util.Collections;
 import java.util.Enumeration;
+import java.util.List;
+
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 import javax.mail.IllegalWriteException;
 import javax.mail.MessagingException;
+import javax.mail.MethodNotSupportedException;
 
 import javax.mail.internet.InternetHeaders;
 import javax.mail.internet.MimeMessage;
 import javax.mail.internet.SharedInputStream;
 
-class ExchangeMessage extends MimeMessage {
+/**
+ * A message held on the Exchange server.  Content is fetched when first
+ * needed; attachments may also be listed and downloaded one at a time.
+ */
+public class ExchangeMessage extends MimeMessage {
+
+    private static final byte[] CRLF = new byte[] { '\r', '\n' };
 
     private final String url;
 
     private final ExchangeConnection connection;
 
-    public ExchangeMessage(ExchangeFolder folder, int messageNumber,
+    /* guards the content and headers across their download */
+    private final Lock lock = new ReentrantLock();
+
+    private List<ExchangeAttachment> attachments;
+
+    /* the spooled stream the content is read from, and its size */
+    private InputStream spooled;
+
+    private long spooledSize;
+
+    /* whether the content has been asked for, rather than read ahead */
+    private boolean read;
+
+    /* the size of content read ahead and not yet read, kept apart from the
+       lock so that the read-ahead never waits on a download or a reader */
+    private volatile long unreadSize;
+
+    /* set when content being read ahead is to be dropped once spooled */
+    private volatile boolean dropped;
+
+    ExchangeMessage(ExchangeFolder folder, int messageNumber,
             String url, ExchangeConnection connection)
                     throws MessagingException {
         super(folder, messageNumber);
@@ -52,18 +85,91 @@ class ExchangeMessage extends MimeMessage {
         return url;
     }
 
+    protected void setMessageNumber(int messageNumber) {
+        super.setMessageNumber(messageNumber);
+    }
+
+    protected void setExpunged(boolean expunged) {
+        super.setExpunged(expunged);
+    }
+
+    /**
+     * Lists the attachments of the message without fetching the message
+     * itself.
+     */
+    public List<ExchangeAttachment> getAttachments()
+            throws MessagingException {
+        lock.lock();
+        try {
+            if (attachments == null) {
+                List<ExchangeAttachment> listing;
+                try {
+                    listing = connection.getAttachments(this);
+                } catch (Exception ex) {
+                    throw new MessagingException(ex.getMessage(), ex);
+                }
+                if (listing == null) {
+                    throw new MethodNotSupportedException("getAttachments");
+                }
+                attachments = Collections.unmodifiableList(listing);
+            }
+            return attachments;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    InputStream getAttachmentStream(ExchangeAttachment attachment)
+            throws MessagingException {
+        try {
+            return connection.getAttachmentStream(attachment);
+        } catch (MessagingException ex) {
+            throw ex;
+        } catch (Exception ex) {
+            throw new MessagingException(ex.getMessage(), ex);
+        }
+    }
+
+    /**
+     * Returns the body of the message.  A spooled message is fetched once
+     * and kept; a message streamed straight from the server is not kept,
+     * so each call fetches it again, with its headers parsed on the way.
+     */
     protected InputStream getContentStream() throws MessagingException {
+        long start = System.currentTimeMillis();
+        InputStream stream;
+        lock.lock();
+        try {
+            read = true;
+            dropped = false;
+            unreadSize = 0;
+            stream = loadContent();
+        } finally {
+            lock.unlock();
+        }
+        if (folder instanceof ExchangeFolder) {
+            ((ExchangeFolder) folder).contentAccessed(this,
+                    System.currentTimeMillis() - start);
+        }
+        return stream;
+    }
+
+    private InputStream loadContent() throws MessagingException {
         try {
-            synchronized (this) {
-                if (contentStream == null) {
-                    InputStream stream = connection.getInputStream(this);
-                    headers = new InternetHeaders(stream);
-                    SharedInputStream shared = (SharedInputStream) stream;
-                    contentStream = shared.newStream(shared.getPosition(), -1l);
-                    stream = null;
+            if (contentStream == null) {
+                InputStream stream = connection.getInputStream(this);
+                if (!(stream instanceof SharedInputStream)) {
+                    InternetHeaders parsed = new InternetHeaders(stream);
+                    if (headers == null) headers = parsed;
+                    return stream;
                 }
-                return super.getContentStream();
+                headers = new InternetHeaders(stream);
+                SharedInputStream shared = (SharedInputStream) stream;
+                contentStream = shared.newStream(shared.getPosition(), -1l);
+                spooled = stream;
+                spooledSize = contentStream.available();
             }
+            return super.getContentStream();
         } catch (MessagingException ex) {
             throw ex;
         } catch (Exception ex) {
@@ -71,18 +177,120 @@ class ExchangeMessage extends MimeMessage {
         }
     }
 
+    /**
+     * Spools the content of the message if not already held, so that a
+     * later read finds it locally.  Returns whether it was downloaded.
+     */
+    boolean fetch() throws MessagingException {
+        lock.lock();
+        try {
+            if (contentStream != null) return false;
+            dropped = false;
+            try {
+                loadContent().close();
+            } catch (IOException ex) {
+                throw new MessagingException(ex.getMessage(), ex);
+            }
+            if (dropped) {
+                drop();
+            } else if (!read) {
+                unreadSize = spooledSize;
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the size of content spooled ahead of the caller and not yet
+     * read, or 0 if there is none.  Never waits for the message.
+     */
+    long getUnreadSize() {
+        return unreadSize;
+    }
+
+    /**
+     * Gives up content spooled ahead of the caller and not yet read,
+     * releasing its spool file.  Never waits for the message: content
+     * still downloading is dropped once the download completes, and a
+     * message being read is kept.
+     */
+    void evict() {
+        dropped = true;
+        if (!lock.tryLock()) return;
+        try {
+            drop();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void drop() {
+        dropped = false;
+        unreadSize = 0;
+        if (read || contentStream == null) return;
+        try {
+            contentStream.close();
+            spooled.close();
+        } catch (IOException ignore) {
+        } finally {
+            contentStream = null;
+            spooled = null;
+        }
+    }
+
+    /**
+     * Writes the message with a single fetch, so that a streamed message
+     * passes through without being fetched once for its headers and again
+     * for its body.
+     */
+    public void writeTo(OutputStream os, String[] ignoreList)
+            throws IOException, MessagingException {
+        InputStream stream = getContentStream();
+        try {
+            Enumeration lines;
+            lock.lock();
+            try {
+                lines = headers.getNonMatchingHeaderLines(ignoreList);
+            } finally {
+                lock.unlock();
+            }
+            while (lines.hasMoreElements()) {
+                os.write(((String) lines.nextElement()).getBytes(
+                        "ISO-8859-1"));
+                os.write(CRLF);
+            }
+            os.write(CRLF);
+            byte[] buf = new byte[8192];
+            int count;
+            while ((count = stream.read(buf, 0, buf.length)) != -1) {
+                os.write(buf, 0, count);
+            }
+        } finally {
+            stream.close();
+        }
+        os.flush();
+    }
+
     public String[] getHeader(String name) throws MessagingException {
-        synchronized (this) {
-            if (headers == null) loadHeaders();
+        loadHeaders();
+        lock.lock();
+        try {
             return headers.getHeader(name);
+        } finally {
+            lock.unlock();
         }
     }
 
     public String getHeader(String name, String delimiter)
             throws MessagingException {
-        synchronized (this) {
-            if (headers == null) loadHeaders();
+        loadHeaders();
+        lock.lock();
+        try {
             return headers.getHeader(name, delimiter);
+        } finally {
+            lock.unlock();
         }
     }
 
@@ -99,25 +307,34 @@ class ExchangeMessage extends MimeMessage {
     }
 
     public Enumeration getAllHeaders() throws MessagingException {
-        synchronized (this) {
-            if (headers == null) loadHeaders();
+        loadHeaders();
+        lock.lock();
+        try {
             return headers.getAllHeaders();
+        } finally {
+            lock.unlock();
         }
     }
 
     public Enumeration getMatchingHeaders(String[] names)
                         throws MessagingException {
-        synchronized (this) {
-            if (headers == null) loadHeaders();
+        loadHeaders();
+        lock.lock();
+        try {
             return headers.getMatchingHeaders(names);
+        } finally {
+            lock.unlock();
         }
     }
 
     public Enumeration getNonMatchingHeaders(String[] names)
                         throws MessagingException {
-        synchronized (this) {
-            if (headers == null) loadHeaders();
+        loadHeaders();
+        lock.lock();
+        try {
             return headers.getNonMatchingHeaders(names);
+        } finally {
+            lock.unlock();
         }
     }
 
@@ -126,25 +343,34 @@ class ExchangeMessage extends MimeMessage {
     }
 
     public Enumeration getAllHeaderLines() throws MessagingException {
-        synchronized (this) {
-            if (headers == null) loadHeaders();
+        loadHeaders();
+        lock.lock();
+        try {
             return headers.getAllHeaderLines();
+        } finally {
+            lock.unlock();
         }
     }
 
     public Enumeration getMatchingHeaderLines(String[] names)
                                         throws MessagingException {
-        synchronized (this) {
-            if (headers == null) loadHeaders();
+        loadHeaders();
+        lock.lock();
+        try {
             return headers.getMatchingHeaderLines(names);
+        } finally {
+            lock.unlock();
         }
     }
 
     public Enumeration getNonMatchingHeaderLines(String[] names)
                                         throws MessagingException {
-        synchronized (this) {
-            if (headers == null) loadHeaders();
+        loadHeaders();
+        lock.lock();
+        try {
             return headers.getNonMatchingHeaderLines(names);
+        } finally {
+            lock.unlock();
         }
     }
 
@@ -152,9 +378,21 @@ class ExchangeMessage extends MimeMessage {
         throw new IllegalWriteException("Write not supported.");
     }
 
+    /**
+     * Fetches the content if the headers have not been read yet.  This
+     * runs without the lock held, as reading the content notifies the
+     * folder's read-ahead, which must not wait on one message while
+     * holding another.
+     */
     private void loadHeaders() throws MessagingException {
+        lock.lock();
+        try {
+            if (headers != null) return;
+        } finally {
+            lock.unlock();
+        }
         try {
-            if (headers == null) getContentStream().close();
+            getContentStream().close();
         } catch (MessagingException ex) {
             throw ex;
         } catch (Exception ignore) { }
@@ -0,0 +1,323 @@
+/*
+Copyright (c) 2010 Eric Glass
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+
+package org.exjello.mail;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.mail.Flags;
+import javax.mail.Folder;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.Store;
+
+/**
+ * Polls a set of mailboxes on a single Exchange server, handing each new
+ * message to a {@link MessageHandler}.  Mailboxes are given in the same
+ * form accepted as a store username, e.g.
+ * "<code>MYDOMAIN\svc:shared@example.com[limit=50,interval=30000]</code>";
+ * in addition to the usual options, "interval" sets the time in
+ * milliseconds between polls of that mailbox and "folder" the folder
+ * polled (defaults to the inbox).
+ * <p>
+ * At most the given number of mailboxes are polled at once.  Messages
+ * accepted by the handler are deleted from the folder as they would be
+ * through the store, i.e. marked read unless the "delete" option is set;
+ * messages the handler rejects are left in place for the next poll.
+ */
+public class ExchangePoller {
+
+    private static final String INTERVAL_OPTION = "interval";
+
+    private static final String FOLDER_OPTION = "folder";
+
+    private final Session session;
+
+    private final String host;
+
+    private final long interval;
+
+    private final MessageHandler handler;
+
+    private final ThreadPoolExecutor workers;
+
+    private final ScheduledExecutorService scheduler;
+
+    private final Map<MailboxSpec, Mailbox> mailboxes =
+            new HashMap<MailboxSpec, Mailbox>();
+
+    private boolean running = false;
+
+    public ExchangePoller(Session session, String host, int concurrency,
+            long interval, MessageHandler handler) {
+        if (concurrency < 1) {
+            throw new IllegalArgumentException(
+                    "Invalid concurrency specified: " + concurrency);
+        }
+        if (interval < 0) {
+            throw new IllegalArgumentException(
+                    "Invalid interval specified: " + interval);
+        }
+        this.session = session;
+        this.host = host;
+        this.interval = interval;
+        this.handler = handler;
+        workers = new ThreadPoolExecutor(concurrency, concurrency, 0l,
+                TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(),
+                        ExchangeExecutors.newThreadFactory("poller"));
+        scheduler = new ScheduledThreadPoolExecutor(1,
+                ExchangeExecutors.newThreadFactory("poller-scheduler"));
+    }
+
+    public void addMailbox(String spec, String password) {
+        MailboxSpec mailboxSpec = MailboxSpec.parse(spec);
+        long mailboxInterval = interval;
+        String value = mailboxSpec.getOption(INTERVAL_OPTION);
+        if (value != null) {
+            try {
+                mailboxInterval = Long.parseLong(value);
+            } catch (NumberFormatException ex) {
+                throw new NumberFormatException(
+                        "Invalid interval specified: " + value);
+            }
+        }
+        Mailbox mailbox = new Mailbox(mailboxSpec, password, mailboxInterval);
+        synchronized (this) {
+            if (mailboxes.containsKey(mailboxSpec)) {
+                throw new IllegalArgumentException(
+                        "Mailbox already added: " + spec);
+            }
+            mailboxes.put(mailboxSpec, mailbox);
+            if (running) mailbox.schedule(0l);
+        }
+    }
+
+    public void removeMailbox(String spec) {
+        Mailbox mailbox;
+        synchronized (this) {
+            mailbox = mailboxes.remove(MailboxSpec.parse(spec));
+        }
+        if (mailbox != null) mailbox.cancel();
+    }
+
+    public void start() {
+        synchronized (this) {
+            if (running) throw new IllegalStateException("Already started.");
+            running = true;
+            for (Mailbox mailbox : mailboxes.values()) mailbox.schedule(0l);
+        }
+    }
+
+    /**
+     * Stops scheduling polls, waits for polls in progress to finish and
+     * disconnects from all mailboxes.
+     */
+    public void stop() throws InterruptedException {
+        List<Mailbox> stopped;
+        synchronized (this) {
+            if (!running) return;
+            running = false;
+            stopped = new ArrayList<Mailbox>(mailboxes.values());
+        }
+        scheduler.shutdownNow();
+        workers.shutdown();
+        workers.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        for (Mailbox mailbox : stopped) mailbox.cancel();
+    }
+
+    public PollerStatistics getStatistics(String spec) {
+        synchronized (this) {
+            Mailbox mailbox = mailboxes.get(MailboxSpec.parse(spec));
+            return (mailbox != null) ? mailbox.statistics : null;
+        }
+    }
+
+    public Map<MailboxSpec, PollerStatistics> getStatistics() {
+        Map<MailboxSpec, PollerStatistics> statistics =
+                new HashMap<MailboxSpec, PollerStatistics>();
+        synchronized (this) {
+            for (Mailbox mailbox : mailboxes.values()) {
+                statistics.put(mailbox.spec, mailbox.statistics);
+            }
+        }
+        return Collections.unmodifiableMap(statistics);
+    }
+
+    /**
+     * Number of polls that are due but waiting for a free worker.
+     */
+    public int getQueuedPolls() {
+        return workers.getQueue().size();
+    }
+
+    protected Store createStore(Session session) throws MessagingException {
+        return new ExchangeStore(session, null);
+    }
+
+    private boolean isActive(Mailbox mailbox) {
+        synchronized (this) {
+            return running && mailboxes.get(mailbox.spec) == mailbox;
+        }
+    }
+
+    public interface MessageHandler {
+
+        public void handleMessage(MailboxSpec mailbox, Message message)
+                throws Exception;
+
+    }
+
+    private class Mailbox implements Runnable {
+
+        private final MailboxSpec spec;
+
+        private final String password;
+
+        private final long interval;
+
+        private final PollerStatistics statistics = new PollerStatistics();
+
+        private final Lock lock = new ReentrantLock();
+
+        private Store store;
+
+        private long due;
+
+        public Mailbox(MailboxSpec spec, String password, long interval) {
+            this.spec = spec;
+            this.password = password;
+            this.interval = interval;
+        }
+
+        public void schedule(long delay) {
+            due = System.currentTimeMillis() + delay;
+            scheduler.schedule(new Runnable() {
+                public void run() {
+                    if (isActive(Mailbox.this)) workers.execute(Mailbox.this);
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        }
+
+        public void run() {
+            long start = System.currentTimeMillis();
+            statistics.pollStarted(start, Math.max(0l, start - due));
+            int[] counts = new int[2];
+            Exception failure = null;
+            try {
+                poll(counts);
+            } catch (Exception ex) {
+                failure = ex;
+                if (session.getDebug()) {
+                    session.getDebugOut().println("Poll of " + spec +
+                            " failed: " + ex.getMessage());
+                }
+                disconnect();
+            } finally {
+                long end = System.currentTimeMillis();
+                statistics.pollCompleted(end - start, counts[0], counts[1],
+                        failure);
+                if (isActive(this)) {
+                    schedule(Math.max(0l, start + interval - end));
+                } else {
+                    disconnect();
+                }
+            }
+        }
+
+        public void cancel() {
+            lock.lock();
+            try {
+                disconnect();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void poll(int[] counts) throws Exception {
+            lock.lock();
+            try {
+                if (store == null || !store.isConnected()) {
+                    store = createStore(session);
+                    store.connect(host, spec.toString(), password);
+                }
+                String name = spec.getOption(FOLDER_OPTION);
+                Folder folder = store.getFolder((name != null) ? name :
+                        ExchangeFolder.INBOX);
+                folder.open(Folder.READ_WRITE);
+                try {
+                    int count = folder.getMessageCount();
+                    for (int i = 1; i <= count && isActive(this); i++) {
+                        Message message = folder.getMessage(i);
+                        try {
+                            handler.handleMessage(spec, message);
+                        } catch (Exception ex) {
+                            counts[1]++;
+                            if (session.getDebug()) {
+                                session.getDebugOut().println("Message " + i +
+                                        " in " + spec + " rejected: " +
+                                                ex.getMessage());
+                            }
+                            continue;
+                        }
+                        message.setFlag(Flags.Flag.DELETED, true);
+                        counts[0]++;
+                    }
+                } finally {
+                    folder.close(true);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void disconnect() {
+            lock.lock();
+            try {
+                if (store == null) return;
+                try {
+                    store.close();
+                } catch (Exception ignore) {
+                } finally {
+                    store = null;
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+    }
+
+}
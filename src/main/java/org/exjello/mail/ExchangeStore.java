@@ -22,6 +22,8 @@ THE SOFTWARE.
 
 package org.exjello.mail;
 
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Properties;
 
 import javax.mail.AuthenticationFailedException;
@@ -35,8 +37,19 @@ public class ExchangeStore extends Store {
 
     protected static final String POP3_PROTOCOL = "pop3";
 
+    private static final int DEFAULT_LAZY_PAGE_SIZE = 500;
+
+    private static final long DEFAULT_STATISTICS_TTL = 5000;
+
+    private static final int DEFAULT_READ_AHEAD = 4;
+
+    private static final long DEFAULT_READ_AHEAD_BUDGET = 16 * 1024 * 1024;
+
     private ExchangeConnection connection;
 
+    private final Map<String, FolderStatistics> statistics =
+            new HashMap<String, FolderStatistics>();
+
 	public ExchangeStore(Session session, URLName urlname) {
 		super(session, urlname);
 	}
@@ -52,19 +65,28 @@ public class ExchangeStore extends Store {
 	}
 
 
+    /**
+     * Logs in outside this service's monitor, which is only held to
+     * publish the connection once it has been established.
+     */
     protected boolean protocolConnect(String host, int port, String username,
             String password) throws MessagingException {
-        synchronized (this) {
-            try {
-                connection = createConnection(host, port, username, password);
-            } catch (Exception ex) {
-                throw new MessagingException(ex.getMessage(), ex);
-            }
+        ExchangeConnection connection;
+        try {
+            connection = createConnection(host, port, username, password);
+        } catch (Exception ex) {
+            throw new MessagingException(ex.getMessage(), ex);
+        }
+        try {
+            connection.connect();
+        } catch (Exception ex) {
             try {
-                connection.connect();
-            } catch (Exception ex) {
-                throw new AuthenticationFailedException(ex.getMessage());
-            }
+                connection.close();
+            } catch (Exception ignore) { }
+            throw new AuthenticationFailedException(ex.getMessage());
+        }
+        synchronized (this) {
+            this.connection = connection;
         }
         return true;
     }
@@ -96,10 +118,160 @@ public class ExchangeStore extends Store {
     protected void setConnected(boolean connected) {
         synchronized (this) {
             super.setConnected(connected);
-            if (!connected) connection = null;
+            statistics.clear();
+            if (!connected && connection != null) {
+                try {
+                    connection.close();
+                } catch (Exception ignore) {
+                } finally {
+                    connection = null;
+                }
+            }
         }
     }
 
+    /**
+     * Returns the server's counts for the given folder, reusing counts
+     * read within the configured time to live.
+     */
+    FolderStatistics getStatistics(String name) throws MessagingException {
+        String key = name.toUpperCase();
+        ExchangeConnection connection;
+        synchronized (this) {
+            checkConnection();
+            FolderStatistics cached = statistics.get(key);
+            if (cached != null && System.currentTimeMillis() -
+                    cached.getTime() < getStatisticsTtl()) {
+                return cached;
+            }
+            connection = this.connection;
+        }
+        FolderStatistics current;
+        try {
+            current = connection.getStatistics(name);
+        } catch (Exception ex) {
+            throw new MessagingException(ex.getMessage(), ex);
+        }
+        synchronized (this) {
+            statistics.put(key, current);
+        }
+        return current;
+    }
+
+    /**
+     * Discards the cached counts of the given folder, after a change made
+     * through this store.
+     */
+    void invalidateStatistics(String name) {
+        synchronized (this) {
+            statistics.remove(name.toUpperCase());
+        }
+    }
+
+    /**
+     * Returns the counts of compressed responses received by this store,
+     * or <code>null</code> if its server type does not negotiate
+     * compression or the store is not connected.
+     */
+    public CompressionStatistics getCompressionStatistics() {
+        synchronized (this) {
+            return (connection != null) ?
+                    connection.getCompressionStatistics() : null;
+        }
+    }
+
+    /**
+     * Returns a view of this store's connection whose operations run in
+     * the background and report to a callback.  The operations still
+     * block, each on a thread of a pool shared by the stores connected to
+     * the same server, so a caller serving many mailboxes holds at most
+     * one thread per pooled HTTP connection rather than one per request.
+     * Operations started after this store is closed fail with an
+     * <code>IllegalStateException</code>.
+     */
+    public AsyncExchangeConnection getAsyncConnection() {
+        synchronized (this) {
+            checkConnection();
+            return new AsyncConnectionAdapter(connection,
+                    connection.getExecutor());
+        }
+    }
+
+    private long getStatisticsTtl() {
+        String value = session.getProperty(
+                ExchangeConstants.STATISTICS_TTL_PROPERTY);
+        if (value == null) return DEFAULT_STATISTICS_TTL;
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException ex) {
+            throw new NumberFormatException(
+                    "Invalid statistics time to live: " + value);
+        }
+    }
+
+    /**
+     * Returns whether message content is streamed rather than spooled, in
+     * which case nothing can usefully be downloaded ahead of the caller.
+     */
+    boolean isStreaming() {
+        return Boolean.parseBoolean(session.getProperty(
+                ExchangeConstants.STREAM_PROPERTY));
+    }
+
+    int getReadAhead() {
+        String value = session.getProperty(
+                ExchangeConstants.READ_AHEAD_PROPERTY);
+        if (value == null) return DEFAULT_READ_AHEAD;
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException ex) {
+            throw new NumberFormatException("Invalid read-ahead: " + value);
+        }
+    }
+
+    long getReadAheadBudget() {
+        String value = session.getProperty(
+                ExchangeConstants.READ_AHEAD_BUDGET_PROPERTY);
+        if (value == null) return DEFAULT_READ_AHEAD_BUDGET;
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException ex) {
+            throw new NumberFormatException("Invalid read-ahead budget: " +
+                    value);
+        }
+    }
+
+    /**
+     * Returns whether folders should be opened without listing them.
+     */
+    boolean isLazyOpen() {
+        return Boolean.parseBoolean(session.getProperty(
+                ExchangeConstants.LAZY_OPEN_PROPERTY));
+    }
+
+    int getLazyPageSize() {
+        String value = session.getProperty(
+                ExchangeConstants.LAZY_PAGE_SIZE_PROPERTY);
+        if (value == null) return DEFAULT_LAZY_PAGE_SIZE;
+        try {
+            int pageSize = Integer.parseInt(value);
+            return (pageSize > 0) ? pageSize : DEFAULT_LAZY_PAGE_SIZE;
+        } catch (NumberFormatException ex) {
+            throw new NumberFormatException("Invalid page size: " + value);
+        }
+    }
+
+    /**
+     * Called after a folder of this store has been opened.
+     */
+    protected void folderOpened(ExchangeFolder folder)
+            throws MessagingException { }
+
+    /**
+     * Called when a folder of this store is about to be closed.
+     */
+    protected void folderClosed(ExchangeFolder folder) { }
+
     protected ExchangeConnection createConnection(String host, int port,
             String username, String password) throws Exception {
         return Exchange2003Connection.createConnection(POP3_PROTOCOL, session,
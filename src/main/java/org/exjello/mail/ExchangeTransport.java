@@ -50,6 +50,22 @@ public class ExchangeTransport extends Transport {
 
 	public void sendMessage(Message message, Address[] addresses)
 			throws MessagingException {
+        MimeMessage mimeMessage = prepareMessage(message, addresses);
+        ExchangeConnection connection = getConnection();
+        try {
+            connection.send(mimeMessage);
+        } catch (Exception ex) {
+            throw new MessagingException(ex.getMessage(), ex);
+        }
+	}
+
+    /**
+     * Validates the message and rewrites its recipients so that exactly
+     * the given addresses receive it; addresses not already among the
+     * recipients are added as BCC.
+     */
+    protected MimeMessage prepareMessage(Message message, Address[] addresses)
+            throws MessagingException {
         if (!(message instanceof MimeMessage)) {
             throw new MessagingException("Invalid message; " +
                     "only RFC822 MIME messages are supported.");
@@ -112,29 +128,31 @@ public class ExchangeTransport extends Transport {
                 bccRecipients.isEmpty() ? (Address[]) null :
                         bccRecipients.toArray(
                                 new Address[bccRecipients.size()]));
-        synchronized (this) {
-            checkConnection();
-            try {
-                connection.send(mimeMessage);
-            } catch (Exception ex) {
-                throw new MessagingException(ex.getMessage(), ex);
-            }
-        }
-	}
+        return mimeMessage;
+    }
 
+    /**
+     * Logs in outside this service's monitor, which is only held to
+     * publish the connection once it has been established.
+     */
     protected boolean protocolConnect(String host, int port, String username,
             String password) throws MessagingException {
-        synchronized (this) {
-            try {
-                connection = createConnection(host, port, username, password);
-            } catch (Exception ex) {
-                throw new MessagingException(ex.getMessage(), ex);
-            }
+        ExchangeConnection connection;
+        try {
+            connection = createConnection(host, port, username, password);
+        } catch (Exception ex) {
+            throw new MessagingException(ex.getMessage(), ex);
+        }
+        try {
+            connection.connect();
+        } catch (Exception ex) {
             try {
-                connection.connect();
-            } catch (Exception ex) {
-                throw new AuthenticationFailedException(ex.getMessage());
-            }
+                connection.close();
+            } catch (Exception ignore) { }
+            throw new AuthenticationFailedException(ex.getMessage());
+        }
+        synchronized (this) {
+            this.connection = connection;
         }
         return true;
     }
@@ -148,7 +166,14 @@ public class ExchangeTransport extends Transport {
     protected void setConnected(boolean connected) {
         synchronized (this) {
             super.setConnected(connected);
-            if (!connected) connection = null;
+            if (!connected && connection != null) {
+                try {
+                    connection.close();
+                } catch (Exception ignore) {
+                } finally {
+                    connection = null;
+                }
+            }
         }
     }
 
@@ -158,6 +183,13 @@ public class ExchangeTransport extends Transport {
                 host, port, username, password);
     }
 
+    protected ExchangeConnection getConnection() {
+        synchronized (this) {
+            checkConnection();
+            return connection;
+        }
+    }
+
     private void checkConnection() throws IllegalStateException {
         if (!isConnected()) throw new IllegalStateException("Not connected.");
     }
@@ -0,0 +1,57 @@
+/*
+Copyright (c) 2010 Eric Glass
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+
+package org.exjello.mail;
+
+/**
+ * Message counts of a folder as reported by the server, obtained without
+ * listing the folder.
+ */
+final class FolderStatistics {
+
+    private final long time = System.currentTimeMillis();
+
+    private final int messageCount;
+
+    private final int unreadCount;
+
+    public FolderStatistics(int messageCount, int unreadCount) {
+        this.messageCount = messageCount;
+        this.unreadCount = unreadCount;
+    }
+
+    public int getMessageCount() {
+        return messageCount;
+    }
+
+    public int getUnreadCount() {
+        return unreadCount;
+    }
+
+    /**
+     * Time at which the counts were obtained.
+     */
+    public long getTime() {
+        return time;
+    }
+
+}
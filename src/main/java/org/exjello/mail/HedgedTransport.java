@@ -0,0 +1,326 @@
+/*
+Copyright (c) 2010 Eric Glass
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+
+package org.exjello.mail;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+
+import java.util.Arrays;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Sends idempotent requests again on another connection when the first
+ * attempt has not received its response headers within a delay taken
+ * from the recent history, and uses whichever response arrives first.
+ * The delay is the configured percentile of the recent times to the
+ * response headers, so only the slowest requests are duplicated, and the
+ * duplicates are further limited to a percentage of all requests.  A
+ * duplicate is only sent if the caller's {@link Admission} lets it in at
+ * once, so it counts against the same limits as the first attempt.  The
+ * losing attempt is aborted once it completes.
+ */
+final class HedgedTransport implements HttpTransport {
+
+    private static final ExecutorService ATTEMPTS =
+            ExchangeExecutors.newCachedThreadPool("hedge");
+
+    private static final int SAMPLES = 256;
+
+    /* fewer samples than this give no useful percentile */
+    private static final int MIN_SAMPLES = 20;
+
+    /* the most duplicates that may be sent in a burst */
+    private static final double MAX_TOKENS = 5;
+
+    private final HttpTransport transport;
+
+    private final int percentile;
+
+    private final double budget;
+
+    private final long[] samples = new long[SAMPLES];
+
+    private int sampleCount;
+
+    private int nextSample;
+
+    private double tokens;
+
+    private long hedged;
+
+    private long won;
+
+    /**
+     * @param percentile the percentile of recent response times after
+     * which a duplicate is sent.
+     * @param budget the most duplicates sent, as a percentage of requests.
+     */
+    public HedgedTransport(HttpTransport transport, int percentile,
+            int budget) {
+        this.transport = transport;
+        this.percentile = percentile;
+        this.budget = budget / 100.0;
+    }
+
+    /**
+     * Sends the request with duplicates that are not admitted anywhere.
+     */
+    public HttpResponse execute(HttpRequest request) throws IOException {
+        return execute(request, null);
+    }
+
+    /**
+     * Sends the request, admitting any duplicate through the given
+     * admission, or without one if it is <code>null</code>.
+     */
+    public HttpResponse execute(HttpRequest request, Admission admission)
+            throws IOException {
+        if (!isIdempotent(request.getMethod())) {
+            return transport.execute(request);
+        }
+        long delay = getDelay();
+        if (delay < 0) {
+            long start = System.currentTimeMillis();
+            HttpResponse response = transport.execute(request);
+            record(System.currentTimeMillis() - start);
+            return response;
+        }
+        Call call = new Call(request);
+        call.attempt(null);
+        int pending = 1;
+        try {
+            Object result = call.results.poll(delay, TimeUnit.MILLISECONDS);
+            if (result == null && takeToken(admission)) {
+                call.attempt((admission != null) ? admission : NO_ADMISSION);
+                pending++;
+            }
+            if (result == null) result = call.results.take();
+            pending--;
+            while (!(result instanceof Attempt) && pending > 0) {
+                result = call.results.take();
+                pending--;
+            }
+            if (result instanceof Attempt) {
+                Attempt attempt = (Attempt) result;
+                if (attempt.hedge) {
+                    synchronized (this) {
+                        won++;
+                    }
+                }
+                return attempt.response;
+            }
+            if (result instanceof IOException) throw (IOException) result;
+            if (result instanceof RuntimeException) {
+                throw (RuntimeException) result;
+            }
+            throw (Error) result;
+        } catch (InterruptedException ex) {
+            throw new InterruptedIOException(
+                    "Interrupted waiting for a response.");
+        } finally {
+            call.finish();
+        }
+    }
+
+    /**
+     * The delegate belongs to the connection's resources, which shut it
+     * down themselves.
+     */
+    public void shutdown() { }
+
+    /**
+     * Returns the number of duplicates sent, and how many of them were
+     * answered before the request they duplicated.
+     */
+    public long[] getCounts() {
+        synchronized (this) {
+            return new long[] { hedged, won };
+        }
+    }
+
+    private static boolean isIdempotent(String method) {
+        return "GET".equals(method) || "SEARCH".equals(method) ||
+                "PROPFIND".equals(method);
+    }
+
+    /**
+     * Returns how long to wait before sending a duplicate, or -1 if too
+     * few requests have been timed yet.  Every request earns a fraction
+     * of a duplicate.
+     */
+    private long getDelay() {
+        long[] sorted;
+        synchronized (this) {
+            tokens = Math.min(MAX_TOKENS, tokens + budget);
+            if (sampleCount < MIN_SAMPLES) return -1;
+            sorted = new long[sampleCount];
+            System.arraycopy(samples, 0, sorted, 0, sampleCount);
+        }
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(sorted.length * percentile / 100.0) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+    }
+
+    private boolean takeToken(Admission admission) {
+        synchronized (this) {
+            if (tokens < 1) return false;
+            tokens -= 1;
+        }
+        if (admission != null && !admission.tryAcquire()) {
+            synchronized (this) {
+                tokens += 1;
+            }
+            return false;
+        }
+        synchronized (this) {
+            hedged++;
+        }
+        return true;
+    }
+
+    private void record(long millis) {
+        synchronized (this) {
+            samples[nextSample] = millis;
+            nextSample = (nextSample + 1) % SAMPLES;
+            if (sampleCount < SAMPLES) sampleCount++;
+        }
+    }
+
+    private static void discard(Object result) {
+        if (result instanceof Attempt) {
+            HttpResponse response = ((Attempt) result).response;
+            response.abort();
+            response.release();
+        }
+    }
+
+    /**
+     * Lets a duplicate request in alongside the one it duplicates, under
+     * whatever limits the caller applies to its own requests.
+     */
+    interface Admission {
+
+        /**
+         * Admits one more request if it may be sent now, without waiting,
+         * and returns whether it was admitted.
+         */
+        boolean tryAcquire();
+
+        /**
+         * Gives back an admitted request once its response headers have
+         * arrived or it failed, with the milliseconds it took, or -1.
+         */
+        void release(HttpResponse response, Throwable failure, long latency);
+
+    }
+
+    private static final Admission NO_ADMISSION = new Admission() {
+        public boolean tryAcquire() {
+            return true;
+        }
+
+        public void release(HttpResponse response, Throwable failure,
+                long latency) { }
+    };
+
+    private static final class Attempt {
+
+        final HttpResponse response;
+
+        final boolean hedge;
+
+        public Attempt(HttpResponse response, boolean hedge) {
+            this.response = response;
+            this.hedge = hedge;
+        }
+
+    }
+
+    /**
+     * The attempts made for one request.  Each attempt queues its response
+     * or failure; once the caller has taken its result, any response
+     * queued afterwards is discarded by whichever side sees it.
+     */
+    private final class Call {
+
+        final BlockingQueue<Object> results =
+                new LinkedBlockingQueue<Object>();
+
+        private final AtomicBoolean finished = new AtomicBoolean();
+
+        private final HttpRequest request;
+
+        public Call(HttpRequest request) {
+            this.request = request;
+        }
+
+        /**
+         * Sends the request once more; a duplicate carries the admission
+         * it was let in by, released as soon as its headers arrive.
+         */
+        public void attempt(final Admission admission) {
+            ATTEMPTS.execute(new Runnable() {
+                public void run() {
+                    long start = System.currentTimeMillis();
+                    HttpResponse response = null;
+                    Throwable failure = null;
+                    long latency = -1;
+                    Object result;
+                    try {
+                        response = transport.execute(request);
+                        latency = System.currentTimeMillis() - start;
+                        record(latency);
+                        result = new Attempt(response, admission != null);
+                    } catch (Throwable ex) {
+                        failure = ex;
+                        result = ex;
+                    } finally {
+                        if (admission != null) {
+                            admission.release(response, failure, latency);
+                        }
+                    }
+                    results.add(result);
+                    if (finished.get()) drain();
+                }
+            });
+        }
+
+        public void finish() {
+            finished.set(true);
+            drain();
+        }
+
+        private void drain() {
+            Object result;
+            while ((result = results.poll()) != null) discard(result);
+        }
+
+    }
+
+}
@@ -0,0 +1,178 @@
+/*
+Copyright (c) 2010 Eric Glass
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+
+package org.exjello.mail;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import java.net.URL;
+
+import org.apache.commons.httpclient.Header;
+import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.HttpMethod;
+import org.apache.commons.httpclient.NTCredentials;
+import org.apache.commons.httpclient.UsernamePasswordCredentials;
+
+import org.apache.commons.httpclient.auth.AuthScope;
+
+import org.apache.commons.httpclient.methods.GetMethod;
+import org.apache.commons.httpclient.methods.OptionsMethod;
+import org.apache.commons.httpclient.methods.RequestEntity;
+
+/**
+ * The default transport, which sends requests through the pooled
+ * commons-httpclient client of the connection's resources.  It answers
+ * Basic and NTLM challenges, a username of the form
+ * "<code>DOMAIN&#92;user</code>" selecting NTLM, and keeps the cookies of
+ * forms-based authentication in the client state.
+ */
+final class HttpClientTransport implements HttpTransport {
+
+    public static final String NAME = "httpclient";
+
+    private final HttpClient client;
+
+    public HttpClientTransport(HttpClient client, String server,
+            String username, String password) throws IOException {
+        this.client = client;
+        URL serverUrl = new URL(server);
+        String host = serverUrl.getHost();
+        int port = serverUrl.getPort();
+        if (port == -1) port = serverUrl.getDefaultPort();
+        AuthScope authScope = new AuthScope(host, port);
+        int index = username.indexOf('\\');
+        if (index == -1) {
+            client.getState().setCredentials(authScope,
+                    new UsernamePasswordCredentials(username, password));
+        } else {
+            client.getState().setCredentials(authScope, new NTCredentials(
+                    username.substring(index + 1), password, host,
+                            username.substring(0, index)));
+        }
+    }
+
+    public HttpResponse execute(HttpRequest request) throws IOException {
+        HttpMethod op = createMethod(request);
+        boolean executed = false;
+        try {
+            client.executeMethod(op);
+            executed = true;
+        } finally {
+            if (!executed) op.releaseConnection();
+        }
+        return new Response(op);
+    }
+
+    /**
+     * Creates the method for the request.  Requests without an entity
+     * other than GET and OPTIONS, such as MOVE, are sent as entity
+     * enclosing methods with an empty body.
+     */
+    private static HttpMethod createMethod(HttpRequest request) {
+        HttpRequest.Entity entity = request.getEntity();
+        HttpMethod op = null;
+        if (entity == null && "GET".equals(request.getMethod())) {
+            op = new GetMethod(request.getUri());
+        } else if (entity == null && "OPTIONS".equals(request.getMethod())) {
+            op = new OptionsMethod(request.getUri());
+        }
+        if (op != null) {
+            for (String[] header : request.getHeaders()) {
+                op.addRequestHeader(header[0], header[1]);
+            }
+            return op;
+        }
+        ExchangeMethod method = new ExchangeMethod(request.getMethod(),
+                request.getUri());
+        if (entity != null) method.setRequestEntity(new Entity(entity));
+        for (String[] header : request.getHeaders()) {
+            method.addHeader(header[0], header[1]);
+        }
+        return method;
+    }
+
+    /**
+     * The client belongs to the connection's resources, which shut down
+     * its connection manager.
+     */
+    public void shutdown() { }
+
+    private static final class Response implements HttpResponse {
+
+        private final HttpMethod op;
+
+        public Response(HttpMethod op) {
+            this.op = op;
+        }
+
+        public int getStatus() {
+            return op.getStatusCode();
+        }
+
+        public String getHeader(String name) {
+            Header header = op.getResponseHeader(name);
+            return (header != null) ? header.getValue() : null;
+        }
+
+        public InputStream getBody() throws IOException {
+            return op.getResponseBodyAsStream();
+        }
+
+        public void abort() {
+            op.abort();
+        }
+
+        public void release() {
+            op.releaseConnection();
+        }
+
+    }
+
+    private static final class Entity implements RequestEntity {
+
+        private final HttpRequest.Entity entity;
+
+        public Entity(HttpRequest.Entity entity) {
+            this.entity = entity;
+        }
+
+        public boolean isRepeatable() {
+            return true;
+        }
+
+        public void writeRequest(OutputStream output) throws IOException {
+            entity.writeTo(output);
+        }
+
+        public long getContentLength() {
+            return entity.getContentLength();
+        }
+
+        public String getContentType() {
+            return entity.getContentType();
+        }
+
+    }
+
+}
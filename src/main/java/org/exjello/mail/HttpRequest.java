@@ -0,0 +1,208 @@
+/*
+Copyright (c) 2010 Eric Glass
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+
+package org.exjello.mail;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A request sent through an {@link HttpTransport}: any method, including
+ * the WebDAV extensions, with headers and an optional entity.  The entity
+ * is written from a byte array or a file, so a request can be sent again
+ * when a transport retries it.
+ */
+final class HttpRequest {
+
+    private final String method;
+
+    private final String uri;
+
+    private final List<String[]> headers = new ArrayList<String[]>();
+
+    private Entity entity;
+
+    /**
+     * @param uri the absolute URL of the resource.
+     */
+    public HttpRequest(String method, String uri) {
+        this.method = method;
+        this.uri = uri;
+    }
+
+    public String getMethod() {
+        return method;
+    }
+
+    public String getUri() {
+        return uri;
+    }
+
+    /**
+     * Returns whether the request only reads from the server, so that
+     * sending it a second time cannot repeat a change.
+     */
+    public boolean isIdempotent() {
+        return "GET".equals(method) || "HEAD".equals(method) ||
+                "OPTIONS".equals(method) || "PROPFIND".equals(method) ||
+                        "SEARCH".equals(method) ||
+                                "X-MS-ENUMATTS".equals(method);
+    }
+
+    /**
+     * Replaces any values of the header with the given one.
+     */
+    public void setHeader(String name, String value) {
+        synchronized (headers) {
+            removeHeader(name);
+            headers.add(new String[] { name, value });
+        }
+    }
+
+    public void addHeader(String name, String value) {
+        synchronized (headers) {
+            headers.add(new String[] { name, value });
+        }
+    }
+
+    public void removeHeader(String name) {
+        synchronized (headers) {
+            for (int i = headers.size() - 1; i >= 0; i--) {
+                if (headers.get(i)[0].equalsIgnoreCase(name)) {
+                    headers.remove(i);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the first value of the header, or <code>null</code>.
+     */
+    public String getHeader(String name) {
+        synchronized (headers) {
+            for (String[] header : headers) {
+                if (header[0].equalsIgnoreCase(name)) return header[1];
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Returns the headers in the order given, each as a name and a value.
+     */
+    public List<String[]> getHeaders() {
+        synchronized (headers) {
+            return new ArrayList<String[]>(headers);
+        }
+    }
+
+    public void setEntity(byte[] content, String contentType) {
+        entity = new ByteArrayEntity(content, contentType);
+    }
+
+    public void setEntity(File content, String contentType) {
+        entity = new FileEntity(content, contentType);
+    }
+
+    /**
+     * Returns the entity, or <code>null</code> if the request has none.
+     */
+    public Entity getEntity() {
+        return entity;
+    }
+
+    public String toString() {
+        return method + " " + uri;
+    }
+
+    public abstract static class Entity {
+
+        private final String contentType;
+
+        protected Entity(String contentType) {
+            this.contentType = contentType;
+        }
+
+        public String getContentType() {
+            return contentType;
+        }
+
+        public abstract long getContentLength();
+
+        public abstract void writeTo(OutputStream output) throws IOException;
+
+    }
+
+    private static final class ByteArrayEntity extends Entity {
+
+        private final byte[] content;
+
+        public ByteArrayEntity(byte[] content, String contentType) {
+            super(contentType);
+            this.content = content;
+        }
+
+        public long getContentLength() {
+            return content.length;
+        }
+
+        public void writeTo(OutputStream output) throws IOException {
+            output.write(content);
+        }
+
+    }
+
+    private static final class FileEntity extends Entity {
+
+        private final File content;
+
+        public FileEntity(File content, String contentType) {
+            super(contentType);
+            this.content = content;
+        }
+
+        public long getContentLength() {
+            return content.length();
+        }
+
+        public void writeTo(OutputStream output) throws IOException {
+            InputStream input = new FileInputStream(content);
+            try {
+                byte[] buf = new byte[65536];
+                int count;
+                while ((count = input.read(buf)) != -1) {
+                    output.write(buf, 0, count);
+                }
+            } finally {
+                input.close();
+            }
+        }
+
+    }
+
+}
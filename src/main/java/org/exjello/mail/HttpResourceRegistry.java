@@ -0,0 +1,333 @@
+/*
+Copyright (c) 2010 Eric Glass
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+
+package org.exjello.mail;
+
+import java.io.IOException;
+
+import java.net.InetAddress;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
+
+import org.apache.commons.httpclient.params.HttpConnectionManagerParams;
+
+/**
+ * Registry of HTTP resources shared by every connection made to the same
+ * server with the same credentials.  Connections are shared per account
+ * rather than per server, since NTLM authenticates the socket itself and
+ * forms-based authentication keeps its session in the client cookies.
+ */
+final class HttpResourceRegistry {
+
+    private static final Map<String, Resources> REGISTRY =
+            new HashMap<String, Resources>();
+
+    private HttpResourceRegistry() { }
+
+    public static Resources acquire(String server, String username,
+            String password, int timeout, int connectionTimeout,
+                    InetAddress localAddress, int maxConnections,
+                            int maxPerMailbox, String mailbox) {
+        String key = server + '\n' + username + '\n' + password + '\n' +
+                timeout + '\n' + connectionTimeout + '\n' + localAddress;
+        synchronized (REGISTRY) {
+            Resources resources = REGISTRY.get(key);
+            if (resources == null) {
+                resources = new Resources(key, server, username, password,
+                        timeout, connectionTimeout, localAddress,
+                                maxConnections, maxPerMailbox);
+                REGISTRY.put(key, resources);
+            }
+            resources.register(mailbox);
+            return resources;
+        }
+    }
+
+    public static void release(Resources resources, String mailbox) {
+        synchronized (REGISTRY) {
+            if (resources.unregister(mailbox)) {
+                REGISTRY.remove(resources.key);
+                resources.shutdown();
+            }
+        }
+    }
+
+    static final class Resources {
+
+        private final String key;
+
+        private final String server;
+
+        private final String username;
+
+        private final String password;
+
+        private final int timeout;
+
+        private final int connectionTimeout;
+
+        private final InetAddress localAddress;
+
+        private final MultiThreadedHttpConnectionManager manager;
+
+        private final HttpClient client;
+
+        private final int maxConnections;
+
+        private final int maxPerMailbox;
+
+        private final Map<String, Integer> references =
+                new HashMap<String, Integer>();
+
+        private final Map<String, Integer> leases =
+                new HashMap<String, Integer>();
+
+        private final Map<String, HttpTransport> transports =
+                new HashMap<String, HttpTransport>();
+
+        private final Lock lock = new ReentrantLock();
+
+        private final Condition released = lock.newCondition();
+
+        private ExecutorService executor;
+
+        private Resources(String key, String server, String username,
+                String password, int timeout, int connectionTimeout,
+                        InetAddress localAddress, int maxConnections,
+                                int maxPerMailbox) {
+            this.key = key;
+            this.server = server;
+            this.username = username;
+            this.password = password;
+            this.timeout = timeout;
+            this.connectionTimeout = connectionTimeout;
+            this.localAddress = localAddress;
+            this.maxConnections = maxConnections;
+            this.maxPerMailbox = maxPerMailbox;
+            manager = new MultiThreadedHttpConnectionManager();
+            HttpConnectionManagerParams params = manager.getParams();
+            params.setMaxTotalConnections(maxConnections);
+            params.setDefaultMaxConnectionsPerHost(maxConnections);
+            if (timeout > 0) params.setSoTimeout(timeout);
+            if (connectionTimeout > 0) {
+                params.setConnectionTimeout(connectionTimeout);
+            }
+            client = new HttpClient(manager);
+            if (timeout > 0) client.getParams().setSoTimeout(timeout);
+            if (localAddress != null) {
+                client.getHostConfiguration().setLocalAddress(localAddress);
+            }
+        }
+
+        public HttpClient getClient() {
+            return client;
+        }
+
+        /**
+         * Returns the transport of the given name, created on first use
+         * and authenticated with the credentials of these resources.
+         */
+        public HttpTransport getTransport(String name) throws IOException {
+            synchronized (transports) {
+                HttpTransport transport = transports.get(name);
+                if (transport == null) {
+                    if (SocketTransport.NAME.equals(name)) {
+                        transport = new SocketTransport(server, username,
+                                password, timeout, connectionTimeout,
+                                        localAddress, maxConnections);
+                    } else {
+                        transport = new HttpClientTransport(client, server,
+                                username, password);
+                    }
+                    transports.put(name, transport);
+                }
+                return transport;
+            }
+        }
+
+        /**
+         * Returns the transport of the given name wrapped to hedge slow
+         * idempotent requests, sharing its response times with every
+         * connection that hedges with the same settings.
+         */
+        public HttpTransport getHedgedTransport(String name, int percentile,
+                int budget) throws IOException {
+            String hedgedName = name + '\n' + percentile + '\n' + budget;
+            synchronized (transports) {
+                HttpTransport transport = transports.get(hedgedName);
+                if (transport == null) {
+                    transport = new HedgedTransport(getTransport(name),
+                            percentile, budget);
+                    transports.put(hedgedName, transport);
+                }
+                return transport;
+            }
+        }
+
+        public int getMaxConnections() {
+            return maxConnections;
+        }
+
+        public int getConnectionsInPool() {
+            return manager.getConnectionsInPool();
+        }
+
+        /**
+         * Returns the executor for asynchronous operations, with as many
+         * threads as the pool has connections, since more threads would
+         * only wait for a connection.
+         */
+        public ExecutorService getExecutor() {
+            lock.lock();
+            try {
+                if (executor == null) {
+                    executor = Executors.newFixedThreadPool(maxConnections,
+                            ExchangeExecutors.newThreadFactory("async"));
+                }
+                return executor;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Blocks until the given mailbox is within its share of the pool,
+         * then leases one connection to it.  Each mailbox may hold at most
+         * the configured per-mailbox limit, or an even split of the pool
+         * among the mailboxes currently registered.  A lease covers a
+         * request until its response has been read; a response handed to
+         * the caller as a stream no longer counts against the share.
+         */
+        public void lease(String mailbox) throws InterruptedException {
+            lock.lock();
+            try {
+                while (leased(mailbox) >= getShare()) released.await();
+                leases.put(mailbox, leased(mailbox) + 1);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Leases one connection to the given mailbox if it is within its
+         * share of the pool, without waiting, and returns whether it did.
+         */
+        public boolean tryLease(String mailbox) {
+            lock.lock();
+            try {
+                if (leased(mailbox) >= getShare()) return false;
+                leases.put(mailbox, leased(mailbox) + 1);
+                return true;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        public void unlease(String mailbox) {
+            lock.lock();
+            try {
+                int count = leased(mailbox) - 1;
+                if (count > 0) {
+                    leases.put(mailbox, count);
+                } else {
+                    leases.remove(mailbox);
+                }
+                released.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        public int getShare() {
+            lock.lock();
+            try {
+                if (maxPerMailbox > 0) return maxPerMailbox;
+                return Math.max(1, maxConnections /
+                        Math.max(1, references.size()));
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private int leased(String mailbox) {
+            Integer count = leases.get(mailbox);
+            return (count != null) ? count : 0;
+        }
+
+        private void register(String mailbox) {
+            lock.lock();
+            try {
+                Integer count = references.get(mailbox);
+                references.put(mailbox, (count != null) ? count + 1 : 1);
+                released.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private boolean unregister(String mailbox) {
+            lock.lock();
+            try {
+                Integer count = references.get(mailbox);
+                if (count != null) {
+                    if (count > 1) {
+                        references.put(mailbox, count - 1);
+                    } else {
+                        references.remove(mailbox);
+                    }
+                }
+                released.signalAll();
+                return references.isEmpty();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void shutdown() {
+            lock.lock();
+            try {
+                if (executor != null) executor.shutdown();
+            } finally {
+                lock.unlock();
+            }
+            synchronized (transports) {
+                for (HttpTransport transport : transports.values()) {
+                    transport.shutdown();
+                }
+            }
+            manager.shutdown();
+        }
+
+    }
+
+}
@@ -0,0 +1,59 @@
+/*
+Copyright (c) 2010 Eric Glass
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+
+package org.exjello.mail;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * The response to a request sent through an {@link HttpTransport}, whose
+ * connection is held until the response is released.
+ */
+interface HttpResponse {
+
+    public int getStatus();
+
+    /**
+     * Returns the first value of the header, or <code>null</code>.
+     */
+    public String getHeader(String name);
+
+    /**
+     * Returns the body as it arrives, still in any content coding, or
+     * <code>null</code> if the response has none.
+     */
+    public InputStream getBody() throws IOException;
+
+    /**
+     * Closes the connection without reading the rest of the body.
+     */
+    public void abort();
+
+    /**
+     * Returns the connection to the transport.  A body that has not been
+     * read to the end is read off first if the connection can be reused,
+     * unless the response was aborted.
+     */
+    public void release();
+
+}
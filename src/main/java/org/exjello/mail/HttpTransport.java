@@ -0,0 +1,47 @@
+/*
+Copyright (c) 2010 Eric Glass
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+
+package org.exjello.mail;
+
+import java.io.IOException;
+
+/**
+ * Sends the WebDAV requests of the Exchange 2003 store and transport.
+ * A transport is shared, like the connection pool behind it, by the
+ * connections made to one server with the same credentials, and
+ * authenticates its requests with those credentials.  The implementation
+ * is chosen with {@link ExchangeConstants#HTTP_TRANSPORT_PROPERTY}.
+ */
+interface HttpTransport {
+
+    /**
+     * Sends the request and returns once the response headers have been
+     * received.  The caller releases the response when done with it.
+     */
+    public HttpResponse execute(HttpRequest request) throws IOException;
+
+    /**
+     * Closes the connections held by the transport.
+     */
+    public void shutdown();
+
+}
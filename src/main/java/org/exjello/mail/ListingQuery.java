@@ -0,0 +1,238 @@
+/*
+Copyright (c) 2010 Eric Glass
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+
+package org.exjello.mail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import java.util.regex.Pattern;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerFactory;
+
+import javax.xml.transform.dom.DOMSource;
+
+import javax.xml.transform.stream.StreamResult;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+/**
+ * The WebDAV SEARCH used to list a folder under a given set of filters.
+ * Filter values are validated and escaped when the query is created; the
+ * request body for each distinct combination of filters is built once and
+ * shared, immutable, by every connection using it.
+ */
+final class ListingQuery {
+
+    private static final String TEMPLATE_RESOURCE = "get-filtered-messages.sql";
+
+    private static final String TEMPLATE = loadTemplate();
+
+    private static final String DAV_NAMESPACE = "DAV:";
+
+    private static final Pattern DATE_TIME = Pattern.compile(
+            "\\d{4}-\\d{2}-\\d{2}(T\\d{2}:\\d{2}(:\\d{2}(\\.\\d+)?)?" +
+                    "(Z|[+-]\\d{2}:\\d{2})?)?");
+
+    private static final Pattern PROPERTY_NAME =
+            Pattern.compile("[A-Za-z0-9:/._-]+");
+
+    private static final String DEFAULT_SORT_PROPERTY = "DAV:creationdate";
+
+    private static final Map<String, String> SORT_PROPERTIES =
+            new HashMap<String, String>();
+
+    private static final ConcurrentMap<String, byte[]> ENTITIES =
+            new ConcurrentHashMap<String, byte[]>();
+
+    private final String sql;
+
+    static {
+        SORT_PROPERTIES.put("received", "urn:schemas:httpmail:datereceived");
+        SORT_PROPERTIES.put("created", "DAV:creationdate");
+        SORT_PROPERTIES.put("sent", "urn:schemas:httpmail:date");
+        SORT_PROPERTIES.put("subject", "urn:schemas:httpmail:subject");
+        SORT_PROPERTIES.put("size", "DAV:getcontentlength");
+    }
+
+    public ListingQuery(boolean unfiltered, String filterLastCheck,
+            String filterFrom, String filterNotFrom, String filterTo,
+                    String orderBy, boolean descending) {
+        String sql = TEMPLATE.replace("{BOOKMARK_FILTER_UNREADED}",
+                unfiltered ? "" :
+                        "AND \"urn:schemas:httpmail:read\" = False");
+        String condition = "";
+        if (!isEmpty(filterLastCheck)) {
+            if (!DATE_TIME.matcher(filterLastCheck).matches()) {
+                throw new IllegalArgumentException(
+                        "Invalid last check date: " + filterLastCheck);
+            }
+            condition = "AND \"urn:schemas:httpmail:datereceived\" > " +
+                    "CAST(\"" + filterLastCheck + "\" as 'dateTime')";
+        }
+        sql = sql.replace("{BOOKMARK_FILTER_LAST_CHECK}", condition);
+        condition = "";
+        if (!isEmpty(filterFrom)) {
+            condition = "AND \"urn:schemas:httpmail:fromemail\" LIKE " +
+                    contains(filterFrom);
+        }
+        sql = sql.replace("{BOOKMARK_FILTER_FROM}", condition);
+        StringBuilder notFrom = new StringBuilder();
+        if (!isEmpty(filterNotFrom)) {
+            for (String value : filterNotFrom.split(";")) {
+                if (isEmpty(value)) continue;
+                notFrom.append("AND \"urn:schemas:httpmail:fromemail\" " +
+                        "NOT LIKE ").append(contains(value)).append('\n');
+            }
+        }
+        sql = sql.replace("{BOOKMARK_FILTER_NOT_FROM}", notFrom.toString());
+        condition = "";
+        if (!isEmpty(filterTo)) {
+            condition = "AND \"urn:schemas:httpmail:to\" LIKE " +
+                    contains(filterTo);
+        }
+        sql = sql.replace("{BOOKMARK_FILTER_TO}", condition);
+        this.sql = sql.replace("{BOOKMARK_ORDER}", "\"" +
+                getSortProperty(orderBy) + "\"" + (descending ? " DESC" : ""));
+    }
+
+    /**
+     * Returns the request body listing the folder.
+     */
+    public byte[] getEntity() throws Exception {
+        byte[] entity = ENTITIES.get(sql);
+        if (entity == null) {
+            entity = createEntity(sql);
+            byte[] existing = ENTITIES.putIfAbsent(sql, entity);
+            if (existing != null) entity = existing;
+        }
+        return entity;
+    }
+
+    /**
+     * Returns the request body listing the messages of the folder which
+     * also satisfy the given condition.  These are not cached.
+     */
+    public byte[] getEntity(String condition) throws Exception {
+        int index = sql.lastIndexOf("ORDER BY");
+        if (index == -1) index = sql.length();
+        return createEntity(sql.substring(0, index) + "AND " + condition +
+                "\n" + sql.substring(index));
+    }
+
+    public String toString() {
+        return sql;
+    }
+
+    /**
+     * Returns a LIKE pattern matching values containing the given text,
+     * as a quoted SQL literal.
+     */
+    static String contains(String value) {
+        return literal("%" + value + "%");
+    }
+
+    static String literal(String value) {
+        StringBuilder literal = new StringBuilder(value.length() + 2);
+        literal.append('\'');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c < ' ') {
+                throw new IllegalArgumentException(
+                        "Invalid character in filter: " + value);
+            }
+            if (c == '\'') literal.append('\'');
+            literal.append(c);
+        }
+        return literal.append('\'').toString();
+    }
+
+    /**
+     * Returns the WebDAV property for the given sort field, which is either
+     * one of the common names or a property name used as is.
+     */
+    static String getSortProperty(String orderBy) {
+        if (isEmpty(orderBy)) return DEFAULT_SORT_PROPERTY;
+        String property = SORT_PROPERTIES.get(orderBy.toLowerCase());
+        if (property != null) return property;
+        if (orderBy.indexOf(':') == -1 ||
+                !PROPERTY_NAME.matcher(orderBy).matches()) {
+            throw new IllegalArgumentException(
+                    "Invalid sort order specified: " + orderBy);
+        }
+        return orderBy;
+    }
+
+    private static byte[] createEntity(String sql) throws Exception {
+        DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
+        dbf.setNamespaceAware(true);
+        Document doc = dbf.newDocumentBuilder().newDocument();
+        Element searchRequest = doc.createElementNS(DAV_NAMESPACE,
+                "searchrequest");
+        doc.appendChild(searchRequest);
+        Element element = doc.createElementNS(DAV_NAMESPACE, "sql");
+        searchRequest.appendChild(element);
+        element.appendChild(doc.createTextNode(sql));
+        ByteArrayOutputStream collector = new ByteArrayOutputStream();
+        Transformer transformer =
+                TransformerFactory.newInstance().newTransformer();
+        transformer.setOutputProperty(OutputKeys.ENCODING, "utf-8");
+        transformer.transform(new DOMSource(doc), new StreamResult(collector));
+        return collector.toByteArray();
+    }
+
+    private static String loadTemplate() {
+        try {
+            InputStream input =
+                    ListingQuery.class.getResourceAsStream(TEMPLATE_RESOURCE);
+            try {
+                ByteArrayOutputStream collector = new ByteArrayOutputStream();
+                byte[] buf = new byte[4096];
+                int count;
+                while ((count = input.read(buf, 0, 4096)) != -1) {
+                    collector.write(buf, 0, count);
+                }
+                return collector.toString("UTF-8");
+            } finally {
+                input.close();
+            }
+        } catch (Exception ex) {
+            throw new IllegalStateException(ex.getMessage(), ex);
+        }
+    }
+
+    private static boolean isEmpty(String value) {
+        return (value == null || "".equals(value));
+    }
+
+}
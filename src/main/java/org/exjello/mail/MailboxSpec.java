@@ -0,0 +1,121 @@
+/*
+Copyright (c) 2010 Eric Glass, Mirco Attocchi
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+
+package org.exjello.mail;
+
+import java.io.ByteArrayInputStream;
+
+import java.util.Properties;
+
+/**
+ * A mailbox specification in the form accepted as a username by the store
+ * and transport, e.g.
+ * "<code>MYDOMAIN\myuser:my.user@example.com[limit=30,unfiltered=true]</code>".
+ * The mailbox and the bracketed options are both optional.
+ */
+public final class MailboxSpec {
+
+    private final String spec;
+
+    private final String username;
+
+    private final String mailbox;
+
+    private final Properties options;
+
+    private MailboxSpec(String spec, String username, String mailbox,
+            Properties options) {
+        this.spec = spec;
+        this.username = username;
+        this.mailbox = mailbox;
+        this.options = options;
+    }
+
+    public static MailboxSpec parse(String spec) {
+        if (spec == null) throw new NullPointerException("spec");
+        int index = spec.indexOf(':');
+        if (index == -1) return new MailboxSpec(spec, spec, null, null);
+        String username = spec.substring(0, index);
+        String mailbox = spec.substring(index + 1);
+        Properties options = null;
+        index = mailbox.indexOf('[');
+        if (index != -1) {
+            String mailboxOptions = mailbox.substring(index + 1);
+            mailboxOptions = mailboxOptions.substring(0,
+                    mailboxOptions.indexOf(']'));
+            mailbox = mailbox.substring(0, index);
+            try {
+                options = parseOptions(mailboxOptions);
+            } catch (Exception ex) {
+                throw new IllegalArgumentException(
+                        "Unable to parse mailbox options: " +
+                                ex.getMessage(), ex);
+            }
+        }
+        return new MailboxSpec(spec, username, mailbox, options);
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    /**
+     * Returns the mailbox, or <code>null</code> if the specification
+     * consists of a username only.
+     */
+    public String getMailbox() {
+        return mailbox;
+    }
+
+    public boolean hasOptions() {
+        return (options != null);
+    }
+
+    public String getOption(String name) {
+        return (options != null) ? options.getProperty(name) : null;
+    }
+
+    public int hashCode() {
+        return spec.hashCode();
+    }
+
+    public boolean equals(Object obj) {
+        return (obj instanceof MailboxSpec) &&
+                spec.equals(((MailboxSpec) obj).spec);
+    }
+
+    public String toString() {
+        return spec;
+    }
+
+    private static Properties parseOptions(String options) throws Exception {
+        StringBuilder collector = new StringBuilder();
+        String[] nvPairs = options.split("[,;]");
+        for (String nvPair : nvPairs)
+            collector.append(nvPair).append('\n');
+        Properties properties = new Properties();
+        properties.load(new ByteArrayInputStream(
+                collector.toString().getBytes("ISO-8859-1")));
+        return properties;
+    }
+
+}
@@ -0,0 +1,133 @@
+/*
+Copyright (c) 2010 Eric Glass
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+
+package org.exjello.mail;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.NoSuchElementException;
+
+import java.util.concurrent.Future;
+
+import javax.mail.Message;
+import javax.mail.MessagingException;
+
+/**
+ * Iterates over a range of messages in a folder, keeping the content of
+ * the next few messages downloading in the background while the caller
+ * works on the current one.  An iterator may be split in two with
+ * {@link #trySplit()} to process the halves of its range on separate
+ * threads; each iterator itself is meant for a single thread.
+ */
+public final class MessageIterator implements Iterator<Message> {
+
+    private final ExchangeFolder folder;
+
+    private final int readAhead;
+
+    /* downloads of the messages after the current one up to scheduled */
+    private final LinkedList<Future<?>> pending = new LinkedList<Future<?>>();
+
+    private int next;
+
+    private int end;
+
+    private int scheduled;
+
+    MessageIterator(ExchangeFolder folder, int start, int end,
+            int readAhead) {
+        this.folder = folder;
+        this.next = start;
+        this.end = end;
+        this.readAhead = readAhead;
+        this.scheduled = start - 1;
+    }
+
+    public boolean hasNext() {
+        return next <= end;
+    }
+
+    /**
+     * Returns the next message, first scheduling the downloads of those
+     * that follow it within the read-ahead window.
+     */
+    public Message next() {
+        if (next > end) throw new NoSuchElementException();
+        int number = next++;
+        while (!pending.isEmpty() && pending.size() > scheduled - number) {
+            pending.removeFirst();
+        }
+        int last = Math.min(end, number + readAhead);
+        while (scheduled < last) {
+            pending.add(folder.readAhead(++scheduled));
+        }
+        try {
+            return folder.getMessage(number);
+        } catch (MessagingException ex) {
+            throw new IllegalStateException(ex.getMessage(), ex);
+        }
+    }
+
+    public void remove() {
+        throw new UnsupportedOperationException("remove");
+    }
+
+    /**
+     * Returns the number of messages not yet returned.
+     */
+    public int getRemaining() {
+        return Math.max(0, end - next + 1);
+    }
+
+    /**
+     * Hands the upper half of the remaining range to a new iterator, or
+     * returns <code>null</code> if fewer than two messages remain.
+     */
+    public MessageIterator trySplit() {
+        int remaining = getRemaining();
+        if (remaining < 2) return null;
+        int middle = next + remaining / 2;
+        MessageIterator split = new MessageIterator(folder, middle, end,
+                readAhead);
+        end = middle - 1;
+        while (scheduled > end) {
+            if (!pending.isEmpty()) cancel(pending.removeLast());
+            scheduled--;
+        }
+        return split;
+    }
+
+    /**
+     * Cancels the downloads not yet started, e.g. when the caller stops
+     * before the end of the range.
+     */
+    public void close() {
+        while (!pending.isEmpty()) cancel(pending.removeFirst());
+        scheduled = end;
+        next = end + 1;
+    }
+
+    private static void cancel(Future<?> future) {
+        if (future != null) future.cancel(false);
+    }
+
+}
@@ -0,0 +1,165 @@
+/*
+Copyright (c) 2010 Eric Glass
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+
+package org.exjello.mail;
+
+/**
+ * Running statistics for a single mailbox polled by an
+ * {@link ExchangePoller}.  Lag is the time a poll spent waiting for a free
+ * worker after it became due; a steadily growing lag means the poller's
+ * concurrency is too low for the configured schedules.
+ */
+public final class PollerStatistics {
+
+    private final long created = System.currentTimeMillis();
+
+    private long polls;
+
+    private long failures;
+
+    private long messages;
+
+    private long rejectedMessages;
+
+    private long lastPollTime = -1l;
+
+    private long lastLag;
+
+    private long totalLag;
+
+    private long maximumLag;
+
+    private long lastDuration;
+
+    private long totalDuration;
+
+    private Exception lastFailure;
+
+    PollerStatistics() { }
+
+    /**
+     * Number of completed polls, successful or not.
+     */
+    public synchronized long getPolls() {
+        return polls;
+    }
+
+    /**
+     * Number of polls that failed to connect to or read the mailbox.
+     */
+    public synchronized long getFailures() {
+        return failures;
+    }
+
+    /**
+     * Number of messages successfully handed to the handler.
+     */
+    public synchronized long getMessages() {
+        return messages;
+    }
+
+    /**
+     * Number of messages for which the handler threw an exception; these
+     * are left in place and offered again on the next poll.
+     */
+    public synchronized long getRejectedMessages() {
+        return rejectedMessages;
+    }
+
+    /**
+     * Time at which the most recent poll started, or -1 if the mailbox
+     * has not been polled yet.
+     */
+    public synchronized long getLastPollTime() {
+        return lastPollTime;
+    }
+
+    public synchronized long getLastLag() {
+        return lastLag;
+    }
+
+    public synchronized long getAverageLag() {
+        return (polls > 0) ? totalLag / polls : 0l;
+    }
+
+    public synchronized long getMaximumLag() {
+        return maximumLag;
+    }
+
+    public synchronized long getLastDuration() {
+        return lastDuration;
+    }
+
+    public synchronized long getAverageDuration() {
+        return (polls > 0) ? totalDuration / polls : 0l;
+    }
+
+    /**
+     * Messages handled per second of polling time.
+     */
+    public synchronized double getThroughput() {
+        return (totalDuration > 0) ?
+                (messages * 1000.0) / totalDuration : 0.0;
+    }
+
+    /**
+     * Messages handled per second since the mailbox was added.
+     */
+    public synchronized double getRate() {
+        long elapsed = System.currentTimeMillis() - created;
+        return (elapsed > 0) ? (messages * 1000.0) / elapsed : 0.0;
+    }
+
+    public synchronized Exception getLastFailure() {
+        return lastFailure;
+    }
+
+    synchronized void pollStarted(long time, long lag) {
+        lastPollTime = time;
+        lastLag = lag;
+        totalLag += lag;
+        if (lag > maximumLag) maximumLag = lag;
+    }
+
+    synchronized void pollCompleted(long duration, int handled,
+            int rejected, Exception failure) {
+        polls++;
+        lastDuration = duration;
+        totalDuration += duration;
+        messages += handled;
+        rejectedMessages += rejected;
+        if (failure != null) {
+            failures++;
+            lastFailure = failure;
+        }
+    }
+
+    public synchronized String toString() {
+        return "polls=" + polls + ", failures=" + failures + ", messages=" +
+                messages + ", rejected=" + rejectedMessages + ", lag=" +
+                        lastLag + "ms (avg " + getAverageLag() + "ms, max " +
+                                maximumLag + "ms), duration=" + lastDuration +
+                                        "ms, throughput=" + getThroughput() +
+                                                " msg/s";
+    }
+
+}
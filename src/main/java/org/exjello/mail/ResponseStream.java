@@ -0,0 +1,99 @@
+/*
+Copyright (c) 2010 Eric Glass
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+
+package org.exjello.mail;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import javax.mail.MessagingException;
+
+/**
+ * The body of an HTTP response handed to the caller as it arrives, rather
+ * than spooled first.  Closing the stream releases the connection; a body
+ * that has not been read to the end is aborted instead of drained, so
+ * abandoning a large download costs nothing further.
+ */
+abstract class ResponseStream extends FilterInputStream {
+
+    private final HttpResponse response;
+
+    private final ExchangeFolder folder;
+
+    private boolean eof = false;
+
+    private boolean closed = false;
+
+    protected ResponseStream(HttpResponse response, InputStream body,
+            ExchangeFolder folder) throws IOException {
+        super(body);
+        this.response = response;
+        this.folder = folder;
+        if (folder != null) {
+            try {
+                folder.register(this);
+            } catch (MessagingException ex) {
+                throw new IOException(ex.getMessage());
+            }
+        }
+    }
+
+    public int read() throws IOException {
+        int value = super.read();
+        if (value == -1) eof = true;
+        return value;
+    }
+
+    public int read(byte[] b, int off, int len) throws IOException {
+        int count = super.read(b, off, len);
+        if (count == -1) eof = true;
+        return count;
+    }
+
+    public boolean markSupported() {
+        return false;
+    }
+
+    public void close() throws IOException {
+        synchronized (this) {
+            if (closed) return;
+            closed = true;
+        }
+        try {
+            if (eof) {
+                super.close();
+            } else {
+                response.abort();
+            }
+        } finally {
+            release(response);
+            if (folder != null) folder.unregister(this);
+        }
+    }
+
+    /**
+     * Returns the connection used by the given response to its owner.
+     */
+    protected abstract void release(HttpResponse response);
+
+}
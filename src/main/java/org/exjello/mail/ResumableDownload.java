@@ -0,0 +1,339 @@
+/*
+Copyright (c) 2010 Eric Glass
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+
+package org.exjello.mail;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Downloads a resource into a file, resuming with a <code>Range</code>
+ * request after an I/O failure instead of starting over.  A resumed
+ * request carries an <code>If-Range</code> validator taken from the first
+ * response, so a resource that changed in the meantime is sent whole and
+ * replaces what was already received.  Large resources may also be
+ * fetched as several byte ranges at once.
+ */
+abstract class ResumableDownload {
+
+    private static final ExecutorService SEGMENTS =
+            ExchangeExecutors.newCachedThreadPool("download");
+
+    private static final int HTTP_OK = 200;
+
+    private static final int HTTP_PARTIAL_CONTENT = 206;
+
+    private static final int HTTP_PRECONDITION_FAILED = 412;
+
+    private static final int HTTP_RANGE_NOT_SATISFIABLE = 416;
+
+    private final File file;
+
+    private final int retries;
+
+    private final int parallel;
+
+    private final long threshold;
+
+    private String validator;
+
+    /**
+     * @param retries how many times a failed transfer is resumed.
+     * @param parallel the number of ranges fetched at once for resources
+     * of at least <code>threshold</code> bytes; 1 fetches them sequentially.
+     */
+    protected ResumableDownload(File file, int retries, int parallel,
+            long threshold) {
+        this.file = file;
+        this.retries = retries;
+        this.parallel = parallel;
+        this.threshold = threshold;
+    }
+
+    public void run() throws Exception {
+        RandomAccessFile output = new RandomAccessFile(file, "rw");
+        try {
+            output.setLength(0);
+            Part part = open(-1, -1);
+            long length = getContentLength(part.response);
+            String header = part.response.getHeader("Accept-Ranges");
+            boolean ranges = (header != null) &&
+                    "bytes".equalsIgnoreCase(header.trim());
+            if (parallel > 1 && ranges && validator != null &&
+                    length >= threshold) {
+                try {
+                    fetchSegments(part, output, length);
+                    return;
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw ex;
+                } catch (RangeException ex) {
+                    // fall back to fetching the resource again, whole
+                }
+                output.setLength(0);
+                part = open(-1, -1);
+                transfer(part, output, 0, getContentLength(part.response) - 1,
+                        true);
+            } else {
+                // the body is checked against its length, as a connection
+                // closed early otherwise looks like the end of the body
+                transfer(part, output, 0, length - 1, true);
+            }
+        } finally {
+            output.close();
+        }
+    }
+
+    /**
+     * Fetches the first range over the response already received and the
+     * others concurrently.  The first response is released before waiting
+     * on the others, as they may need its connection.  Throws a
+     * <code>RangeException</code> if the server did not serve a range of
+     * the same resource; any other failure, including one writing the
+     * file, is not worth fetching the resource again for.
+     */
+    private void fetchSegments(Part part, RandomAccessFile output,
+            long length) throws Exception {
+        output.setLength(length);
+        long size = (length + parallel - 1) / parallel;
+        List<Future<Object>> segments = new ArrayList<Future<Object>>();
+        for (long start = size; start < length; start += size) {
+            final long from = start;
+            final long to = Math.min(length, start + size) - 1;
+            segments.add(SEGMENTS.submit(new Callable<Object>() {
+                public Object call() throws Exception {
+                    RandomAccessFile segment =
+                            new RandomAccessFile(file, "rw");
+                    try {
+                        transfer(open(from, to), segment, from, to, false);
+                        return null;
+                    } finally {
+                        segment.close();
+                    }
+                }
+            }));
+        }
+        try {
+            transfer(part, output, 0, size - 1, false);
+            for (Future<Object> segment : segments) segment.get();
+        } catch (ExecutionException ex) {
+            throw (ex.getCause() instanceof Exception) ?
+                    (Exception) ex.getCause() : ex;
+        } finally {
+            for (Future<Object> segment : segments) segment.cancel(true);
+        }
+    }
+
+    /**
+     * Copies the response body into the file from <code>position</code>
+     * through <code>end</code> (or to the end of the body if negative),
+     * resuming after failures reading the response; failures writing the
+     * file are thrown at once.  If the resource changed, the whole body
+     * received instead is kept when <code>restart</code> is set;
+     * otherwise the download fails.
+     */
+    private void transfer(Part part, RandomAccessFile output, long position,
+            long end, boolean restart) throws Exception {
+        int attempts = 0;
+        byte[] buf = new byte[65536];
+        while (true) {
+            if (part != null) {
+                HttpResponse response = part.response;
+                InputStream stream = part.body;
+                IOException failure = null;
+                boolean complete = false;
+                try {
+                    output.seek(position);
+                    while (end < 0 || position <= end) {
+                        int count;
+                        try {
+                            count = stream.read(buf, 0, (end < 0) ?
+                                    buf.length : (int) Math.min(buf.length,
+                                            end - position + 1));
+                        } catch (IOException ex) {
+                            failure = ex;
+                            break;
+                        }
+                        if (count == -1) break;
+                        // failures writing the file are not resumed
+                        output.write(buf, 0, count);
+                        position += count;
+                    }
+                    if (failure == null && end >= 0 && position <= end) {
+                        failure = new IOException("Response ended at byte " +
+                                position + " of " + (end + 1) + ".");
+                    }
+                    if (failure == null && end >= 0) {
+                        // a response covering more than the range is cut short
+                        try {
+                            if (stream.read() != -1) response.abort();
+                        } catch (IOException ex) {
+                            response.abort();
+                        }
+                    }
+                    complete = (failure == null);
+                } finally {
+                    if (!complete) response.abort();
+                    release(response, null);
+                }
+                if (complete) return;
+                if (validator == null || ++attempts > retries) throw failure;
+            }
+            try {
+                part = open(position, end);
+            } catch (IOException ex) {
+                if (++attempts > retries) throw ex;
+                part = null;
+                continue;
+            }
+            if (part.response.getStatus() == HTTP_OK) {
+                if (!restart) {
+                    part.response.abort();
+                    release(part.response, null);
+                    throw new RangeException(
+                            "Resource changed during download.");
+                }
+                output.setLength(0);
+                position = 0;
+                end = getContentLength(part.response) - 1;
+            }
+        }
+    }
+
+    /**
+     * Sends the request, for the given byte range if <code>from</code> is
+     * not negative, and returns the response with its body.  A failed
+     * request is released before throwing.
+     */
+    private Part open(long from, long to) throws Exception {
+        HttpRequest request = createRequest();
+        if (from >= 0) {
+            request.setHeader("Range", "bytes=" + from + "-" +
+                    ((to >= 0) ? String.valueOf(to) : ""));
+            request.setHeader("If-Range", validator);
+        }
+        HttpResponse response = execute(request);
+        InputStream stream = null;
+        boolean opened = false;
+        try {
+            int status = response.getStatus();
+            stream = getResponseBody(response);
+            if (status == HTTP_PARTIAL_CONTENT && from >= 0) {
+                String range = response.getHeader("Content-Range");
+                if (range == null || !range.trim().startsWith(
+                        "bytes " + from + "-")) {
+                    throw new RangeException(
+                            "Unexpected range in response: " + range);
+                }
+            } else if (from >= 0 && (status == HTTP_PRECONDITION_FAILED ||
+                    status == HTTP_RANGE_NOT_SATISFIABLE)) {
+                throw new RangeException("Unable to obtain range: " + status);
+            } else if (status != HTTP_OK) {
+                throw new IllegalStateException(
+                        "Unable to obtain resource: " + status);
+            }
+            if (validator == null) {
+                String header = response.getHeader("ETag");
+                if (header == null || header.startsWith("W/")) {
+                    header = response.getHeader("Last-Modified");
+                }
+                if (header != null) validator = header;
+            }
+            if (stream == null) stream = new ByteArrayInputStream(new byte[0]);
+            opened = true;
+            return new Part(response, stream);
+        } finally {
+            if (!opened) release(response, stream);
+        }
+    }
+
+    /**
+     * Returns the length of the response body, or -1 if not given or if
+     * the body is compressed, since the decoded length is then unknown.
+     */
+    private static long getContentLength(HttpResponse response) {
+        if (ContentCoding.isEncoded(response)) return -1;
+        String header = response.getHeader("Content-Length");
+        if (header == null) return -1;
+        try {
+            return Long.parseLong(header.trim());
+        } catch (NumberFormatException ex) {
+            return -1;
+        }
+    }
+
+    /**
+     * Creates the request for the resource, without any range.
+     */
+    protected abstract HttpRequest createRequest();
+
+    protected abstract HttpResponse execute(HttpRequest request)
+            throws Exception;
+
+    /**
+     * Returns the response body, decoded from any content coding.  Ranged
+     * requests must be sent without one, as their offsets count decoded
+     * bytes.
+     */
+    protected abstract InputStream getResponseBody(HttpResponse response)
+            throws IOException;
+
+    protected abstract void release(HttpResponse response,
+            InputStream stream);
+
+    /**
+     * Thrown when the server does not serve a requested range of the
+     * resource first received.
+     */
+    private static final class RangeException extends IllegalStateException {
+
+        public RangeException(String message) {
+            super(message);
+        }
+
+    }
+
+    private static final class Part {
+
+        final HttpResponse response;
+
+        final InputStream body;
+
+        public Part(HttpResponse response, InputStream body) {
+            this.response = response;
+            this.body = body;
+        }
+
+    }
+
+}
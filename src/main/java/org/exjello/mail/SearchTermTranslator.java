@@ -0,0 +1,221 @@
+/*
+Copyright (c) 2010 Eric Glass
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+
+package org.exjello.mail;
+
+import java.text.SimpleDateFormat;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.TimeZone;
+
+import javax.mail.Flags;
+
+import javax.mail.search.AndTerm;
+import javax.mail.search.ComparisonTerm;
+import javax.mail.search.FlagTerm;
+import javax.mail.search.FromStringTerm;
+import javax.mail.search.NotTerm;
+import javax.mail.search.OrTerm;
+import javax.mail.search.ReceivedDateTerm;
+import javax.mail.search.SearchTerm;
+import javax.mail.search.SizeTerm;
+import javax.mail.search.SubjectTerm;
+
+/**
+ * Translates a JavaMail <code>SearchTerm</code> into a condition for the
+ * WHERE clause of an Exchange WebDAV SEARCH.  Terms that have no
+ * equivalent are returned as a residual term, to be evaluated on the
+ * client against the messages the server returns; a message matches the
+ * original term exactly when it matches both the condition and the
+ * residual.
+ */
+final class SearchTermTranslator {
+
+    private SearchTermTranslator() { }
+
+    public static Translation translate(SearchTerm term) {
+        if (term instanceof AndTerm) {
+            List<String> conditions = new ArrayList<String>();
+            List<SearchTerm> residuals = new ArrayList<SearchTerm>();
+            for (SearchTerm child : ((AndTerm) term).getTerms()) {
+                Translation translation = translate(child);
+                if (translation.condition != null) {
+                    conditions.add(translation.condition);
+                }
+                if (translation.residual != null) {
+                    residuals.add(translation.residual);
+                }
+            }
+            SearchTerm residual = null;
+            if (residuals.size() == 1) {
+                residual = residuals.get(0);
+            } else if (residuals.size() > 1) {
+                residual = new AndTerm(residuals.toArray(
+                        new SearchTerm[residuals.size()]));
+            }
+            return new Translation(join(conditions, " AND "), residual);
+        }
+        if (term instanceof OrTerm) {
+            List<String> conditions = new ArrayList<String>();
+            boolean exact = true;
+            for (SearchTerm child : ((OrTerm) term).getTerms()) {
+                Translation translation = translate(child);
+                // a child the server cannot narrow makes the whole
+                // disjunction unrestricted
+                if (translation.condition == null) {
+                    return new Translation(null, term);
+                }
+                conditions.add(translation.condition);
+                if (translation.residual != null) exact = false;
+            }
+            // otherwise the server narrows to a superset, refined locally
+            // unless every child was translated exactly
+            return new Translation(join(conditions, " OR "),
+                    exact ? null : term);
+        }
+        if (term instanceof NotTerm) {
+            Translation translation = translate(((NotTerm) term).getTerm());
+            if (translation.condition != null &&
+                    translation.residual == null) {
+                return new Translation("NOT " + translation.condition, null);
+            }
+            return new Translation(null, term);
+        }
+        if (term instanceof FromStringTerm) {
+            return like("urn:schemas:httpmail:from",
+                    ((FromStringTerm) term).getPattern(), term);
+        }
+        if (term instanceof SubjectTerm) {
+            return like("urn:schemas:httpmail:subject",
+                    ((SubjectTerm) term).getPattern(), term);
+        }
+        if (term instanceof ReceivedDateTerm) {
+            ReceivedDateTerm dateTerm = (ReceivedDateTerm) term;
+            String operator = getOperator(dateTerm.getComparison());
+            if (operator == null) return new Translation(null, term);
+            return new Translation("(\"urn:schemas:httpmail:datereceived\" " +
+                    operator + " CAST(\"" + format(dateTerm.getDate()) +
+                            "\" as 'dateTime'))", null);
+        }
+        if (term instanceof SizeTerm) {
+            SizeTerm sizeTerm = (SizeTerm) term;
+            String operator = getOperator(sizeTerm.getComparison());
+            if (operator == null) return new Translation(null, term);
+            return new Translation("(\"DAV:getcontentlength\" " + operator +
+                    " " + sizeTerm.getNumber() + ")", null);
+        }
+        if (term instanceof FlagTerm) {
+            FlagTerm flagTerm = (FlagTerm) term;
+            Flags flags = flagTerm.getFlags();
+            // only the read state is kept on the server
+            if (flags.getUserFlags().length == 0 &&
+                    flags.getSystemFlags().length == 1 &&
+                            flags.contains(Flags.Flag.SEEN)) {
+                return new Translation("(\"urn:schemas:httpmail:read\" = " +
+                        (flagTerm.getTestSet() ? "True" : "False") + ")",
+                                null);
+            }
+        }
+        return new Translation(null, term);
+    }
+
+    private static Translation like(String property, String pattern,
+            SearchTerm term) {
+        String condition = "(\"" + property + "\" LIKE " +
+                ListingQuery.contains(pattern) + ")";
+        // the server cannot escape '%' or '_', which it takes as wildcards
+        // and so matches a superset; the term itself then refines it
+        if (pattern.indexOf('%') != -1 || pattern.indexOf('_') != -1) {
+            return new Translation(condition, term);
+        }
+        return new Translation(condition, null);
+    }
+
+    private static String getOperator(int comparison) {
+        switch (comparison) {
+        case ComparisonTerm.LE:
+            return "<=";
+        case ComparisonTerm.LT:
+            return "<";
+        case ComparisonTerm.EQ:
+            return "=";
+        case ComparisonTerm.NE:
+            return "<>";
+        case ComparisonTerm.GT:
+            return ">";
+        case ComparisonTerm.GE:
+            return ">=";
+        default:
+            return null;
+        }
+    }
+
+    private static String format(Date date) {
+        SimpleDateFormat format =
+                new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return format.format(date);
+    }
+
+    private static String join(List<String> conditions, String operator) {
+        if (conditions.isEmpty()) return null;
+        if (conditions.size() == 1) return conditions.get(0);
+        StringBuilder joined = new StringBuilder("(");
+        for (int i = 0; i < conditions.size(); i++) {
+            if (i > 0) joined.append(operator);
+            joined.append(conditions.get(i));
+        }
+        return joined.append(')').toString();
+    }
+
+    static final class Translation {
+
+        private final String condition;
+
+        private final SearchTerm residual;
+
+        private Translation(String condition, SearchTerm residual) {
+            this.condition = condition;
+            this.residual = residual;
+        }
+
+        /**
+         * Returns the condition for the server, or <code>null</code> if the
+         * server cannot narrow the search at all.
+         */
+        public String getCondition() {
+            return condition;
+        }
+
+        /**
+         * Returns the part of the term left for the client, or
+         * <code>null</code> if the condition is exact.
+         */
+        public SearchTerm getResidual() {
+            return residual;
+        }
+
+    }
+
+}
@@ -0,0 +1,193 @@
+/*
+Copyright (c) 2010 Eric Glass
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+
+package org.exjello.mail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import java.util.concurrent.Future;
+
+/**
+ * Watches the order in which the content of a folder's messages is read,
+ * and once it is read in sequence, downloads the next few messages in the
+ * background.  The number downloaded ahead follows the ratio of the time
+ * a download takes to the time the caller spends on each message, so a
+ * slow consumer gets one message ahead and a fast one up to the maximum.
+ * Reading out of sequence cancels the downloads not yet started and drops
+ * those finished but unread, as does exceeding the byte budget for unread
+ * content.
+ */
+final class SequentialReadAhead {
+
+    /* sequential reads seen before reading ahead */
+    private static final int STREAK = 2;
+
+    /* weight of the newest sample in the running averages */
+    private static final double WEIGHT = 0.25;
+
+    private final ExchangeFolder folder;
+
+    private final int maximum;
+
+    private final long budget;
+
+    private final Map<Integer, Future<?>> speculative =
+            new TreeMap<Integer, Future<?>>();
+
+    private int last = -1;
+
+    private long lastTime;
+
+    private int streak;
+
+    /* running averages of the caller's time per message and of the time
+       a download takes, or -1 before the first sample */
+    private double interval = -1;
+
+    private double latency = -1;
+
+    public SequentialReadAhead(ExchangeFolder folder, int maximum,
+            long budget) {
+        this.folder = folder;
+        this.maximum = maximum;
+        this.budget = budget;
+    }
+
+    /**
+     * Notes that the content of the given message is being read, after
+     * waiting the given time for it.  The time between reads less that
+     * wait is the time the caller spent on the previous message.
+     */
+    public void accessed(int number, long waited) {
+        List<Integer> dropped = new ArrayList<Integer>();
+        List<Integer> scheduled = new ArrayList<Integer>();
+        synchronized (this) {
+            speculative.remove(number);
+            if (number == last) return;
+            long now = System.currentTimeMillis();
+            if (number == last + 1) {
+                interval = average(interval,
+                        Math.max(0, now - lastTime - waited));
+                streak++;
+            } else {
+                interval = -1;
+                streak = 1;
+                dropped.addAll(cancel());
+            }
+            last = number;
+            lastTime = now;
+            if (streak >= STREAK) {
+                int end = number + getWindow();
+                for (int next = number + 1; next <= end; next++) {
+                    if (!speculative.containsKey(next)) scheduled.add(next);
+                }
+            }
+        }
+        for (Integer next : scheduled) {
+            Future<?> future = folder.readAhead(next);
+            if (future == null) break;
+            synchronized (this) {
+                if (last != number) {
+                    future.cancel(false);
+                    break;
+                }
+                speculative.put(next, future);
+            }
+        }
+        dropped.addAll(overBudget());
+        for (Integer message : dropped) folder.evict(message);
+    }
+
+    /**
+     * Notes the time taken to download a message.
+     */
+    public void fetched(long millis) {
+        synchronized (this) {
+            latency = average(latency, millis);
+        }
+        for (Integer message : overBudget()) folder.evict(message);
+    }
+
+    /**
+     * Cancels every download not yet started, e.g. when the folder closes.
+     */
+    public void close() {
+        synchronized (this) {
+            cancel();
+            last = -1;
+            streak = 0;
+        }
+    }
+
+    /**
+     * Returns how many messages to keep ahead of the caller: as many as
+     * complete in the time one download takes, at least one.
+     */
+    private int getWindow() {
+        if (latency < 0 || interval < 0) return 1;
+        int window = (int) Math.ceil(latency / Math.max(1.0, interval));
+        return Math.max(1, Math.min(maximum, window));
+    }
+
+    private List<Integer> cancel() {
+        List<Integer> cancelled = new ArrayList<Integer>(speculative.keySet());
+        for (Future<?> future : speculative.values()) future.cancel(false);
+        speculative.clear();
+        return cancelled;
+    }
+
+    /**
+     * Gives up the downloaded messages furthest ahead until the unread
+     * content fits the budget.
+     */
+    private List<Integer> overBudget() {
+        List<Integer> finished;
+        synchronized (this) {
+            finished = new ArrayList<Integer>(speculative.keySet());
+        }
+        long total = 0;
+        List<Long> sizes = new ArrayList<Long>();
+        for (Integer number : finished) {
+            long size = folder.getUnreadSize(number);
+            sizes.add(size);
+            total += size;
+        }
+        List<Integer> dropped = new ArrayList<Integer>();
+        for (int i = finished.size() - 1; i >= 0 && total > budget; i--) {
+            total -= sizes.get(i);
+            dropped.add(finished.get(i));
+        }
+        synchronized (this) {
+            for (Integer number : dropped) speculative.remove(number);
+        }
+        return dropped;
+    }
+
+    private static double average(double average, long sample) {
+        return (average < 0) ? sample :
+                average + WEIGHT * (sample - average);
+    }
+
+}
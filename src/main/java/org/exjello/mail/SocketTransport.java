@@ -0,0 +1,740 @@
+/*
+Copyright (c) 2010 Eric Glass
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+
+package org.exjello.mail;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URL;
+
+import java.security.cert.Certificate;
+import java.security.cert.CertificateParsingException;
+import java.security.cert.X509Certificate;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.mail.MessagingException;
+
+import javax.mail.internet.MimeUtility;
+
+import javax.net.ssl.SSLPeerUnverifiedException;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * A transport speaking HTTP/1.1 directly over its own pool of sockets,
+ * without commons-httpclient.  Connections are kept alive between
+ * requests, and a request that only reads from the server is sent again on
+ * a new connection if the one reused from the pool turns out to have been
+ * closed by the server while idle.  Secure connections are checked against
+ * the server's host name.
+ * <p>
+ * Basic authentication is sent once the server asks for it, then with
+ * every request; cookies set by the server, as forms-based authentication
+ * does, are sent back with every request.  NTLM is not supported, so a
+ * server accepting only NTLM needs the default transport.
+ */
+final class SocketTransport implements HttpTransport {
+
+    public static final String NAME = "socket";
+
+    private static final int MAX_LINE_LENGTH = 65536;
+
+    private final String host;
+
+    private final int port;
+
+    private final boolean secure;
+
+    private final String authorization;
+
+    private final int timeout;
+
+    private final int connectionTimeout;
+
+    private final InetAddress localAddress;
+
+    private final int maxConnections;
+
+    private final LinkedList<Connection> idle = new LinkedList<Connection>();
+
+    private final Lock lock = new ReentrantLock();
+
+    private final Condition returned = lock.newCondition();
+
+    private final Map<String, String> cookies =
+            new LinkedHashMap<String, String>();
+
+    private int open;
+
+    private boolean authorize;
+
+    private boolean shutdown;
+
+    public SocketTransport(String server, String username, String password,
+            int timeout, int connectionTimeout, InetAddress localAddress,
+                    int maxConnections) throws IOException {
+        URL serverUrl = new URL(server);
+        this.host = serverUrl.getHost();
+        this.secure = "https".equalsIgnoreCase(serverUrl.getProtocol());
+        this.port = (serverUrl.getPort() != -1) ? serverUrl.getPort() :
+                serverUrl.getDefaultPort();
+        this.authorization = "Basic " + encode(username + ":" + password);
+        this.timeout = timeout;
+        this.connectionTimeout = connectionTimeout;
+        this.localAddress = localAddress;
+        this.maxConnections = maxConnections;
+    }
+
+    /**
+     * Sends the request, and again with credentials if the server asks
+     * for Basic authentication.
+     */
+    public HttpResponse execute(HttpRequest request) throws IOException {
+        boolean authorized;
+        synchronized (this) {
+            authorized = authorize;
+        }
+        Response response = send(request, authorized);
+        if (response.getStatus() != 401 || authorized ||
+                !response.offers("Basic")) {
+            return response;
+        }
+        response.release();
+        response = send(request, true);
+        if (response.getStatus() != 401) {
+            synchronized (this) {
+                authorize = true;
+            }
+        }
+        return response;
+    }
+
+    public void shutdown() {
+        lock.lock();
+        try {
+            shutdown = true;
+            for (Connection connection : idle) connection.close();
+            open -= idle.size();
+            idle.clear();
+            returned.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private Response send(HttpRequest request, boolean authorized)
+            throws IOException {
+        URL url = new URL(request.getUri());
+        while (true) {
+            Connection connection = acquire();
+            try {
+                write(connection, request, url, authorized);
+                return read(connection, request);
+            } catch (IOException ex) {
+                discard(connection);
+                // only a connection reused from the pool may have been
+                // closed by the server without our knowing; one that timed
+                // out or began a response was not, and a request that
+                // changes something may have been acted on regardless
+                if (!connection.reused || connection.responded ||
+                        ex instanceof InterruptedIOException ||
+                                !request.isIdempotent()) {
+                    throw ex;
+                }
+            } catch (RuntimeException ex) {
+                discard(connection);
+                throw ex;
+            }
+        }
+    }
+
+    private void write(Connection connection, HttpRequest request, URL url,
+            boolean authorized) throws IOException {
+        String path = url.getFile();
+        if ("".equals(path)) path = "/";
+        StringBuilder head = new StringBuilder();
+        head.append(request.getMethod()).append(' ').append(path).append(
+                " HTTP/1.1\r\n");
+        head.append("Host: ").append(host);
+        if (port != (secure ? 443 : 80)) head.append(':').append(port);
+        head.append("\r\n");
+        for (String[] header : request.getHeaders()) {
+            head.append(header[0]).append(": ").append(header[1]).append(
+                    "\r\n");
+        }
+        if (authorized && request.getHeader("Authorization") == null) {
+            head.append("Authorization: ").append(authorization).append(
+                    "\r\n");
+        }
+        String cookie = getCookieHeader();
+        if (cookie != null) head.append("Cookie: ").append(cookie).append(
+                "\r\n");
+        HttpRequest.Entity entity = request.getEntity();
+        if (entity != null) {
+            if (request.getHeader("Content-Type") == null &&
+                    entity.getContentType() != null) {
+                head.append("Content-Type: ").append(
+                        entity.getContentType()).append("\r\n");
+            }
+            head.append("Content-Length: ").append(
+                    entity.getContentLength()).append("\r\n");
+        } else if (!hasNoEntity(request.getMethod())) {
+            head.append("Content-Length: 0\r\n");
+        }
+        head.append("\r\n");
+        OutputStream output = connection.output;
+        output.write(head.toString().getBytes("ISO-8859-1"));
+        if (entity != null) entity.writeTo(output);
+        output.flush();
+    }
+
+    private Response read(Connection connection, HttpRequest request)
+            throws IOException {
+        InputStream input = connection.input;
+        String statusLine;
+        int status;
+        List<String[]> headers = new ArrayList<String[]>();
+        do {
+            statusLine = readLine(input);
+            if (statusLine == null) {
+                throw new IOException("Connection closed by server.");
+            }
+            connection.responded = true;
+            String[] parts = statusLine.split(" ", 3);
+            if (parts.length < 2 || !parts[0].startsWith("HTTP/")) {
+                throw new IOException("Invalid status line: " + statusLine);
+            }
+            try {
+                status = Integer.parseInt(parts[1]);
+            } catch (NumberFormatException ex) {
+                throw new IOException("Invalid status line: " + statusLine);
+            }
+            headers.clear();
+            String line;
+            while ((line = readLine(input)) != null && !"".equals(line)) {
+                int index = line.indexOf(':');
+                if (index == -1) continue;
+                headers.add(new String[] { line.substring(0, index).trim(),
+                        line.substring(index + 1).trim() });
+            }
+            if (line == null) {
+                throw new IOException("Connection closed by server.");
+            }
+        } while (status >= 100 && status < 200);
+        Response response = new Response(connection, status, headers);
+        for (String[] header : headers) {
+            if ("Set-Cookie".equalsIgnoreCase(header[0])) {
+                setCookie(header[1]);
+            }
+        }
+        boolean keepAlive = statusLine.startsWith("HTTP/1.1") ?
+                !"close".equalsIgnoreCase(response.getHeader("Connection")) :
+                "keep-alive".equalsIgnoreCase(
+                        response.getHeader("Connection"));
+        String length = response.getHeader("Content-Length");
+        if ("HEAD".equals(request.getMethod()) || status == 204 ||
+                status == 304) {
+            response.body = null;
+        } else if ("chunked".equalsIgnoreCase(
+                response.getHeader("Transfer-Encoding"))) {
+            response.body = new ChunkedStream(response, input);
+        } else if (length != null) {
+            long count;
+            try {
+                count = Long.parseLong(length.trim());
+            } catch (NumberFormatException ex) {
+                throw new IOException("Invalid content length: " + length);
+            }
+            response.body = new LengthStream(response, input, count);
+        } else {
+            keepAlive = false;
+            response.body = new LengthStream(response, input, -1);
+        }
+        response.keepAlive = keepAlive;
+        if (response.body == null) response.eof = true;
+        return response;
+    }
+
+    private Connection acquire() throws IOException {
+        lock.lock();
+        try {
+            while (true) {
+                if (shutdown) throw new IOException("Transport shut down.");
+                if (!idle.isEmpty()) return idle.removeLast();
+                if (open < maxConnections) break;
+                try {
+                    returned.await();
+                } catch (InterruptedException ex) {
+                    throw new InterruptedIOException(
+                            "Interrupted waiting for a connection.");
+                }
+            }
+            open++;
+        } finally {
+            lock.unlock();
+        }
+        boolean connected = false;
+        try {
+            Connection connection = new Connection(connect());
+            connected = true;
+            return connection;
+        } finally {
+            if (!connected) {
+                lock.lock();
+                try {
+                    open--;
+                    returned.signalAll();
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+    }
+
+    private Socket connect() throws IOException {
+        Socket socket = new Socket();
+        try {
+            if (localAddress != null) {
+                socket.bind(new InetSocketAddress(localAddress, 0));
+            }
+            socket.connect(new InetSocketAddress(host, port),
+                    Math.max(0, connectionTimeout));
+            if (timeout > 0) socket.setSoTimeout(timeout);
+            socket.setTcpNoDelay(true);
+            if (secure) {
+                socket = ((SSLSocketFactory) SSLSocketFactory.getDefault()
+                        ).createSocket(socket, host, port, true);
+                verifyHost((SSLSocket) socket);
+            }
+            return socket;
+        } catch (IOException ex) {
+            try {
+                socket.close();
+            } catch (IOException ignore) { }
+            throw ex;
+        }
+    }
+
+    /**
+     * Completes the handshake and checks that the server's certificate
+     * was issued for the host connected to, by its DNS or IP subject
+     * alternative names or, failing those, its common name.  A wildcard
+     * matches a single leftmost label.
+     */
+    private void verifyHost(SSLSocket socket) throws IOException {
+        socket.startHandshake();
+        Certificate[] certificates =
+                socket.getSession().getPeerCertificates();
+        if (certificates.length == 0 ||
+                !(certificates[0] instanceof X509Certificate)) {
+            throw new SSLPeerUnverifiedException(
+                    "No server certificate for " + host + ".");
+        }
+        X509Certificate certificate = (X509Certificate) certificates[0];
+        boolean literal = isAddress(host);
+        List<String> names = new ArrayList<String>();
+        try {
+            Collection<List<?>> alternatives =
+                    certificate.getSubjectAlternativeNames();
+            if (alternatives != null) {
+                for (List<?> alternative : alternatives) {
+                    int type = ((Integer) alternative.get(0)).intValue();
+                    if (type == (literal ? 7 : 2)) {
+                        names.add((String) alternative.get(1));
+                    }
+                }
+            }
+        } catch (CertificateParsingException ex) {
+            throw new SSLPeerUnverifiedException(ex.getMessage());
+        }
+        if (names.isEmpty() && !literal) {
+            String subject = certificate.getSubjectX500Principal().getName();
+            for (String part : subject.split(",")) {
+                part = part.trim();
+                if (part.regionMatches(true, 0, "CN=", 0, 3)) {
+                    names.add(part.substring(3));
+                }
+            }
+        }
+        for (String name : names) {
+            if (literal ? host.equalsIgnoreCase(name) : matches(name)) return;
+        }
+        throw new SSLPeerUnverifiedException("Server certificate for " +
+                names + " does not match " + host + ".");
+    }
+
+    private boolean matches(String name) {
+        String pattern = name.toLowerCase();
+        String target = host.toLowerCase();
+        if (!pattern.startsWith("*.")) return pattern.equals(target);
+        int dot = target.indexOf('.');
+        return dot > 0 && target.substring(dot).equals(pattern.substring(1));
+    }
+
+    private static boolean isAddress(String host) {
+        return host.indexOf(':') != -1 ||
+                host.matches("[0-9]+\\.[0-9]+\\.[0-9]+\\.[0-9]+");
+    }
+
+    /**
+     * Returns the connection to the pool, or closes it if it cannot carry
+     * another request.
+     */
+    private void release(Response response) {
+        Connection connection = response.connection;
+        if (!response.aborted && !response.eof && response.keepAlive) {
+            try {
+                byte[] buf = new byte[8192];
+                while (response.body.read(buf, 0, buf.length) != -1) ;
+            } catch (IOException ignore) { }
+        }
+        if (response.aborted || !response.eof || !response.keepAlive) {
+            discard(connection);
+            return;
+        }
+        lock.lock();
+        try {
+            if (shutdown) {
+                connection.close();
+                open--;
+            } else {
+                connection.reused = true;
+                connection.responded = false;
+                idle.addLast(connection);
+            }
+            returned.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void discard(Connection connection) {
+        connection.close();
+        lock.lock();
+        try {
+            open--;
+            returned.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private String getCookieHeader() {
+        synchronized (cookies) {
+            if (cookies.isEmpty()) return null;
+            StringBuilder header = new StringBuilder();
+            for (Map.Entry<String, String> cookie : cookies.entrySet()) {
+                if (header.length() != 0) header.append("; ");
+                header.append(cookie.getKey()).append('=').append(
+                        cookie.getValue());
+            }
+            return header.toString();
+        }
+    }
+
+    /**
+     * Keeps the name and value of the cookie; its attributes are ignored,
+     * as every request goes to the one server.
+     */
+    private void setCookie(String header) {
+        int end = header.indexOf(';');
+        String cookie = (end != -1) ? header.substring(0, end) : header;
+        int index = cookie.indexOf('=');
+        if (index <= 0) return;
+        String name = cookie.substring(0, index).trim();
+        String value = cookie.substring(index + 1).trim();
+        synchronized (cookies) {
+            if ("".equals(value)) {
+                cookies.remove(name);
+            } else {
+                cookies.put(name, value);
+            }
+        }
+    }
+
+    private static boolean hasNoEntity(String method) {
+        return "GET".equals(method) || "HEAD".equals(method) ||
+                "OPTIONS".equals(method) || "DELETE".equals(method);
+    }
+
+    /**
+     * Reads a line terminated by LF, without its line terminator, or
+     * returns <code>null</code> at the end of the stream.
+     */
+    private static String readLine(InputStream input) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = input.read()) != -1 && b != '\n') {
+            if (line.size() >= MAX_LINE_LENGTH) {
+                throw new IOException("Header line too long.");
+            }
+            line.write(b);
+        }
+        if (b == -1 && line.size() == 0) return null;
+        String value = line.toString("ISO-8859-1");
+        return value.endsWith("\r") ?
+                value.substring(0, value.length() - 1) : value;
+    }
+
+    private static String encode(String credentials) throws IOException {
+        ByteArrayOutputStream collector = new ByteArrayOutputStream();
+        try {
+            OutputStream output = MimeUtility.encode(collector, "base64");
+            output.write(credentials.getBytes("ISO-8859-1"));
+            output.close();
+        } catch (MessagingException ex) {
+            throw new IOException(ex.getMessage());
+        }
+        return collector.toString("US-ASCII").replaceAll("\\s", "");
+    }
+
+    private static final class Connection {
+
+        final Socket socket;
+
+        final InputStream input;
+
+        final OutputStream output;
+
+        boolean reused;
+
+        /* whether any of a response has arrived for the current request */
+        boolean responded;
+
+        public Connection(Socket socket) throws IOException {
+            this.socket = socket;
+            this.input = new BufferedInputStream(socket.getInputStream());
+            this.output = new BufferedOutputStream(socket.getOutputStream());
+        }
+
+        public void close() {
+            try {
+                socket.close();
+            } catch (IOException ignore) { }
+        }
+
+    }
+
+    private final class Response implements HttpResponse {
+
+        final Connection connection;
+
+        private final int status;
+
+        private final List<String[]> headers;
+
+        InputStream body;
+
+        boolean keepAlive;
+
+        boolean eof;
+
+        boolean aborted;
+
+        private boolean released;
+
+        public Response(Connection connection, int status,
+                List<String[]> headers) {
+            this.connection = connection;
+            this.status = status;
+            this.headers = headers;
+        }
+
+        public int getStatus() {
+            return status;
+        }
+
+        public String getHeader(String name) {
+            for (String[] header : headers) {
+                if (header[0].equalsIgnoreCase(name)) return header[1];
+            }
+            return null;
+        }
+
+        /**
+         * Returns whether any challenge is for the given scheme.
+         */
+        public boolean offers(String scheme) {
+            for (String[] header : headers) {
+                if ("WWW-Authenticate".equalsIgnoreCase(header[0]) &&
+                        header[1].regionMatches(true, 0, scheme, 0,
+                                scheme.length())) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        public InputStream getBody() {
+            return body;
+        }
+
+        public void abort() {
+            synchronized (this) {
+                if (released) return;
+                aborted = true;
+            }
+            connection.close();
+        }
+
+        public void release() {
+            synchronized (this) {
+                if (released) return;
+                released = true;
+            }
+            SocketTransport.this.release(this);
+        }
+
+    }
+
+    /**
+     * A body delimited by its length, or by the end of the connection if
+     * the length is negative.  Closing it leaves the connection open.
+     */
+    private static final class LengthStream extends InputStream {
+
+        private final Response response;
+
+        private final InputStream input;
+
+        private long remaining;
+
+        public LengthStream(Response response, InputStream input,
+                long length) {
+            this.response = response;
+            this.input = input;
+            this.remaining = length;
+            if (length == 0) response.eof = true;
+        }
+
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return (read(b, 0, 1) == -1) ? -1 : (b[0] & 0xff);
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (response.eof) return -1;
+            if (remaining >= 0) len = (int) Math.min(len, remaining);
+            int count = input.read(b, off, len);
+            if (count == -1) {
+                if (remaining > 0) {
+                    throw new IOException("Response ended " + remaining +
+                            " bytes early.");
+                }
+                response.eof = true;
+                return -1;
+            }
+            if (remaining >= 0 && (remaining -= count) == 0) {
+                response.eof = true;
+            }
+            return count;
+        }
+
+        public int available() throws IOException {
+            if (response.eof) return 0;
+            int available = input.available();
+            return (remaining >= 0) ?
+                    (int) Math.min(available, remaining) : available;
+        }
+
+        public void close() { }
+
+    }
+
+    /**
+     * A body sent in chunks, ending with an empty chunk and any trailers.
+     */
+    private static final class ChunkedStream extends InputStream {
+
+        private final Response response;
+
+        private final InputStream input;
+
+        private long remaining;
+
+        public ChunkedStream(Response response, InputStream input) {
+            this.response = response;
+            this.input = input;
+        }
+
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return (read(b, 0, 1) == -1) ? -1 : (b[0] & 0xff);
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (response.eof) return -1;
+            if (remaining == 0 && !nextChunk()) return -1;
+            int count = input.read(b, off, (int) Math.min(len, remaining));
+            if (count == -1) throw new IOException("Response ended early.");
+            remaining -= count;
+            if (remaining == 0 && readLine(input) == null) {
+                throw new IOException("Response ended early.");
+            }
+            return count;
+        }
+
+        public int available() throws IOException {
+            return response.eof ? 0 :
+                    (int) Math.min(input.available(), remaining);
+        }
+
+        public void close() { }
+
+        private boolean nextChunk() throws IOException {
+            String line = readLine(input);
+            if (line == null) throw new IOException("Response ended early.");
+            int end = line.indexOf(';');
+            try {
+                remaining = Long.parseLong(((end != -1) ?
+                        line.substring(0, end) : line).trim(), 16);
+            } catch (NumberFormatException ex) {
+                throw new IOException("Invalid chunk size: " + line);
+            }
+            if (remaining > 0) return true;
+            while ((line = readLine(input)) != null && !"".equals(line)) ;
+            response.eof = true;
+            return false;
+        }
+
+    }
+
+}
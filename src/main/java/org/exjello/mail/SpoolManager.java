@@ -0,0 +1,242 @@
+/*
+Copyright (c) 2010 Eric Glass
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+
+package org.exjello.mail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import javax.mail.Session;
+
+/**
+ * Spool of the temporary files holding message content.  Each manager
+ * keeps its files in a subdirectory of the configured directory, holding
+ * a lock on it for the life of the JVM; a subdirectory that nobody holds
+ * is left over from a JVM that exited or died, and is removed the next
+ * time a manager is created for that directory.  A file is deleted as
+ * soon as its last reference is released, so nothing is left for the JVM
+ * to delete on exit.
+ */
+final class SpoolManager {
+
+    private static final String PREFIX = "exspool";
+
+    private static final String LOCK_FILE = ".lock";
+
+    private static final Map<String, SpoolManager> REGISTRY =
+            new HashMap<String, SpoolManager>();
+
+    private final File directory;
+
+    private final long quota;
+
+    /* kept open, as the lock lapses once its file is closed */
+    private final RandomAccessFile lock;
+
+    private final Map<File, Integer> references = new HashMap<File, Integer>();
+
+    private SpoolManager(File directory, long quota, RandomAccessFile lock) {
+        this.directory = directory;
+        this.quota = quota;
+        this.lock = lock;
+    }
+
+    /**
+     * Returns the manager for the spool directory and quota configured in
+     * the given session, creating it on first use.
+     */
+    public static SpoolManager getInstance(Session session)
+            throws IOException {
+        String value = session.getProperty(
+                ExchangeConstants.SPOOL_DIRECTORY_PROPERTY);
+        File parent = new File((value != null) ? value :
+                System.getProperty("java.io.tmpdir"));
+        long quota = -1;
+        value = session.getProperty(ExchangeConstants.SPOOL_QUOTA_PROPERTY);
+        if (value != null) {
+            try {
+                quota = Long.parseLong(value);
+            } catch (NumberFormatException ex) {
+                throw new NumberFormatException("Invalid spool quota: " +
+                        value);
+            }
+        }
+        parent = parent.getCanonicalFile();
+        String key = parent.getPath() + '\n' + quota;
+        synchronized (REGISTRY) {
+            SpoolManager spool = REGISTRY.get(key);
+            if (spool == null) {
+                if (!parent.isDirectory() && !parent.mkdirs()) {
+                    throw new IOException("Unable to create spool directory " +
+                            parent + ".");
+                }
+                removeOrphans(parent);
+                spool = create(parent, quota);
+                REGISTRY.put(key, spool);
+            }
+            return spool;
+        }
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Maximum total size of the files in the spool, or -1 if unlimited.
+     */
+    public long getQuota() {
+        return quota;
+    }
+
+    /**
+     * Returns the total size of the files currently in the spool.
+     */
+    public long getUsage() {
+        synchronized (this) {
+            long usage = 0;
+            for (File file : references.keySet()) usage += file.length();
+            return usage;
+        }
+    }
+
+    /**
+     * Creates an empty file in the spool, holding one reference on behalf
+     * of the caller.  The quota is checked here, against the files already
+     * spooled, since the size of the new file is not yet known.
+     */
+    public File create() throws IOException {
+        synchronized (this) {
+            if (quota >= 0) {
+                long usage = getUsage();
+                if (usage >= quota) {
+                    throw new IOException("Spool quota of " + quota +
+                            " bytes exceeded in " + directory + " (" + usage +
+                                    " bytes in use).");
+                }
+            }
+            File file = File.createTempFile("exmail", null, directory);
+            references.put(file, 1);
+            return file;
+        }
+    }
+
+    public void retain(File file) {
+        synchronized (this) {
+            Integer count = references.get(file);
+            if (count == null) {
+                throw new IllegalStateException(file + " is not spooled.");
+            }
+            references.put(file, count + 1);
+        }
+    }
+
+    /**
+     * Releases a reference to the given file, deleting it when no
+     * references remain.
+     */
+    public void release(File file) {
+        synchronized (this) {
+            Integer count = references.get(file);
+            if (count == null) return;
+            if (count > 1) {
+                references.put(file, count - 1);
+                return;
+            }
+            references.remove(file);
+        }
+        file.delete();
+    }
+
+    private static SpoolManager create(File parent, long quota)
+            throws IOException {
+        File directory = File.createTempFile(PREFIX, "", parent);
+        if (!directory.delete() || !directory.mkdir()) {
+            throw new IOException("Unable to create spool directory in " +
+                    parent + ".");
+        }
+        RandomAccessFile lock =
+                new RandomAccessFile(new File(directory, LOCK_FILE), "rw");
+        if (lock.getChannel().tryLock() == null) {
+            lock.close();
+            throw new IOException("Unable to lock spool directory " +
+                    directory + ".");
+        }
+        return new SpoolManager(directory, quota, lock);
+    }
+
+    /**
+     * Removes the spool subdirectories whose lock is not held.  Those of
+     * this JVM are skipped without opening their lock, as closing any
+     * channel on a locked file may release the lock.
+     */
+    private static void removeOrphans(File parent) {
+        File[] candidates = parent.listFiles();
+        if (candidates == null) return;
+        Set<File> owned = new HashSet<File>();
+        for (SpoolManager spool : REGISTRY.values()) {
+            owned.add(spool.directory);
+        }
+        for (File candidate : candidates) {
+            if (!candidate.isDirectory() ||
+                    !candidate.getName().startsWith(PREFIX) ||
+                            owned.contains(candidate)) {
+                continue;
+            }
+            File lock = new File(candidate, LOCK_FILE);
+            if (lock.exists()) {
+                try {
+                    RandomAccessFile lockFile =
+                            new RandomAccessFile(lock, "rw");
+                    try {
+                        FileChannel channel = lockFile.getChannel();
+                        FileLock held = channel.tryLock();
+                        if (held == null) continue;
+                        held.release();
+                    } finally {
+                        lockFile.close();
+                    }
+                } catch (OverlappingFileLockException ex) {
+                    continue;
+                } catch (IOException ex) {
+                    continue;
+                }
+            }
+            File[] files = candidate.listFiles();
+            if (files != null) {
+                for (File file : files) file.delete();
+            }
+            candidate.delete();
+        }
+    }
+
+}
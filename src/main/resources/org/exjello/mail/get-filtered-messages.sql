@@ -8,4 +8,4 @@ FROM "" WHERE
 {BOOKMARK_FILTER_FROM}
 {BOOKMARK_FILTER_NOT_FROM}
 {BOOKMARK_FILTER_LAST_CHECK}
-ORDER BY "DAV:creationdate"
\ No newline at end of file
+ORDER BY {BOOKMARK_ORDER}
\ No newline at end of file